@@ -4,6 +4,8 @@ import java.io.File;
 import java.util.ArrayList;
 
 import vandy.mooc.R;
+import vandy.mooc.utils.BitmapCache;
+import vandy.mooc.utils.RetainedFragmentManager;
 import vandy.mooc.utils.Utils;
 import android.content.Context;
 import android.content.Intent;
@@ -30,6 +32,25 @@ public class DisplayImagesActivity extends LifecycleLoggingActivity {
     public static String ACTION_DISPLAY_IMAGES =
         "android.intent.action.DISPLAY_IMAGES";
 
+    /**
+     * The images are decoded at their full size.
+     */
+    private static final int FULL_SIZE = 1;
+
+    /**
+     * Used to retain the BitmapCache between runtime configuration
+     * changes.
+     */
+    protected final RetainedFragmentManager mRetainedFragmentManager =
+        new RetainedFragmentManager(this.getFragmentManager(),
+                                    TAG);
+
+    /**
+     * Caches the Bitmaps decoded for the GridView, so they aren't
+     * decoded again after a runtime configuration change.
+     */
+    private BitmapCache mBitmapCache;
+
     /**
      * The column width to use for the GridView.
      */
@@ -66,6 +87,9 @@ public class DisplayImagesActivity extends LifecycleLoggingActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_result);
+
+        // Handle any configuration change.
+        handleConfigurationChanges();
         
         // Configure the GridView adapter and dimensions.
         imageAdapter = new ImageAdapter(this);
@@ -82,6 +106,45 @@ public class DisplayImagesActivity extends LifecycleLoggingActivity {
         imageAdapter.setBitmaps
             (mFilePath);
     }
+
+    /**
+     * Hook method called when the system wants the process to release
+     * memory, which is passed on to the BitmapCache.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mBitmapCache.trimMemory(level);
+    }
+
+    /**
+     * Handle hardware reconfigurations, such as rotating the display.
+     */
+    private void handleConfigurationChanges() {
+        // If this method returns true then this is the first time the
+        // Activity has been created.
+        if (mRetainedFragmentManager.firstTimeIn()) {
+            Log.d(TAG,
+                  "First time onCreate() call");
+
+            // Create the BitmapCache and store it into the
+            // RetainedFragmentManager.
+            mBitmapCache = new BitmapCache(getApplicationContext());
+            mRetainedFragmentManager.put("BITMAP_CACHE_STATE",
+                                         mBitmapCache);
+        } else {
+            // The RetainedFragmentManager was previously initialized,
+            // which means that a runtime configuration change
+            // occured.
+            Log.d(TAG,
+                  "Second or subsequent onCreate() call");
+
+            // Obtain the BitmapCache, whose Bitmaps were decoded
+            // before the configuration change.
+            mBitmapCache =
+                mRetainedFragmentManager.get("BITMAP_CACHE_STATE");
+        }
+    }
     
     /**
      * Factory method that returns an Intent for displaying images.
@@ -192,6 +255,20 @@ public class DisplayImagesActivity extends LifecycleLoggingActivity {
             return imageView;
         }
 
+        /**
+         * Returns the Bitmap stored in the @a pathname, taken from
+         * the BitmapCache if it was decoded before, e.g., before the
+         * display was rotated, else decoded and cached.
+         */
+        private Bitmap getBitmap(String pathname) {
+            Bitmap bitmap = mBitmapCache.get(pathname, FULL_SIZE);
+            if (bitmap == null) {
+                bitmap = BitmapFactory.decodeFile(pathname);
+                mBitmapCache.put(pathname, FULL_SIZE, bitmap);
+            }
+            return bitmap;
+        }
+
         /**
          * Resets the bitmaps of the GridView to the ones found at the
          * given filterPath.
@@ -207,7 +284,7 @@ public class DisplayImagesActivity extends LifecycleLoggingActivity {
                     if (bitmap != null) {
                         try {
                             mBitmaps.add
-                                (BitmapFactory.decodeFile(bitmap.getAbsolutePath()));
+                                (getBitmap(bitmap.getAbsolutePath()));
                         } catch (Exception | Error e) {
                             Log.e(TAG,"Error displaying image:", e);
                             Utils.showToast(DisplayImagesActivity.this,
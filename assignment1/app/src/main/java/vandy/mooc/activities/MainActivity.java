@@ -54,6 +54,21 @@ public class MainActivity extends LifecycleLoggingActivity
         handleConfigurationChanges();
     }
 
+    /**
+     * Hook method called when the Activity is destroyed, which drops
+     * the replies held for it if it's finishing rather than being
+     * recreated.
+     */
+    @Override
+    protected void onDestroy() {
+        if (isFinishing())
+            mImageOps.onFinishing();
+
+        // Always call super class for necessary operations when
+        // destroying.
+        super.onDestroy();
+    }
+
     /**
      * Handle hardware reconfigurations, such as rotating the display.
      */
@@ -126,4 +141,14 @@ public class MainActivity extends LifecycleLoggingActivity
                            resultCode,
                            data);
     }
+
+    /**
+     * Hook method called back after a batch of results has been
+     * passed to onServiceResult().
+     */
+    @Override
+    public void onServiceResultsHandled() {
+        // Update the UI once for the batch.
+        mImageOps.onResultsHandled();
+    }
 }
@@ -5,10 +5,12 @@ import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import vandy.mooc.activities.DisplayImagesActivity;
 import vandy.mooc.activities.MainActivity;
 import vandy.mooc.services.DownloadImageService;
+import vandy.mooc.utils.FrameTimeMonitor;
 import vandy.mooc.utils.ServiceResultHandler;
 import vandy.mooc.utils.Utils;
 import vandy.mooc.R;
@@ -71,6 +73,11 @@ public class ImageOps {
      * Stores an instance of ServiceResultHandler.
      */
     public Handler mServiceResultHandler = null;
+
+    /**
+     * Measures the frames drawn while a batch is downloading.
+     */
+    private FrameTimeMonitor mFrameTimeMonitor = new FrameTimeMonitor();
         
     /**
      * Stores the running total number of images downloaded that must
@@ -95,6 +102,12 @@ public class ImageOps {
      */
     public ArrayList<String> mUrlList;
 
+    /**
+     * The URLs that failed to download since the results were last
+     * handled, which are summarized in one toast.
+     */
+    private ArrayList<String> mFailedUrls = new ArrayList<String>();
+
     /**
      * Constructor.
      */
@@ -172,6 +185,9 @@ public class ImageOps {
             // displayed.
             mNumImagesToHandle = mUrlList.size();
 
+            // Measure the frames drawn while the batch downloads.
+            mFrameTimeMonitor.start();
+
             // Iterate over each URL and start the download.
             for (String urlString : mUrlList)
                 startDownload(Uri.parse(urlString));
@@ -216,9 +232,38 @@ public class ImageOps {
             Log.d(TAG,
                   "received image at URI "
                   + DownloadImageService.getImagePathname(data));
+    }
+
+    /**
+     * Update the UI once for the results handled since the last
+     * call, so a burst of results redisplays the URLs once and
+     * summarizes their failures in one toast.
+     */
+    public void onResultsHandled() {
+        if (!mFailedUrls.isEmpty()) {
+            Utils.showToast(mActivity.get(),
+                            summarizeFailures(mFailedUrls));
+            mFailedUrls.clear();
+
+            // (Re)display the URLs that are left.
+            displayUrls();
+        }
                 
         // Try to display all images received successfully.
-        tryToDisplayImages(data);
+        tryToDisplayImages(null);
+    }
+
+    /**
+     * Returns a message that summarizes the @a failedUrls for one
+     * toast.
+     */
+    private static String summarizeFailures(List<String> failedUrls) {
+        return failedUrls.size() == 1
+            ? "image at " + failedUrls.get(0) + " failed to download!"
+            : failedUrls.size()
+              + " images failed to download, including "
+              + failedUrls.get(0)
+              + "!";
     }
 
     /**
@@ -232,6 +277,8 @@ public class ImageOps {
             // Dismiss the progress bar.
             mLoadingProgressBar.setVisibility(View.INVISIBLE);
 
+            logFrameTimes();
+
             // Initialize state for the next run.
             resetNonViewFields();
 
@@ -257,20 +304,31 @@ public class ImageOps {
     }  
 
     /**
-     * Handle failure to download an image.
+     * Stop measuring the frames drawn during the batch and log them
+     * with the process the download Service runs in, so the jank can
+     * be compared with the Service in and out of the app's process.
+     */
+    private void logFrameTimes() {
+        mFrameTimeMonitor.stop();
+        Log.d(TAG,
+              "frame times with the Service in process "
+              + mActivity.get().getString(R.string.download_process)
+              + ": "
+              + mFrameTimeMonitor);
+    }
+
+    /**
+     * Handle failure to download an image, which is removed from the
+     * UI once the batch of results has been handled.
      */
     public void handleDownloadFailure(Bundle data) {
         // Extract the URL from the message.
         final String url =
             DownloadImageService.getImageURL(data);
-            
-        Utils.showToast(mActivity.get(),
-                        "image at " 
-                        + url
-                        + " failed to download!");
 
-        // Remove the URL that failed from the UI.
-        removeUrl(url);
+        // Report it with the other failures of the batch.
+        mFailedUrls.add(url);
+        mUrlList.remove(url);
 
         if (allDownloadsComplete()) {
             // Dismiss the progress bar.
@@ -411,6 +469,16 @@ public class ImageOps {
         return fileCount;
     }
 
+    /**
+     * Called when the MainActivity is finishing, so the replies the
+     * ServiceResultHandler holds, and any that arrive later, are
+     * dropped rather than kept for an Activity that won't return.
+     */
+    public void onFinishing() {
+        if (mServiceResultHandler != null)
+            ((ServiceResultHandler) mServiceResultHandler).onOwnerFinishing();
+    }
+
     /**
      * Called by the ImageOps constructor and after a runtime
      * configuration change occurs to finish the initialization steps.
@@ -1,5 +1,6 @@
 package vandy.mooc.services;
 
+import vandy.mooc.utils.AndroidLogger;
 import vandy.mooc.utils.Utils;
 import android.app.Activity;
 import android.app.IntentService;
@@ -58,6 +59,18 @@ public class DownloadImageService extends IntentService {
     	super("DownloadImageService");
     }
 
+    /**
+     * Hook method called when the Service is created.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        // Send the log messages of the download core to the Android
+        // logger.
+        vandy.mooc.download.Log.setLogger(new AndroidLogger());
+    }
+
     /**
      * Factory method that returns an Intent for downloading an image.
      */
@@ -17,4 +17,12 @@ public interface ServiceResult {
     void onServiceResult(int requestCode,
                          int resultCode,
                          Bundle data);
+
+    /**
+     * Called after each batch of results, i.e., those that arrived
+     * within one display frame, has been passed to
+     * onServiceResult(), so the UI can be updated once per batch
+     * rather than once per result.
+     */
+    void onServiceResultsHandled();
 }
@@ -1,16 +1,16 @@
 package vandy.mooc.utils;
 
-import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.net.URL;
-import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
 
 import vandy.mooc.R;
+import vandy.mooc.download.DownloadAttempt;
+import vandy.mooc.download.DownloadManifest;
+import vandy.mooc.download.ImageResponse;
+import vandy.mooc.download.ImageStore;
+import vandy.mooc.download.OutputFormat;
 import android.app.Activity;
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
@@ -19,9 +19,6 @@ import android.graphics.Color;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.IBinder;
-import android.provider.MediaStore;
-import android.provider.MediaStore.Images;
-import android.util.Base64;
 import android.util.Log;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.ImageView;
@@ -131,14 +128,32 @@ public class Utils {
             }
         }
 
-        return Utils.createDirectoryAndSaveFile
-            (context, 
-             grayScaleImage,
+        DownloadManifest.Entry entry = makeImageStore(context).save
+            (BitmapImageCodec.encode(null,
+                                     grayScaleImage,
+                                     OutputFormat.DEFAULT),
+             grayScaleImage.getWidth(),
+             grayScaleImage.getHeight(),
+             pathToImageFile.toString(),
              // Name of the image file that we're filtering.
              pathToImageFile.toString(),
-             directoryPathname.toString());
+             directoryPathname.toString(),
+             null);
+        return entry.succeeded() 
+            ? Uri.parse(entry.getImagePathname())
+            : null;
     }
     
+    /**
+     * Factory method that returns an ImageStore that stores images
+     * in the @a context, encoding them with Bitmap and inserting them
+     * into the MediaStore.
+     */
+    private static ImageStore makeImageStore(Context context) {
+        return new ImageStore(new BitmapImageCodec(),
+                              new MediaStoreIndex(context));
+    }
+
     /**
      * Download the image located at the provided Internet url using
      * the URL class, store it on the android file system using a
@@ -159,18 +174,22 @@ public class Utils {
             return null;
         }
 
+        DownloadManifest.Entry entry;
+        DownloadAttempt attempt =
+            new DownloadAttempt(new AtomicReference<DownloadAttempt>());
+
         // If we're offline, open the image in our resources.
         if (DOWNLOAD_OFFLINE) {
             // Get a stream from the image resource.
             try (InputStream inputStream =
                  context.getResources().openRawResource(OFFLINE_TEST_IMAGE)) {
                     // Create an output file and save the image into it.
-                    return Utils.createDirectoryAndSaveFile
-                        (context,
-                         // Decode the InputStream into a Bitmap image.
-                         BitmapFactory.decodeStream(inputStream),
-                         OFFLINE_FILENAME,
-                         directoryPathname);
+                    entry = makeImageStore(context).store(inputStream,
+                                                          url.toString(),
+                                                          OFFLINE_FILENAME,
+                                                          directoryPathname,
+                                                          OutputFormat.DEFAULT,
+                                                          attempt);
             } catch (Exception e) {
                 Log.e(TAG,
                       "Exception getting resources."
@@ -179,103 +198,17 @@ public class Utils {
             }
         } 
         // Otherwise, download the file requested by the user.
-        else {
-            // Download the contents at the URL, which should
-            // reference an image.
-            try (InputStream inputStream = 
-                 (InputStream) new URL(url.toString()).getContent()) {
-                    // Create an output file and save the image into it.
-                    return Utils.createDirectoryAndSaveFile
-                        (context,
-                         // Decode the InputStream into a Bitmap image.
-                         BitmapFactory.decodeStream(inputStream),
-                         url.toString(),
-                         directoryPathname);
-             } catch (Exception e) {
-                Log.e(TAG,
-                      "Exception while downloading -- returning null."
-                      + e.toString());
-                return null;
-            }
-        }
-    }
-        
-    /**
-     * Decode an InputStream into a Bitmap and store it in a file on
-     * the device.
-     *
-     * @param context	   the context in which to write the file.
-     * @param inputStream  the Input Stream.
-     * @param fileName     name of the file.
-     * 
-     * @return          the absolute path to the downloaded image file on the file system.
-     */
-    private static Uri createDirectoryAndSaveFile(Context context,
-                                                  Bitmap imageToSave,
-                                                  String fileName,
-                                                  String directoryPathname) {
-        // Bail out of we get an invalid bitmap.
-        if (imageToSave == null)
-            return null;
-
-        // Try to open a directory.
-        File directory =
-            new File(directoryPathname);
-
-        // If the directory doesn't exist already then create it.
-        if (!directory.exists()) {
-            // File newDirectory =
-            // new File(directory.getAbsolutePath());
-            directory.mkdirs();
-        }
-
-        File file = new File(directory, 
-                             getTemporaryFilename(fileName));
-        // Delete the file if it already exists.
-        if (file.exists())
-            file.delete();
-
-        // Save the image to the output file.
-        try (FileOutputStream outputStream = new FileOutputStream(file)) {
-            imageToSave.compress(Bitmap.CompressFormat.JPEG,
-                                 100,
-                                 outputStream);
-            outputStream.flush();
-        } catch (Exception e) {
-            // Indicate a failure.
-            return null;
-        }
-
-        // Get the absolute path of the image.
-        String absolutePathToImage = file.getAbsolutePath();
-
-        // Provide metadata so the downloaded image is viewable in the
-        // Gallery.
-        ContentValues values =
-            new ContentValues();
-        values.put(Images.Media.TITLE,
-                   fileName);
-        values.put(Images.Media.DESCRIPTION,
-                   fileName);
-        values.put(Images.Media.DATE_TAKEN,
-                   System.currentTimeMillis ());
-        values.put(Images.ImageColumns.BUCKET_DISPLAY_NAME,
-                   file.getName().toLowerCase(Locale.US));
-        values.put("_data",
-                   absolutePathToImage);
-        
-        ContentResolver cr = 
-            context.getContentResolver();
-
-        // Store the metadata for the image into the Gallery.
-        cr.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                  values);
+        else
+            entry = makeImageStore(context).download
+                (url.toString(),
+                 directoryPathname,
+                 OutputFormat.DEFAULT,
+                 ImageResponse.DEFAULT_MAX_IMAGE_BYTES,
+                 attempt);
 
-        Log.d(TAG,
-              "absolute path to image file is " 
-              + absolutePathToImage);
-            
-        return Uri.parse(absolutePathToImage);
+        return entry.succeeded()
+            ? Uri.parse(entry.getImagePathname())
+            : null;
     }
 
     /**
@@ -288,25 +221,6 @@ public class Utils {
             (Environment.getExternalStorageState());
     }
 
-    /**
-     * Create a temporary filename to store the result of a download.
-     * 
-     * @param url Name of the URL.
-     * @return String containing the temporary filename.
-     */
-    static private String getTemporaryFilename(final String url) {
-        // This is what you'd normally call to get a unique temporary
-        // filename, but for testing purposes we always name the file
-        // the same to avoid filling up student phones with numerous
-        // files!
-        //
-        // return Base64.encodeToString((url.toString() 
-        //                              + System.currentTimeMillis()).getBytes(),
-        //                              Base64.NO_WRAP);
-        return Base64.encodeToString(url.getBytes(),
-                                     Base64.NO_WRAP);
-    }
-
     /**
      * Show a toast message.
      */
@@ -2,8 +2,14 @@ package vandy.mooc.activities;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import vandy.mooc.R;
+import vandy.mooc.download.DownloadManifest;
+import vandy.mooc.utils.BitmapCache;
+import vandy.mooc.utils.ImageFeed;
+import vandy.mooc.utils.RetainedFragmentManager;
 import vandy.mooc.utils.Utils;
 import android.content.Context;
 import android.content.Intent;
@@ -12,6 +18,8 @@ import android.graphics.BitmapFactory;
 import android.graphics.Point;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.Display;
 import android.view.View;
@@ -30,6 +38,46 @@ public class DisplayImagesActivity extends LifecycleLoggingActivity {
     public static String ACTION_DISPLAY_IMAGES =
         "android.intent.action.DISPLAY_IMAGES";
 
+    /**
+     * Name of the Intent extra that indicates whether images should
+     * be shown as they arrive via the ImageFeed.
+     */
+    private static final String STREAMING = "STREAMING";
+
+    /**
+     * Thread that decodes the images without thumbnails, so the UI
+     * thread doesn't read them from disk.  It's a single Thread so
+     * the images are shown in the order they were added.
+     */
+    private static final ExecutorService sDecodeExecutor =
+        Executors.newSingleThreadExecutor();
+
+    /**
+     * Used to post the decoded images to the UI thread.
+     */
+    private final Handler mHandler =
+        new Handler(Looper.getMainLooper());
+
+    /**
+     * True once the Activity is destroyed, after which decoded images
+     * are dropped rather than shown.
+     */
+    private boolean mDestroyed;
+
+    /**
+     * Used to retain the BitmapCache between runtime configuration
+     * changes.
+     */
+    protected final RetainedFragmentManager mRetainedFragmentManager =
+        new RetainedFragmentManager(this.getFragmentManager(),
+                                    TAG);
+
+    /**
+     * Caches the Bitmaps decoded for the GridView, so they aren't
+     * decoded again after a runtime configuration change.
+     */
+    private BitmapCache mBitmapCache;
+
     /**
      * The column width to use for the GridView.
      */
@@ -55,6 +103,12 @@ public class DisplayImagesActivity extends LifecycleLoggingActivity {
      * The file path in external storage storing images to display
      */
     private String mFilePath;
+
+    /**
+     * Subscribed to the ImageFeed of mFilePath in streaming mode,
+     * else null.
+     */
+    private ImageFeed.Listener mImageFeedListener;
 	
     /**
      * Creates the activity and generates a button for each filter
@@ -66,6 +120,9 @@ public class DisplayImagesActivity extends LifecycleLoggingActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_result);
+
+        // Handle any configuration change.
+        handleConfigurationChanges();
         
         // Configure the GridView adapter and dimensions.
         imageAdapter = new ImageAdapter(this);
@@ -76,19 +133,104 @@ public class DisplayImagesActivity extends LifecycleLoggingActivity {
         mFilePath =
             getIntent().getDataString();
         
-        // Find the directory and load the directory as the source of
-        // the imageAdapter.
-        imageAdapter.setBitmaps
-            (mFilePath);
+        ImageFeed feed = ImageFeed.find(mFilePath);
+        if (getIntent().getBooleanExtra(STREAMING, false)
+            && feed != null) {
+            // Show the images downloaded thus far and then each image
+            // as it arrives.
+            mImageFeedListener = new ImageFeed.Listener() {
+                    @Override
+                    public void onImageAdded(String imagePathname,
+                                             Bitmap thumbnail) {
+                        imageAdapter.addBitmap(new File(imagePathname),
+                                               thumbnail);
+                    }
+                };
+            feed.subscribe(mImageFeedListener);
+        } else
+            // Find the directory and load the directory as the source
+            // of the imageAdapter, which is also where the images of
+            // a streaming batch are once it's finished and its feed
+            // is forgotten.
+            imageAdapter.setBitmaps
+                (mFilePath);
+    }
+
+    /**
+     * Hook method that gives a final chance to release resources.
+     */
+    @Override
+    protected void onDestroy() {
+        mDestroyed = true;
+
+        // Stop receiving images from the ImageFeed.
+        if (mImageFeedListener != null) {
+            ImageFeed feed = ImageFeed.find(mFilePath);
+            if (feed != null)
+                feed.unsubscribe(mImageFeedListener);
+        }
+
+        super.onDestroy();
+    }
+
+    /**
+     * Hook method called when the system wants the process to release
+     * memory, which is passed on to the BitmapCache.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        mBitmapCache.trimMemory(level);
+    }
+
+    /**
+     * Handle hardware reconfigurations, such as rotating the display.
+     */
+    private void handleConfigurationChanges() {
+        // If this method returns true then this is the first time the
+        // Activity has been created.
+        if (mRetainedFragmentManager.firstTimeIn()) {
+            Log.d(TAG,
+                  "First time onCreate() call");
+
+            // Create the BitmapCache and store it into the
+            // RetainedFragmentManager.
+            mBitmapCache = new BitmapCache(getApplicationContext());
+            mRetainedFragmentManager.put("BITMAP_CACHE_STATE",
+                                         mBitmapCache);
+        } else {
+            // The RetainedFragmentManager was previously initialized,
+            // which means that a runtime configuration change
+            // occured.
+            Log.d(TAG,
+                  "Second or subsequent onCreate() call");
+
+            // Obtain the BitmapCache, whose Bitmaps were decoded
+            // before the configuration change.
+            mBitmapCache =
+                mRetainedFragmentManager.get("BITMAP_CACHE_STATE");
+        }
     }
     
     /**
      * Factory method that returns an Intent for displaying images.
      */
     public static Intent makeIntent(String directoryPathname) {
+        return makeIntent(directoryPathname,
+                          false);
+    }
+
+    /**
+     * Factory method that returns an Intent for displaying images,
+     * which are shown as they arrive via the ImageFeed if @a
+     * streaming is true.
+     */
+    public static Intent makeIntent(String directoryPathname,
+                                    boolean streaming) {
         return new Intent(ACTION_DISPLAY_IMAGES)
                           .setDataAndType(Uri.parse(directoryPathname),
-                                          "image/*");
+                                          "image/*")
+                          .putExtra(STREAMING, streaming);
     }
 
     /**
@@ -203,50 +345,104 @@ public class DisplayImagesActivity extends LifecycleLoggingActivity {
 
         /**
          * Convert the @a bitmap parameter into a scaled Bitmap to 
-         * avoid out-of-memory exceptions with large images.
+         * avoid out-of-memory exceptions with large images.  The
+         * Bitmap is taken from the BitmapCache if it was decoded at
+         * the same sample size before, else it's decoded and cached.
          */
         private Bitmap getScaledBitmap(File bitmap) {
+            String pathname = bitmap.getAbsolutePath();
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(bitmap.getAbsolutePath(), options);
+            BitmapFactory.decodeFile(pathname, options);
         	
-            int sizeRatio = options.outWidth /mColWidth;
+            int sizeRatio = Math.max(1, options.outWidth /mColWidth);
+
+            // Reuse the Bitmap decoded at this sample size, e.g.,
+            // before the display was rotated.
+            Bitmap scaledBitmap = mBitmapCache.get(pathname, sizeRatio);
+            if (scaledBitmap != null)
+                return scaledBitmap;
         	
             options.inJustDecodeBounds = false;
             options.inSampleSize = sizeRatio;	
-            return BitmapFactory.decodeFile(bitmap.getAbsolutePath(), options);
+            scaledBitmap = BitmapFactory.decodeFile(pathname, options);
+            mBitmapCache.put(pathname, sizeRatio, scaledBitmap);
+            return scaledBitmap;
         }
 
         /**
-         * Resets the bitmaps of the GridView to the ones found at the
-         * given filterPath.
+         * Appends the @a thumbnail of the bitmap stored in the @a
+         * bitmap file to the GridView, or the bitmap itself if the
+         * @a thumbnail is null, which is decoded in the background
+         * and appended once it's ready.
          */
-        private void setBitmaps(String filterPath) {
-            File[] bitmaps = new File(filterPath).listFiles();
-            mBitmaps = new ArrayList<Bitmap>();
+        private void addBitmap(final File bitmap,
+                               Bitmap thumbnail) {
+            // Show the thumbnail without touching the disk if there
+            // is one.
+            if (thumbnail != null) {
+                appendBitmap(thumbnail);
+                return;
+            }
 
-            // If there are some image files to display, load, and
-            // store their bitmaps in the bitmap array.
-            if (bitmaps != null) {
-                for (File bitmap : bitmaps) {
-                    if (bitmap != null) {
+            sDecodeExecutor.execute(new Runnable() {
+                    /**
+                     * This method runs in a background Thread.
+                     */
+                    @Override
+                    public void run() {
                         try {
-                            mBitmaps.add
-                                // Scale the bitmap to avoid
-                                // out-of-memory exceptions with large
-                                // images.
-                                (getScaledBitmap(bitmap));
+                            // Scale the bitmap to avoid out-of-memory
+                            // exceptions with large images.
+                            final Bitmap scaledBitmap =
+                                getScaledBitmap(bitmap);
+                            mHandler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        if (!mDestroyed)
+                                            appendBitmap(scaledBitmap);
+                                    }
+                                });
                         } catch (Exception | Error e) {
                             Log.e(TAG,"Error displaying image:", e);
-                            Utils.showToast(DisplayImagesActivity.this,
-                                            "Error displaying image at "
-                                            + bitmap.getAbsolutePath());
+                            mHandler.post(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        if (!mDestroyed)
+                                            Utils.showToast
+                                                (DisplayImagesActivity.this,
+                                                 "Error displaying image at "
+                                                 + bitmap.getAbsolutePath());
+                                    }
+                                });
                         }
                     }
-                }
-            }
+                });
+        }
 
+        /**
+         * Appends the decoded @a bitmap to the GridView.
+         */
+        private void appendBitmap(Bitmap bitmap) {
+            mBitmaps.add(bitmap);
             notifyDataSetChanged();
         }
+
+        /**
+         * Resets the bitmaps of the GridView to the ones recorded in
+         * the download manifest of the given filterPath, which are
+         * decoded in the background.
+         */
+        private void setBitmaps(String filterPath) {
+            mBitmaps = new ArrayList<Bitmap>();
+            notifyDataSetChanged();
+
+            // Load and store the bitmaps of all image files that were
+            // downloaded successfully in the bitmap array.
+            for (DownloadManifest.Entry entry :
+                     DownloadManifest.readSucceeded(filterPath))
+                addBitmap(new File(entry.getImagePathname()),
+                          null);
+        }
     }
 }
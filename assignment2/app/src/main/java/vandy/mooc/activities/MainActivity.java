@@ -1,6 +1,7 @@
 package vandy.mooc.activities;
 
 import vandy.mooc.R;
+import vandy.mooc.operations.BatchTracker;
 import vandy.mooc.operations.ImageOps;
 import vandy.mooc.utils.RetainedFragmentManager;
 import vandy.mooc.utils.ServiceResult;
@@ -79,14 +80,32 @@ public class MainActivity extends LifecycleLoggingActivity
     @Override
     protected void onStop() {
         // Unbind from the Service (which may be a no-op, depending on
-        // which type of DownloadImages*Service is used).
-        mImageOps.unbindService();
+        // which type of DownloadImages*Service is used), unless the
+        // Activity is only being recreated, since the Service would
+        // otherwise be destroyed along with the downloads in flight.
+        if (!isChangingConfigurations())
+            mImageOps.unbindService();
 
         // Always call super class for necessary operations when
         // stopping.
         super.onStop();
     }
 
+    /**
+     * Hook method called when the Activity is destroyed, which drops
+     * the replies held for it if it's finishing rather than being
+     * recreated.
+     */
+    @Override
+    protected void onDestroy() {
+        if (isFinishing())
+            mImageOps.onFinishing();
+
+        // Always call super class for necessary operations when
+        // destroying.
+        super.onDestroy();
+    }
+
     /**
      * Handle hardware reconfigurations, such as rotating the display.
      */
@@ -97,10 +116,15 @@ public class MainActivity extends LifecycleLoggingActivity
             Log.d(TAG,
                   "First time onCreate() call");
 
+            // Create the BatchTracker one time.  ImageOps holds on to
+            // it, so the progress of downloads survives runtime
+            // configuration changes along with the ImageOps.
+            final BatchTracker batchTracker = new BatchTracker();
+
             // Create the ImageOps object one time.  The "true"
             // parameter instructs ImageOps to use the
             // DownloadImagesBoundService.
-            mImageOps = new ImageOps(this, true);
+            mImageOps = new ImageOps(this, true, batchTracker);
 
             // Store the ImageOps into the RetainedFragmentManager.
             mRetainedFragmentManager.put("IMAGE_OPS_STATE",
@@ -167,4 +191,14 @@ public class MainActivity extends LifecycleLoggingActivity
                            resultCode,
                            data);
     }
+
+    /**
+     * Hook method called back after a batch of results has been
+     * passed to onServiceResult().
+     */
+    @Override
+    public void onServiceResultsHandled() {
+        // Update the UI once for the batch.
+        mImageOps.onResultsHandled();
+    }
 }
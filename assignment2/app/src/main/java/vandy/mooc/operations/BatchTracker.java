@@ -0,0 +1,240 @@
+package vandy.mooc.operations;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.os.SystemClock;
+
+/**
+ * Tracks the progress of a batch of downloads.  Each URL moves
+ * through the UrlState state machine
+ *
+ *   QUEUED -> RUNNING -> DONE
+ *                    \-> FAILED -> RUNNING (retry)
+ *
+ * and the number of URLs in each state is kept in an atomic counter,
+ * so progress can be read from any thread without touching the UI.
+ * An instance is stored in the RetainedFragmentManager so it survives
+ * runtime configuration changes.
+ */
+public class BatchTracker {
+    /**
+     * The state of a single URL along with the times (from
+     * SystemClock.elapsedRealtime()) it entered each state.
+     */
+    public static class UrlRecord {
+        /**
+         * The URL being tracked.
+         */
+        private final String mUrl;
+
+        /**
+         * The current state of the URL.
+         */
+        private final AtomicReference<UrlState> mState =
+            new AtomicReference<>(UrlState.QUEUED);
+
+        /**
+         * Time the URL was queued.
+         */
+        private final long mQueuedTime;
+
+        /**
+         * Time the download of the URL last started, or 0.
+         */
+        private volatile long mStartTime;
+
+        /**
+         * Time the download of the URL last finished, or 0.
+         */
+        private volatile long mFinishTime;
+
+        UrlRecord(String url) {
+            mUrl = url;
+            mQueuedTime = SystemClock.elapsedRealtime();
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public UrlState getState() {
+            return mState.get();
+        }
+
+        public long getQueuedTime() {
+            return mQueuedTime;
+        }
+
+        public long getStartTime() {
+            return mStartTime;
+        }
+
+        public long getFinishTime() {
+            return mFinishTime;
+        }
+
+        /**
+         * Returns how long the last download of the URL took in
+         * milliseconds, or -1 if it hasn't finished.
+         */
+        public long getElapsedTime() {
+            return mFinishTime == 0 ? -1 : mFinishTime - mStartTime;
+        }
+    }
+
+    /**
+     * Maps each URL to its UrlRecord.
+     */
+    private final ConcurrentHashMap<String, UrlRecord> mRecords =
+        new ConcurrentHashMap<>();
+
+    /**
+     * Number of URLs in each UrlState, indexed by ordinal.
+     */
+    private final AtomicInteger[] mCounts =
+        new AtomicInteger[UrlState.values().length];
+
+    /**
+     * Constructor initializes the counters.
+     */
+    public BatchTracker() {
+        for (int i = 0; i < mCounts.length; ++i)
+            mCounts[i] = new AtomicInteger();
+    }
+
+    /**
+     * Start tracking the @a url in the QUEUED state.
+     *
+     * @return the new UrlRecord or null if @a url is already tracked.
+     */
+    public UrlRecord add(String url) {
+        UrlRecord record = new UrlRecord(url);
+        if (mRecords.putIfAbsent(url, record) != null)
+            return null;
+
+        mCounts[UrlState.QUEUED.ordinal()].incrementAndGet();
+        return record;
+    }
+
+    /**
+     * Stop tracking the @a url.
+     *
+     * @return false if @a url wasn't tracked, else true.
+     */
+    public boolean remove(String url) {
+        UrlRecord record = mRecords.remove(url);
+        if (record == null)
+            return false;
+
+        mCounts[record.getState().ordinal()].decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stop tracking all URLs.
+     */
+    public void clear() {
+        for (String url : mRecords.keySet())
+            remove(url);
+    }
+
+    /**
+     * Returns the UrlRecord of the @a url or null if it's not tracked.
+     */
+    public UrlRecord getRecord(String url) {
+        return mRecords.get(url);
+    }
+
+    /**
+     * Returns the state of the @a url or null if it's not tracked.
+     */
+    public UrlState getState(String url) {
+        UrlRecord record = mRecords.get(url);
+        return record == null ? null : record.getState();
+    }
+
+    /**
+     * Move the @a url to the @a newState if that's a legal transition
+     * from its current state.
+     *
+     * @return true if the transition was made, else false.
+     */
+    public boolean transition(String url,
+                              UrlState newState) {
+        UrlRecord record = mRecords.get(url);
+        if (record == null)
+            return false;
+
+        for (;;) {
+            UrlState oldState = record.getState();
+            if (!isLegal(oldState, newState))
+                return false;
+            if (record.mState.compareAndSet(oldState, newState)) {
+                long now = SystemClock.elapsedRealtime();
+                if (newState == UrlState.RUNNING) {
+                    record.mStartTime = now;
+                    record.mFinishTime = 0;
+                } else
+                    record.mFinishTime = now;
+
+                // Count the new state before uncounting the old one so
+                // a URL is never missing from both, e.g., RUNNING
+                // doesn't drop to 0 before DONE is incremented.
+                mCounts[newState.ordinal()].incrementAndGet();
+                mCounts[oldState.ordinal()].decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns true if the state machine allows moving from @a
+     * oldState to @a newState, else false.
+     */
+    private static boolean isLegal(UrlState oldState,
+                                   UrlState newState) {
+        switch (newState) {
+        case RUNNING:
+            return oldState == UrlState.QUEUED
+                || oldState == UrlState.FAILED;
+        case DONE:
+        case FAILED:
+            return oldState == UrlState.RUNNING;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Returns the number of URLs in the @a state.
+     */
+    public int getCount(UrlState state) {
+        return mCounts[state.ordinal()].get();
+    }
+
+    /**
+     * Returns the number of URLs that have finished downloading,
+     * whether they succeeded or failed.
+     */
+    public int getFinishedCount() {
+        return getCount(UrlState.DONE) + getCount(UrlState.FAILED);
+    }
+
+    /**
+     * Returns true if all the downloads that were started have
+     * completed, else false.
+     */
+    public boolean allDownloadsComplete() {
+        return getCount(UrlState.RUNNING) == 0
+            && getFinishedCount() > 0;
+    }
+
+    /**
+     * Returns true if there are any downloads in progress, else false.
+     */
+    public boolean downloadsInProgress() {
+        return getCount(UrlState.RUNNING) > 0;
+    }
+}
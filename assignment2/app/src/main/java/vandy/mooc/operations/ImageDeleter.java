@@ -0,0 +1,373 @@
+package vandy.mooc.operations;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vandy.mooc.download.DownloadManifest;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Deletes all the images downloaded into a directory in the
+ * background.  The files are found via the directory's download
+ * manifest (plus a walk of the directory for anything the manifest
+ * doesn't know about), unlinked in parallel batches, and their
+ * MediaStore rows are then removed in a single operation if they
+ * were all unlinked, else just those of the unlinked files.  Progress
+ * and the final count are reported to a Callback on the UI thread,
+ * and the deletion can be cancelled at any time.
+ */
+public class ImageDeleter {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    /**
+     * Callback interface whose methods are called on the UI thread.
+     */
+    public interface Callback {
+        /**
+         * Called after each batch of files has been deleted.
+         */
+        void onProgress(int deletedCount,
+                        int totalCount);
+
+        /**
+         * Called once all files have been deleted or the deletion
+         * was cancelled.
+         */
+        void onComplete(int deletedCount,
+                        boolean cancelled);
+    }
+
+    /**
+     * Number of files deleted by each task.
+     */
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Maximum number of (MediaStore) arguments passed to a single
+     * SQL statement.
+     */
+    private static final int MAX_SQL_ARGS = 500;
+
+    /**
+     * Threads that delete the batches of files, which is shared by
+     * all ImageDeleters.
+     */
+    private static final ExecutorService sExecutorService =
+        Executors.newFixedThreadPool
+        (Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * Directory whose images are deleted.
+     */
+    private final String mDirectoryPathname;
+
+    /**
+     * Used to delete the MediaStore rows of the images.
+     */
+    private final ContentResolver mContentResolver;
+
+    /**
+     * Callback that's notified on the UI thread.
+     */
+    private final Callback mCallback;
+
+    /**
+     * Used to post to the UI thread.
+     */
+    private final Handler mHandler =
+        new Handler(Looper.getMainLooper());
+
+    /**
+     * True once cancel() has been called.
+     */
+    private final AtomicBoolean mCancelled = new AtomicBoolean();
+
+    /**
+     * True while the deletion is running.
+     */
+    private final AtomicBoolean mRunning = new AtomicBoolean();
+
+    /**
+     * Number of files deleted thus far.
+     */
+    private final AtomicInteger mDeletedCount = new AtomicInteger();
+
+    /**
+     * Number of batches that haven't finished yet.
+     */
+    private final AtomicInteger mPendingBatches = new AtomicInteger();
+
+    /**
+     * Pathnames of the files that have been deleted, which are used
+     * to remove their MediaStore rows unless all the files were.
+     */
+    private final ConcurrentLinkedQueue<String> mDeletedPathnames =
+        new ConcurrentLinkedQueue<>();
+
+    /**
+     * Total number of files to delete.
+     */
+    private volatile int mTotalCount;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public ImageDeleter(Context context,
+                        String directoryPathname,
+                        Callback callback) {
+        mContentResolver =
+            context.getApplicationContext().getContentResolver();
+        mDirectoryPathname = directoryPathname;
+        mCallback = callback;
+    }
+
+    /**
+     * Start deleting the images in the background.
+     */
+    public void start() {
+        if (!mRunning.compareAndSet(false, true))
+            return;
+
+        sExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        submitBatches(findFiles());
+                    } catch (RuntimeException e) {
+                        Log.e(TAG,
+                              "Exception finding files in "
+                              + mDirectoryPathname,
+                              e);
+                        finish();
+                    }
+                }
+            });
+    }
+
+    /**
+     * Stop deleting images as soon as possible.  The Callback's
+     * onComplete() is still called with the number of files that
+     * were deleted.
+     */
+    public void cancel() {
+        mCancelled.set(true);
+    }
+
+    /**
+     * Returns true while the deletion is running, else false.
+     */
+    public boolean isRunning() {
+        return mRunning.get();
+    }
+
+    /**
+     * Returns the files to delete, i.e., those recorded in the
+     * manifest followed by any other (non-manifest) files in the
+     * directory tree.
+     */
+    private List<File> findFiles() {
+        LinkedHashSet<String> pathnames = new LinkedHashSet<>();
+        for (DownloadManifest.Entry entry :
+                 DownloadManifest.readSucceeded(mDirectoryPathname))
+            pathnames.add(entry.getImagePathname());
+
+        ArrayDeque<File> directories = new ArrayDeque<>();
+        directories.add(new File(mDirectoryPathname));
+        while (!directories.isEmpty()) {
+            File[] files = directories.poll().listFiles();
+            if (files == null)
+                continue;
+            for (File file : files)
+                if (file.isDirectory())
+                    directories.add(file);
+                else if (!file.getName().equals(DownloadManifest.FILENAME))
+                    pathnames.add(file.getAbsolutePath());
+        }
+
+        List<File> files = new ArrayList<>(pathnames.size());
+        for (String pathname : pathnames)
+            files.add(new File(pathname));
+        return files;
+    }
+
+    /**
+     * Split the @a files into batches and delete them in parallel.
+     */
+    private void submitBatches(List<File> files) {
+        mTotalCount = files.size();
+        int batches = (files.size() + BATCH_SIZE - 1) / BATCH_SIZE;
+        if (batches == 0) {
+            finish();
+            return;
+        }
+
+        mPendingBatches.set(batches);
+        for (int i = 0; i < files.size(); i += BATCH_SIZE) {
+            final List<File> batch =
+                files.subList(i, Math.min(i + BATCH_SIZE, files.size()));
+            sExecutorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deleteBatch(batch);
+                    }
+                });
+        }
+    }
+
+    /**
+     * Delete a @a batch of files, report the progress, and finish up
+     * if this is the last batch.
+     */
+    private void deleteBatch(List<File> batch) {
+        int deleted = 0;
+        try {
+            for (File file : batch) {
+                if (mCancelled.get())
+                    break;
+                if (file.delete()) {
+                    mDeletedPathnames.add(file.getAbsolutePath());
+                    ++deleted;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG,
+                  "Exception deleting files in "
+                  + mDirectoryPathname,
+                  e);
+        } finally {
+            final int deletedCount = mDeletedCount.addAndGet(deleted);
+            mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onProgress(deletedCount, mTotalCount);
+                    }
+                });
+
+            // The last batch finishes up even if this one failed.
+            if (mPendingBatches.decrementAndGet() == 0)
+                finish();
+        }
+    }
+
+    /**
+     * Remove the MediaStore rows and the now empty directories, and
+     * report the final count.  A later deletion may start once this
+     * returns, even if it failed.
+     */
+    private void finish() {
+        final boolean cancelled = mCancelled.get();
+        final int deletedCount = mDeletedCount.get();
+        final boolean allDeleted = !cancelled && deletedCount == mTotalCount;
+        try {
+            deleteMediaStoreRows(allDeleted);
+
+            if (allDeleted) {
+                DownloadManifest.getFile(mDirectoryPathname).delete();
+                deleteEmptyDirectories(new File(mDirectoryPathname));
+            }
+        } catch (Exception e) {
+            Log.e(TAG,
+                  "Exception finishing the deletion of "
+                  + mDirectoryPathname,
+                  e);
+        } finally {
+            Log.d(TAG,
+                  "deleted "
+                  + deletedCount
+                  + " of "
+                  + mTotalCount
+                  + " files in "
+                  + mDirectoryPathname
+                  + (cancelled ? " (cancelled)" : ""));
+
+            mRunning.set(false);
+            mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onComplete(deletedCount, cancelled);
+                    }
+                });
+        }
+    }
+
+    /**
+     * Remove the MediaStore rows of the deleted files, which is a
+     * single statement covering the whole directory if @a allDeleted
+     * is true, else one per chunk of deleted files, so the rows of
+     * the files that couldn't be deleted are kept.
+     */
+    private void deleteMediaStoreRows(boolean allDeleted) {
+        if (allDeleted) {
+            String prefix = new File(mDirectoryPathname).getAbsolutePath()
+                + File.separator;
+            mContentResolver.delete
+                (MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                 "_data LIKE ? ESCAPE '\\'",
+                 new String[] { escapeLike(prefix) + "%" });
+        } else {
+            List<String> pathnames = new ArrayList<>(mDeletedPathnames);
+            for (int i = 0; i < pathnames.size(); i += MAX_SQL_ARGS) {
+                List<String> chunk =
+                    pathnames.subList(i, Math.min(i + MAX_SQL_ARGS,
+                                                  pathnames.size()));
+                StringBuilder selection = new StringBuilder("_data IN (");
+                for (int j = 0; j < chunk.size(); ++j)
+                    selection.append(j == 0 ? "?" : ",?");
+                selection.append(")");
+                mContentResolver.delete
+                    (MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                     selection.toString(),
+                     chunk.toArray(new String[chunk.size()]));
+            }
+        }
+    }
+
+    /**
+     * Escape the wildcards of a SQL LIKE pattern in @a value.
+     */
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\")
+                    .replace("%", "\\%")
+                    .replace("_", "\\_");
+    }
+
+    /**
+     * Delete the @a directory and all its subdirectories, deepest
+     * first, which only succeeds for those that are empty.
+     */
+    private static void deleteEmptyDirectories(File directory) {
+        List<File> directories = new ArrayList<>();
+        ArrayDeque<File> pending = new ArrayDeque<>();
+        pending.add(directory);
+        while (!pending.isEmpty()) {
+            File current = pending.poll();
+            directories.add(current);
+            File[] children = current.listFiles();
+            if (children != null)
+                for (File child : children)
+                    if (child.isDirectory())
+                        pending.add(child);
+        }
+
+        Collections.reverse(directories);
+        for (File current : directories)
+            current.delete();
+    }
+}
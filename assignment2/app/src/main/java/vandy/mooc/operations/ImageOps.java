@@ -16,12 +16,15 @@ public class ImageOps {
 
     /**
      * Constructor will choose either the Started Service or Bound
-     * Service implementation of ImageOps.
+     * Service implementation of ImageOps, both of which keep track of
+     * the progress of downloads via the @a batchTracker.
      */
     public ImageOps(MainActivity activity,
-                    boolean useBoundService) {
+                    boolean useBoundService,
+                    BatchTracker batchTracker) {
         if (useBoundService)
-            mImageOpsImpl = new ImageOpsBoundService(activity);
+            mImageOpsImpl = new ImageOpsBoundService(activity,
+                                                     batchTracker);
         else
             mImageOpsImpl = null; // Placeholder for now...
     }
@@ -73,6 +76,21 @@ public class ImageOps {
                                data);
     }
 
+    /**
+     * Update the UI once for the results handled since the last
+     * call.
+     */
+    public void onResultsHandled() {
+        mImageOpsImpl.onResultsHandled();
+    }
+
+    /**
+     * Called when the MainActivity is finishing.
+     */
+    public void onFinishing() {
+        mImageOpsImpl.onFinishing();
+    }
+
     /**
      * Called by the ImageOps constructor and after a runtime
      * configuration change occurs to finish the initialization steps.
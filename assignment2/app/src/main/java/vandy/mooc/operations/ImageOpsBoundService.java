@@ -1,6 +1,9 @@
 package vandy.mooc.operations;
 
 import vandy.mooc.activities.MainActivity;
+import vandy.mooc.download.DownloadScheduler;
+import vandy.mooc.download.OutputFormat;
+import vandy.mooc.download.RetryPolicy;
 import vandy.mooc.services.DownloadImagesBoundService;
 import vandy.mooc.utils.RequestMessage;
 import vandy.mooc.utils.Utils;
@@ -22,6 +25,49 @@ import android.util.Log;
  * Template Method pattern.
  */
 public class ImageOpsBoundService extends ImageOpsImpl {
+    /**
+     * Policy the Service uses to store the downloaded images, i.e.,
+     * the smallest of the original bytes, JPEG and WEBP at quality
+     * 85.
+     */
+    private static final OutputFormat OUTPUT_FORMAT =
+        new OutputFormat(OutputFormat.Mode.ADAPTIVE, 85);
+
+    /**
+     * Ceiling on the size of a downloaded image, beyond which the
+     * Service aborts the download.
+     */
+    private static final long MAX_IMAGE_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Policy the Service uses to retry failed downloads, i.e., up to
+     * 3 attempts with a jittered backoff of 0.5 to 8 seconds, and to
+     * hedge slow ones.
+     */
+    private static final RetryPolicy RETRY_POLICY =
+        new RetryPolicy(3, 500, 8000, true);
+
+    /**
+     * True if the Service downloads the images with its non-blocking
+     * NIO engine, which scales to large batches on a few threads,
+     * rather than one thread per download.
+     */
+    private static final boolean USE_NIO_ENGINE = false;
+
+    /**
+     * How many of our downloads the Service starts per turn relative
+     * to the other clients bound to it.
+     */
+    private static final int CLIENT_WEIGHT = 1;
+
+    /**
+     * Largest dimension in pixels of the thumbnail the Service sends
+     * with each reply, which the gallery shows without reading the
+     * image file, or 0 for none.  It's kept small so each reply fits
+     * comfortably in a Binder transaction.
+     */
+    private static final int THUMBNAIL_SIZE = 160;
+
     /**
      * Reference to the reply Messenger that's passed to the
      * DownloadImagesBoundService and used to return image results via
@@ -55,6 +101,13 @@ public class ImageOpsBoundService extends ImageOpsImpl {
                 // in mRequestMessengerRef.
                 // TODO -- you fill in here.
                 mRequestMessengerRef = new Messenger(binder);
+
+                // Collect the results of downloads that completed
+                // while we couldn't receive them, e.g., because the
+                // Service's process was killed and restarted, which
+                // lets the batch reach allDownloadsComplete().
+                sendRequest(RequestMessage.Operation.RESUME,
+                            Uri.EMPTY);
             }
 
             /**
@@ -75,8 +128,9 @@ public class ImageOpsBoundService extends ImageOpsImpl {
     /**
      * Constructor initializes the Reply Messenger.
      */
-    public ImageOpsBoundService(MainActivity activity) {
-        super(activity);
+    public ImageOpsBoundService(MainActivity activity,
+                                BatchTracker batchTracker) {
+        super(activity, batchTracker);
 
         // Initialize the Reply Messenger.
         mReplyMessenger = 
@@ -93,8 +147,11 @@ public class ImageOpsBoundService extends ImageOpsImpl {
             // that can download an image from the URL given by the
             // user.  
             // TODO - you fill in here.
-            Context context = mActivity.get();
-            Intent intent = DownloadImagesBoundService.makeIntent(context);
+            // Bind with the Application context, so the binding
+            // outlives the Activity across configuration changes.
+            Context context = mActivity.get().getApplicationContext();
+            Intent intent = DownloadImagesBoundService.makeIntent(context,
+                                                               USE_NIO_ENGINE);
 
             Log.d(TAG, "calling bindService()");
 
@@ -113,7 +170,8 @@ public class ImageOpsBoundService extends ImageOpsImpl {
             Log.d(TAG, "calling unbindService()");
             // Unbind from the Service.
             // TODO -- you fill in here.
-            mActivity.get().unbindService(mServiceConnection);
+            mActivity.get().getApplicationContext()
+                .unbindService(mServiceConnection);
 
             // Set this field to null to trigger a call to
             // bindService() next time bindService() is called.
@@ -123,11 +181,13 @@ public class ImageOpsBoundService extends ImageOpsImpl {
     }
 
     /**
-     * Start a download.  Plays the fole of the "Primitive Operation"
-     * (a.k.a., "Hook Method") in the Template Method pattern.
+     * Start a download with the given @a priority.  Plays the fole
+     * of the "Primitive Operation" (a.k.a., "Hook Method") in the
+     * Template Method pattern.
      */
     @Override
-    protected void startDownload(Uri url) {
+    protected void startDownload(Uri url,
+                                 int priority) {
         if (mRequestMessengerRef == null) 
             Utils.showToast(mActivity.get(),
                             "not bound to the service");
@@ -141,7 +201,13 @@ public class ImageOpsBoundService extends ImageOpsImpl {
                     (OperationType.DOWNLOAD_IMAGE.ordinal(),
                      url,
                      mDirectoryPathname,
+                     OUTPUT_FORMAT,
                      mReplyMessenger);
+                requestMessage.setMaxImageBytes(MAX_IMAGE_BYTES);
+                requestMessage.setRetryPolicy(RETRY_POLICY);
+                requestMessage.setClientWeight(CLIENT_WEIGHT);
+                requestMessage.setPriority(priority);
+                requestMessage.setThumbnailSize(THUMBNAIL_SIZE);
 
                 Log.d(TAG,
                       "sending a request message to DownloadImagesBoundService for "
@@ -155,4 +221,82 @@ public class ImageOpsBoundService extends ImageOpsImpl {
             }
         }
     }
+
+    /**
+     * Ask the DownloadImagesBoundService to prefetch an image.
+     * Plays the role of a "Hook Method" in the Template Method
+     * pattern.
+     */
+    @Override
+    protected void prefetch(Uri url) {
+        sendRequest(RequestMessage.Operation.PREFETCH, url);
+    }
+
+    /**
+     * Ask the DownloadImagesBoundService to cancel the prefetch of an
+     * image.  Plays the role of a "Hook Method" in the Template
+     * Method pattern.
+     */
+    @Override
+    protected void cancelPrefetch(Uri url) {
+        sendRequest(RequestMessage.Operation.CANCEL_PREFETCH, url);
+    }
+
+    /**
+     * Ask the DownloadImagesBoundService to change the priority of a
+     * download that's waiting to start.  Plays the role of a "Hook
+     * Method" in the Template Method pattern.
+     */
+    @Override
+    protected void updatePriority(Uri url,
+                                  int priority) {
+        sendRequest(RequestMessage.Operation.UPDATE_PRIORITY,
+                    url,
+                    priority);
+    }
+
+    /**
+     * Send a request for the @a operation on the @a url to the
+     * DownloadImagesBoundService, as sendRequest() does, with the
+     * normal priority.
+     */
+    private void sendRequest(RequestMessage.Operation operation,
+                             Uri url) {
+        sendRequest(operation,
+                    url,
+                    DownloadScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Send a request for the @a operation on the @a url to the
+     * DownloadImagesBoundService, which only replies to a RESUME
+     * request.  The request is dropped if we're not bound to the
+     * Service.
+     */
+    private void sendRequest(RequestMessage.Operation operation,
+                             Uri url,
+                             int priority) {
+        if (mRequestMessengerRef == null)
+            return;
+
+        RequestMessage requestMessage =
+            RequestMessage.makeRequestMessage
+            (OperationType.DOWNLOAD_IMAGE.ordinal(),
+             url,
+             mDirectoryPathname,
+             mReplyMessenger);
+        requestMessage.setOperation(operation);
+        requestMessage.setMaxImageBytes(MAX_IMAGE_BYTES);
+        requestMessage.setPriority(priority);
+        try {
+            mRequestMessengerRef.send(requestMessage.getMessage());
+        } catch (Exception e) {
+            Log.e(TAG,
+                  "Exception sending "
+                  + operation
+                  + " request for "
+                  + url,
+                  e);
+        }
+    }
 }
@@ -1,18 +1,22 @@
 package vandy.mooc.operations;
 
-import java.io.File;
 import java.lang.ref.WeakReference;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import vandy.mooc.R;
 import vandy.mooc.activities.DisplayImagesActivity;
 import vandy.mooc.activities.MainActivity;
+import vandy.mooc.download.DownloadScheduler;
+import vandy.mooc.utils.FrameTimeMonitor;
+import vandy.mooc.utils.ImageFeed;
 import vandy.mooc.utils.ReplyMessage;
 import vandy.mooc.utils.ServiceResultHandler;
 import vandy.mooc.utils.Utils;
-import android.app.ActionBar.LayoutParams;
 import android.app.Activity;
 import android.content.Intent;
 import android.net.Uri;
@@ -22,10 +26,11 @@ import android.os.Handler;
 import android.util.Log;
 import android.view.View;
 import android.webkit.URLUtil;
+import android.widget.AbsListView;
+import android.widget.AdapterView;
 import android.widget.EditText;
-import android.widget.LinearLayout;
+import android.widget.ListView;
 import android.widget.ProgressBar;
-import android.widget.TextView;
 
 /**
  * This abstract class defines all the image-related operations.  It
@@ -48,6 +53,22 @@ public abstract class ImageOpsImpl {
         DOWNLOAD_IMAGE
     }
 
+    /**
+     * If true the DisplayImagesActivity is started as soon as the
+     * first image has been downloaded and then shows each later image
+     * as it arrives, rather than being started after all downloads
+     * are complete.
+     */
+    static final boolean STREAMING_GALLERY = true;
+
+    /**
+     * If true each valid URL is prefetched as soon as it's added, so
+     * the network isn't idle while the user types in more URLs.
+     * This is opt-in since it may download images the user removes
+     * again before pressing "Download".
+     */
+    static final boolean PREFETCH_ON_ADD = false;
+
     /**
      * Used to enable garbage collection.
      */
@@ -59,9 +80,9 @@ public abstract class ImageOpsImpl {
     protected WeakReference<EditText> mUrlEditText;
 
     /**
-     * Linear layout to store TextViews displaying URLs.
+     * ListView displaying the URLs and their states.
      */
-    protected WeakReference<LinearLayout> mLinearLayout;
+    protected WeakReference<ListView> mUrlListView;
 
     /**
      * Display progress to the user.
@@ -69,40 +90,74 @@ public abstract class ImageOpsImpl {
     protected WeakReference<ProgressBar> mLoadingProgressBar;
 
     /**
-     * Stores the running total number of images downloaded that must
-     * be handled by ServiceResultHandler.
+     * Keeps track of the state of each URL in the current batch,
+     * which can be read from any thread.
      */
-    protected int mNumImagesToHandle;
-    
-    /**
-     * Stores the running total number of images that have been
-     * handled by the ServiceResultHandler.
-     */
-    protected int mNumImagesHandled;
+    protected BatchTracker mBatchTracker;
     
     /**
      * Stores the directory to be used for all downloaded images.
      */
     protected String mDirectoryPathname = null;
+
+    /**
+     * True if the DisplayImagesActivity has already been started in
+     * streaming mode for the current batch.
+     */
+    protected boolean mGalleryStarted;
+
+    /**
+     * Deletes the downloaded images in the background, or null if
+     * no deletion has been started.
+     */
+    protected ImageDeleter mImageDeleter;
     
     /**
-     * Array of Strings that represent the valid URLs that have
-     * been entered.
+     * Insertion-ordered set of the valid URLs that have been entered,
+     * which also renders them in the ListView.
      */
-    protected ArrayList<String> mUrlList;
+    protected UrlListAdapter mUrlList;
+
+    /**
+     * The running URLs whose rows were on screen when the ListView
+     * last scrolled, whose downloads have been promoted.
+     */
+    protected Set<String> mVisibleUrls = new HashSet<>();
+
+    /**
+     * The first and last positions of the rows on screen when the
+     * ListView last scrolled.
+     */
+    protected int mFirstVisiblePosition = -1;
+    protected int mLastVisiblePosition = -1;
 
     /**
      * Stores an instance of ServiceResultHandler.
      */
     protected Handler mServiceResultHandler = null;
 
+    /**
+     * The URLs that failed to download since the results were last
+     * handled, which are summarized in one toast.
+     */
+    protected List<String> mFailedUrls = new ArrayList<>();
+
+    /**
+     * Measures the frames drawn while a batch is downloading.
+     */
+    protected FrameTimeMonitor mFrameTimeMonitor = new FrameTimeMonitor();
+
     /**
      * Constructor initializes the fields.
      */
-    public ImageOpsImpl(MainActivity activity) {
+    public ImageOpsImpl(MainActivity activity,
+                        BatchTracker batchTracker) {
         // Initialize the WeakReference.
         mActivity = new WeakReference<>(activity);
 
+        // Store the BatchTracker retained by the Activity.
+        mBatchTracker = batchTracker;
+
         // Initialize the ServiceResultHandler.
         mServiceResultHandler = 
             new ServiceResultHandler(mActivity.get());
@@ -118,7 +173,7 @@ public abstract class ImageOpsImpl {
             + "/" + timestamp + "/";
         
         // Initialize the list of URLs.
-        mUrlList = new ArrayList<String>();
+        mUrlList = new UrlListAdapter(mBatchTracker);
 
         // Finish the initialization steps.
         initializeViewFields();
@@ -139,26 +194,102 @@ public abstract class ImageOpsImpl {
         mUrlEditText = new WeakReference<> 
             ((EditText) mActivity.get().findViewById(R.id.url));
 
-        // Store the linear layout displaying URLs entered.
-        mLinearLayout = new WeakReference<> 
-            ((LinearLayout) mActivity.get().findViewById(R.id.linearLayout));
+        // Store the ListView displaying URLs entered.
+        mUrlListView = new WeakReference<> 
+            ((ListView) mActivity.get().findViewById(R.id.urlList));
+
+        // (Re)attach the URL list to the ListView, which redisplays
+        // the URLs entered thus far.
+        mUrlList.setListView(mUrlListView.get());
+
+        // Remove a URL when the user long-presses it.
+        mUrlListView.get().setOnItemLongClickListener
+            (new AdapterView.OnItemLongClickListener() {
+                @Override
+                public boolean onItemLongClick(AdapterView<?> parent,
+                                               View view,
+                                               int position,
+                                               long id) {
+                    String url = mUrlList.getItem(position);
+                    if (mUrlList.getState(url) == UrlState.RUNNING)
+                        return false;
+
+                    removeUrl(url);
+                    return true;
+                }
+            });
+
+        // Download the images of the rows on screen first.
+        mUrlListView.get().setOnScrollListener
+            (new AbsListView.OnScrollListener() {
+                @Override
+                public void onScrollStateChanged(AbsListView view,
+                                                 int scrollState) {
+                }
+
+                @Override
+                public void onScroll(AbsListView view,
+                                     int firstVisibleItem,
+                                     int visibleItemCount,
+                                     int totalItemCount) {
+                    updateVisiblePriorities(firstVisibleItem,
+                                            firstVisibleItem
+                                            + visibleItemCount
+                                            - 1);
+                }
+            });
     }
 
     /**
-     * Reset the non-view fields (e.g., URLs and counters) and
-     * redisplay linear layout.
+     * Promote the downloads of the running URLs whose rows are now on
+     * screen between the @a firstPosition and the @a lastPosition,
+     * and demote those whose rows scrolled away.
      */
-    private void resetNonViewFields() {
-        // Reset the number of images to handle and which have been
-        // handled.
-        mNumImagesHandled = 0;
-        mNumImagesToHandle = 0;
+    private void updateVisiblePriorities(int firstPosition,
+                                         int lastPosition) {
+        if (firstPosition == mFirstVisiblePosition
+            && lastPosition == mLastVisiblePosition)
+            return;
+        mFirstVisiblePosition = firstPosition;
+        mLastVisiblePosition = lastPosition;
+
+        Set<String> visibleUrls = new HashSet<>();
+        for (int position = Math.max(0, firstPosition);
+             position <= lastPosition && position < mUrlList.getCount();
+             ++position) {
+            String url = mUrlList.getItem(position);
+            if (mUrlList.getState(url) == UrlState.RUNNING)
+                visibleUrls.add(url);
+        }
 
-        // Clear the URL list.
+        for (String url : visibleUrls)
+            if (!mVisibleUrls.contains(url))
+                updatePriority(Uri.parse(url),
+                               DownloadScheduler.PRIORITY_HIGH);
+        for (String url : mVisibleUrls)
+            if (!visibleUrls.contains(url)
+                && mUrlList.getState(url) == UrlState.RUNNING)
+                updatePriority(Uri.parse(url),
+                               DownloadScheduler.PRIORITY_LOW);
+        mVisibleUrls = visibleUrls;
+    }
+
+    /**
+     * Reset the non-view fields (e.g., URLs and their states) and
+     * redisplay the ListView.
+     */
+    private void resetNonViewFields() {
+        // Clear the URL list and the BatchTracker, which also
+        // redisplays the (now empty) ListView.
         mUrlList.clear();
-        
-        // Redisplay the URLs, which should now be empty.
-        displayUrls();
+
+        // The next batch starts its own gallery.
+        mGalleryStarted = false;
+
+        // The next batch's rows are prioritized afresh.
+        mVisibleUrls.clear();
+        mFirstVisiblePosition = -1;
+        mLastVisiblePosition = -1;
     }
         
     /**
@@ -180,63 +311,45 @@ public abstract class ImageOpsImpl {
         final String url =
             mUrlEditText.get().getText().toString();
 
-        if (URLUtil.isValidUrl(url)) {
-            // Add valid URL to running list for download.
-            mUrlList.add
-                (mUrlEditText.get().getText().toString());
-
-            // (Re)display all the URLs.
-            displayUrls();
-    	} else 
+        if (!URLUtil.isValidUrl(url))
             Utils.showToast(mActivity.get(),
                             "Invalid URL "
                             + url);
+        // Add valid URL to running list for download, which also
+        // displays it in the ListView.
+        else if (!mUrlList.add(url))
+            Utils.showToast(mActivity.get(),
+                            "URL "
+                            + url
+                            + " was already added");
+        else {
+            // Clear the URL input view.
+            mUrlEditText.get().setText("");
+
+            // Warm up the download while the user keeps typing.
+            if (PREFETCH_ON_ADD)
+                prefetch(Uri.parse(url));
+        }
     }
 
     /**
-     * Remove a URL that couldn't be downloaded.
+     * Remove a URL from the list of URLs.
      */
     private void removeUrl(String url) {
-        // Check if passed URL is in the list of URLs.
-        if (mUrlList.contains(url)) {
-            // Remove the invalid URL from the list.
-            mUrlList.remove(url);
-        } else {
+        // Remove the URL from the list (and the ListView).
+        if (!mUrlList.remove(url)) {
             // Warn caller that URL was not in the list.
             Log.w(TAG, "RemoveUrl() - passed URL ("
                     + (url == null ? "null" : url.toString())
                     + ") is not in URL list.");
-        }
+        } else if (PREFETCH_ON_ADD)
+            // Don't waste bandwidth on a URL that's gone.
+            cancelPrefetch(Uri.parse(url));
 
         // If there are no more downloads pending dismiss the progress
         // bar.
         if (allDownloadsComplete())
             mLoadingProgressBar.get().setVisibility(View.INVISIBLE);
-
-        // (Re)display the URLs provided by the user thus far.
-        displayUrls();
-    }
-
-    /**
-     * Display the URLs provided by the user thus far.
-     */
-    private void displayUrls() {
-        // First remove all URL views in the parent LinearLayout
-        mLinearLayout.get().removeAllViews();
-
-        // Add a each URL list entry as a text view child of the
-        // parent LinearLayout.
-        for (String url: mUrlList) {
-            TextView urlTextView = new TextView(mActivity.get());
-            urlTextView.setLayoutParams
-                (new LayoutParams(LayoutParams.WRAP_CONTENT,
-                                  LayoutParams.WRAP_CONTENT));
-            urlTextView.setText(url);
-            mLinearLayout.get().addView(urlTextView);
-        }
-
-        // Clear the URL input view.
-        mUrlEditText.get().setText("");
     }
 
     /**
@@ -255,23 +368,66 @@ public abstract class ImageOpsImpl {
             // Make the progress bar visible.
             mLoadingProgressBar.get().setVisibility(View.VISIBLE);
 
-            // Keep track of number of images to download that must be
-            // displayed.
-            mNumImagesToHandle = mUrlList.size();
-
-            // Iterate over each URL and start the download.
-            for (String urlString : mUrlList) 
-                startDownload(Uri.parse(urlString));
+            // Measure the frames drawn while the batch downloads.
+            mFrameTimeMonitor.start();
+
+            // Iterate over each URL that isn't already downloading
+            // (or downloaded) and start the download, which the
+            // BatchTracker keeps track of.  The rows on screen are
+            // downloaded first.
+            ListView listView = mUrlListView.get();
+            int firstPosition = listView.getFirstVisiblePosition();
+            int lastPosition = listView.getLastVisiblePosition();
+            int position = 0;
+            for (String urlString : mUrlList.getUrls()) {
+                boolean visible = position >= firstPosition
+                    && position <= lastPosition;
+                ++position;
+                if (!mUrlList.setState(urlString, UrlState.RUNNING))
+                    continue;
+                if (visible)
+                    mVisibleUrls.add(urlString);
+                startDownload(Uri.parse(urlString),
+                              visible
+                              ? DownloadScheduler.PRIORITY_HIGH
+                              : DownloadScheduler.PRIORITY_NORMAL);
+            }
+            mFirstVisiblePosition = firstPosition;
+            mLastVisiblePosition = lastPosition;
         }
     }
 
     /**
-     * Start a download.  Plays the role of a "Primitive Operation"
-     * (aka "Hook Method") in the Template Method pattern, which is
-     * needed since the means for passing requests to a Started
-     * Service are different than for a Bound Service.
+     * Start a download with the given @a priority.  Plays the role of
+     * a "Primitive Operation" (aka "Hook Method") in the Template
+     * Method pattern, which is needed since the means for passing
+     * requests to a Started Service are different than for a Bound
+     * Service.
      */
-    protected abstract void startDownload(Uri url);
+    protected abstract void startDownload(Uri url,
+                                          int priority);
+
+    /**
+     * Change the priority of a download that's waiting to start.
+     * Plays the role of a "Hook Method" in the Template Method
+     * pattern, which does nothing by default.
+     */
+    protected void updatePriority(Uri url,
+                                  int priority) { /* no op */ }
+
+    /**
+     * Prefetch an image at low priority.  Plays the role of a "Hook
+     * Method" in the Template Method pattern, which does nothing by
+     * default.
+     */
+    protected void prefetch(Uri url) { /* no op */ }
+
+    /**
+     * Cancel the prefetch of an image.  Plays the role of a "Hook
+     * Method" in the Template Method pattern, which does nothing by
+     * default.
+     */
+    protected void cancelPrefetch(Uri url) { /* no op */ }
 
     /**
      * Handle the results returned from the Service.
@@ -279,24 +435,55 @@ public abstract class ImageOpsImpl {
     public void doResult(int requestCode,
                          int resultCode,
                          Bundle data) {
-        // Increment the number of images handled regardless of
-        // whether this result succeeded or failed to download and
-        // image.
-        ++mNumImagesHandled;
-
         if (resultCode == Activity.RESULT_CANCELED) 
             // Handle a failed download.
             handleDownloadFailure(data);
-        else /* resultCode == Activity.RESULT_OK) */
+        else { /* resultCode == Activity.RESULT_OK) */
             // Handle a successful download.
             Log.d(TAG,
                   "received image at URI "
                   + ReplyMessage.getImagePathname(data));
+            final String url =
+                ReplyMessage.getImageURL(data).toString();
+            mUrlList.setState(url,
+                              UrlState.DONE);
+            logElapsedTime(url);
+
+            // Pass the image and its thumbnail (if the Service sent
+            // one) to the gallery (if it's shown).
+            ImageFeed.get(mDirectoryPathname).publish
+                (ReplyMessage.getImagePathname(data),
+                 ReplyMessage.getThumbnail(data));
+
+            // Show the gallery as soon as the first image arrives.
+            if (STREAMING_GALLERY)
+                startStreamingGallery();
+        }
                 
         // Try to display all images received successfully.
         tryToDisplayImages(data);
     }
 
+    /**
+     * Launch an Activity that displays the images received thus far
+     * and then each later image as it arrives, unless it's already
+     * been launched for this batch.
+     */
+    private void startStreamingGallery() {
+        if (mGalleryStarted)
+            return;
+        mGalleryStarted = true;
+
+        Log.d(TAG,
+              "starting streaming DisplayImageActivity at "
+              + mDirectoryPathname);
+
+        // Launch Activity to display the results as they arrive.
+        mActivity.get().startActivity
+            (DisplayImagesActivity.makeIntent(mDirectoryPathname,
+                                              true));
+    }
+
     /**
      * Launch an Activity to display all the images that were received
      * successfully if all downloads are complete.
@@ -308,15 +495,26 @@ public abstract class ImageOpsImpl {
             // Dismiss the progress bar.
             mLoadingProgressBar.get().setVisibility(View.INVISIBLE);
 
+            logFrameTimes();
+
             // Initialize state for the next run.
             resetNonViewFields();
 
-            // Only start the DisplayImageActivity if the image folder
-            // exists and also contains at least 1 image to display.
-            // Note that if the directory is empty, File.listFiles()
-            // returns null.
-            File file = new File(mDirectoryPathname);
-            if (file.isDirectory() && file.listFiles() != null) {
+            // The feed is forgotten once no gallery is subscribed to
+            // it, since the manifest records the images of the batch.
+            ImageFeed feed = ImageFeed.get(mDirectoryPathname);
+            int imageCount = feed.size();
+            feed.finish();
+
+            // The streaming gallery (if any) is already showing the
+            // images.
+            if (STREAMING_GALLERY)
+                return;
+
+            // Only start the DisplayImageActivity if at least 1 image
+            // has been received, which the ImageFeed knows without
+            // touching the file system.
+            if (imageCount > 0) {
                 // Create an Activity for displaying the images.
                 final Intent intent =
                         DisplayImagesActivity.makeIntent
@@ -332,6 +530,46 @@ public abstract class ImageOpsImpl {
         }
     }  
 
+    /**
+     * Stop measuring the frames drawn during the batch and log them
+     * with the process the download Service runs in, so the jank can
+     * be compared with the Service in and out of the app's process.
+     */
+    private void logFrameTimes() {
+        mFrameTimeMonitor.stop();
+        Log.d(TAG,
+              "frame times with the Service in process "
+              + mActivity.get().getString(R.string.download_process)
+              + ": "
+              + mFrameTimeMonitor);
+    }
+
+    /**
+     * Update the UI once for the results handled since the last
+     * call, which summarizes their failures in one toast rather
+     * than one toast each.
+     */
+    public void onResultsHandled() {
+        if (mFailedUrls.isEmpty())
+            return;
+        Utils.showToast(mActivity.get(),
+                        summarizeFailures(mFailedUrls));
+        mFailedUrls.clear();
+    }
+
+    /**
+     * Returns a message that summarizes the @a failedUrls for one
+     * toast.
+     */
+    private static String summarizeFailures(List<String> failedUrls) {
+        return failedUrls.size() == 1
+            ? "image at " + failedUrls.get(0) + " failed to download!"
+            : failedUrls.size()
+              + " images failed to download, including "
+              + failedUrls.get(0)
+              + "!";
+    }
+
     /**
      * Handle failure to download an image.
      */
@@ -339,14 +577,14 @@ public abstract class ImageOpsImpl {
         // Extract the URL from the message.
         final Uri url =
             ReplyMessage.getImageURL(data);
-            
-        Utils.showToast(mActivity.get(),
-                        "image at " 
-                        + url.toString()
-                        + " failed to download!");
 
-        // Remove the URL that failed from the UI.
-        removeUrl(url.toString());
+        // Report it with the other failures of the batch.
+        mFailedUrls.add(url.toString());
+
+        // Mark the URL that failed in the UI.
+        mUrlList.setState(url.toString(),
+                          UrlState.FAILED);
+        logElapsedTime(url.toString());
 
         if (allDownloadsComplete()) {
             // Dismiss the progress bar.
@@ -354,70 +592,104 @@ public abstract class ImageOpsImpl {
         }
     }
 
+    /**
+     * Log how long the download of the @a url took.
+     */
+    private void logElapsedTime(String url) {
+        BatchTracker.UrlRecord record =
+            mBatchTracker.getRecord(url);
+        if (record != null)
+            Log.d(TAG,
+                  url
+                  + " finished as "
+                  + record.getState()
+                  + " after "
+                  + record.getElapsedTime()
+                  + " ms ("
+                  + mBatchTracker.getFinishedCount()
+                  + " finished, "
+                  + mBatchTracker.getCount(UrlState.RUNNING)
+                  + " running)");
+    }
+
     /**
      * Returns true if all the downloads have completed, else false.
      */
     public boolean allDownloadsComplete() {
-        return mNumImagesHandled == mNumImagesToHandle
-            && mNumImagesHandled > 0;
+        return mBatchTracker.allDownloadsComplete();
     }
 
     /**
      * Returns true if there are any downloads in progress, else false.
      */
     public boolean downloadsInProgress() {
-        return mNumImagesToHandle > 0;
+        return mBatchTracker.downloadsInProgress();
     }
 
     /**
-     * Delete all the downloaded images.
+     * Delete all the downloaded images in the background, or cancel
+     * the deletion if it's already running.
      */
     public void deleteDownloadedImages() {
-        // Delete all the downloaded image.
-        int fileCount = deleteFiles(mDirectoryPathname, 
-                                    0);
+        if (mImageDeleter != null && mImageDeleter.isRunning()) {
+            mImageDeleter.cancel();
+            Utils.showToast(mActivity.get(),
+                            "cancelling deletion of downloaded images");
+            return;
+        }
 
-        // Indicate how many files were deleted.
-        Utils.showToast(mActivity.get(),
-                        fileCount
-                        + " downloaded image"
-                        + (fileCount == 1 ? " was" : "s were")
-                        + " deleted.");
+        // The deleted images must no longer be shown by a gallery.
+        ImageFeed.clear(mDirectoryPathname);
 
         // Reset the non-view fields for the next run.
         resetNonViewFields();
+
+        // Display the progress bar while the images are deleted.
+        mLoadingProgressBar.get().setVisibility(View.VISIBLE);
+
+        mImageDeleter = new ImageDeleter
+            (mActivity.get(),
+             mDirectoryPathname,
+             new ImageDeleter.Callback() {
+                 @Override
+                 public void onProgress(int deletedCount,
+                                        int totalCount) {
+                     Log.d(TAG,
+                           "deleted "
+                           + deletedCount
+                           + " of "
+                           + totalCount
+                           + " downloaded images");
+                 }
+
+                 @Override
+                 public void onComplete(int fileCount,
+                                        boolean cancelled) {
+                     // Dismiss the progress bar unless there are
+                     // downloads in progress.
+                     if (!downloadsInProgress())
+                         mLoadingProgressBar.get().setVisibility(View.INVISIBLE);
+
+                     // Indicate how many files were deleted.
+                     Utils.showToast(mActivity.get(),
+                                     fileCount
+                                     + " downloaded image"
+                                     + (fileCount == 1 ? " was" : "s were")
+                                     + " deleted"
+                                     + (cancelled ? " before cancelling." : "."));
+                 }
+             });
+        mImageDeleter.start();
     }
 
     /**
-     * A helper method that recursively deletes files in a specified
-     * directory.
+     * Called when the MainActivity is finishing, so the replies the
+     * ServiceResultHandler holds, and any that arrive later, are
+     * dropped rather than kept for an Activity that won't return.
      */
-    private Integer deleteFiles(String directoryPathname,
-                                int fileCount) {
-        File imageDirectory = new File(directoryPathname);        
-        File files[] = imageDirectory.listFiles();
-
-        if (files == null) 
-            return fileCount;
-
-        // Android does not allow you to delete a directory with child
-        // files, so we need to write code that handles this
-        // recursively.
-        for (File f : files) {          
-            if (f.isDirectory()) 
-                fileCount += deleteFiles(f.toString(), 
-                                         fileCount);
-            Log.d(TAG,
-                  "deleting file "
-                  + f.toString()
-                  + " with count "
-                  + fileCount);
-            ++fileCount;
-            f.delete();
-        }
-
-        imageDirectory.delete();
-        return fileCount;
+    public void onFinishing() {
+        if (mServiceResultHandler != null)
+            ((ServiceResultHandler) mServiceResultHandler).onOwnerFinishing();
     }
 
     /**
@@ -436,7 +708,8 @@ public abstract class ImageOpsImpl {
                     .onConfigurationChange(mActivity.get());
         }
 
-        // (Re)initialize all the View fields.
+        // (Re)initialize all the View fields, which also redisplays
+        // the URLs.
         initializeViewFields();
 
         // If the content is non-null then we're done, so set the
@@ -452,9 +725,8 @@ public abstract class ImageOpsImpl {
 
             Log.d(TAG,
                   "Not all images have finished downloading");
-        }
-
-        // (Re)display the URLs.
-        displayUrls();
+        } else if (mImageDeleter != null && mImageDeleter.isRunning())
+            // Display the progress bar while images are deleted.
+            mLoadingProgressBar.get().setVisibility(View.VISIBLE);
     }
 }
@@ -0,0 +1,295 @@
+package vandy.mooc.operations;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import android.content.res.ColorStateList;
+import android.graphics.Color;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * The Adapter that displays the URLs entered by the user in a
+ * ListView.  The URLs are kept in an insertion-ordered hash-backed
+ * set, so adding, finding, and removing a URL doesn't depend on how
+ * many URLs have been entered, and their states are kept in a
+ * BatchTracker.  Since the ListView recycles its rows only the
+ * visible rows are ever bound, and a change to the state of a single
+ * URL rebinds just that row (if it's on screen).
+ */
+public class UrlListAdapter extends BaseAdapter {
+    /**
+     * A URL and its position in the list.
+     */
+    private static class Entry {
+        /**
+         * The URL entered by the user and its state.
+         */
+        final BatchTracker.UrlRecord mRecord;
+
+        /**
+         * Position of this Entry in mRows, which is only valid while
+         * mRows isn't stale.
+         */
+        int mPosition;
+
+        Entry(BatchTracker.UrlRecord record) {
+            mRecord = record;
+        }
+    }
+
+    /**
+     * Keeps track of the state of each URL.
+     */
+    private final BatchTracker mBatchTracker;
+
+    /**
+     * Maps each URL to its Entry in insertion order.
+     */
+    private final LinkedHashMap<String, Entry> mEntries =
+        new LinkedHashMap<>();
+
+    /**
+     * Positional index of the Entries used by the ListView.  Appends
+     * keep it up-to-date, whereas removals just mark it stale so it's
+     * rebuilt once the next time the ListView asks for a row.
+     */
+    private final ArrayList<Entry> mRows = new ArrayList<>();
+
+    /**
+     * True if mRows must be rebuilt from mEntries.
+     */
+    private boolean mRowsStale = false;
+
+    /**
+     * The ListView this adapter is attached to, which is used to
+     * rebind a single visible row.
+     */
+    private WeakReference<ListView> mListView =
+        new WeakReference<>(null);
+
+    /**
+     * The text colors used for rows in the QUEUED state.
+     */
+    private ColorStateList mDefaultTextColors;
+
+    /**
+     * Constructor initializes the field.
+     */
+    public UrlListAdapter(BatchTracker batchTracker) {
+        mBatchTracker = batchTracker;
+    }
+
+    /**
+     * Attach the adapter to the @a listView, e.g., after a runtime
+     * configuration change.
+     */
+    public void setListView(ListView listView) {
+        mListView = new WeakReference<>(listView);
+        listView.setAdapter(this);
+    }
+
+    /**
+     * Add the @a url in the QUEUED state.
+     *
+     * @return false if the @a url was already in the list, else true.
+     */
+    public boolean add(String url) {
+        if (mEntries.containsKey(url))
+            return false;
+
+        BatchTracker.UrlRecord record = mBatchTracker.add(url);
+        if (record == null)
+            return false;
+
+        Entry entry = new Entry(record);
+        mEntries.put(url, entry);
+
+        if (!mRowsStale) {
+            entry.mPosition = mRows.size();
+            mRows.add(entry);
+        }
+
+        notifyDataSetChanged();
+        return true;
+    }
+
+    /**
+     * Remove the @a url from the list.
+     *
+     * @return false if the @a url wasn't in the list, else true.
+     */
+    public boolean remove(String url) {
+        if (mEntries.remove(url) == null)
+            return false;
+
+        mBatchTracker.remove(url);
+        mRowsStale = true;
+        notifyDataSetChanged();
+        return true;
+    }
+
+    /**
+     * Remove all the URLs from the list.
+     */
+    public void clear() {
+        mEntries.clear();
+        mBatchTracker.clear();
+        mRows.clear();
+        mRowsStale = false;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Returns true if the @a url is in the list, else false.
+     */
+    public boolean contains(String url) {
+        return mEntries.containsKey(url);
+    }
+
+    /**
+     * Returns the state of the @a url or null if it's not in the list.
+     */
+    public UrlState getState(String url) {
+        Entry entry = mEntries.get(url);
+        return entry == null ? null : entry.mRecord.getState();
+    }
+
+    /**
+     * Move the @a url to the @a state and rebind its row if it's
+     * visible.
+     *
+     * @return false if the @a url wasn't in the list or the
+     *         BatchTracker doesn't allow the transition, else true.
+     */
+    public boolean setState(String url,
+                            UrlState state) {
+        Entry entry = mEntries.get(url);
+        if (entry == null
+            || !mBatchTracker.transition(url, state))
+            return false;
+
+        if (mRowsStale)
+            // The positions are unknown, so let the ListView rebind
+            // all visible rows.
+            notifyDataSetChanged();
+        else
+            refreshRow(entry.mPosition);
+        return true;
+    }
+
+    /**
+     * Returns a snapshot of all URLs in the order they were added.
+     */
+    public List<String> getUrls() {
+        return new ArrayList<>(mEntries.keySet());
+    }
+
+    /**
+     * Returns true if there are no URLs in the list, else false.
+     */
+    public boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Returns the number of URLs in the list.
+     */
+    @Override
+    public int getCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the URL at the given position.
+     */
+    @Override
+    public String getItem(int position) {
+        return getRows().get(position).mRecord.getUrl();
+    }
+
+    /**
+     * Returns the given position as the Id of the URL.
+     */
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    /**
+     * Returns the recycled (or newly created) TextView bound to the
+     * URL at the given position.
+     */
+    @Override
+    public View getView(int position,
+                        View convertView,
+                        ViewGroup parent) {
+        TextView urlTextView;
+        if (convertView == null) {
+            urlTextView = new TextView(parent.getContext());
+            urlTextView.setLayoutParams
+                (new AbsListView.LayoutParams
+                 (AbsListView.LayoutParams.MATCH_PARENT,
+                  AbsListView.LayoutParams.WRAP_CONTENT));
+            if (mDefaultTextColors == null)
+                mDefaultTextColors = urlTextView.getTextColors();
+        } else
+            urlTextView = (TextView) convertView;
+
+        Entry entry = getRows().get(position);
+        urlTextView.setText(entry.mRecord.getUrl());
+
+        switch (entry.mRecord.getState()) {
+        case RUNNING:
+            urlTextView.setTextColor(Color.BLUE);
+            break;
+        case DONE:
+            urlTextView.setTextColor(Color.rgb(0, 128, 0));
+            break;
+        case FAILED:
+            urlTextView.setTextColor(Color.RED);
+            break;
+        default:
+            urlTextView.setTextColor(mDefaultTextColors);
+            break;
+        }
+        return urlTextView;
+    }
+
+    /**
+     * Rebind the row at @a position if it's currently visible.
+     */
+    private void refreshRow(int position) {
+        ListView listView = mListView.get();
+        if (listView == null)
+            return;
+
+        View row =
+            listView.getChildAt(position
+                                - listView.getFirstVisiblePosition());
+        if (row != null)
+            getView(position, row, listView);
+    }
+
+    /**
+     * Returns the positional index of the Entries, rebuilding it if
+     * it's stale.
+     */
+    private ArrayList<Entry> getRows() {
+        if (mRowsStale) {
+            mRows.clear();
+            for (Entry entry : mEntries.values()) {
+                entry.mPosition = mRows.size();
+                mRows.add(entry);
+            }
+            mRowsStale = false;
+        }
+        return mRows;
+    }
+}
@@ -0,0 +1,27 @@
+package vandy.mooc.operations;
+
+/**
+ * The states a URL entered by the user passes through on its way
+ * from the URL list to the DisplayImagesActivity.
+ */
+public enum UrlState {
+    /**
+     * The URL has been added, but its download hasn't started yet.
+     */
+    QUEUED,
+
+    /**
+     * A request to download the URL has been sent to the Service.
+     */
+    RUNNING,
+
+    /**
+     * The image at the URL was downloaded successfully.
+     */
+    DONE,
+
+    /**
+     * The image at the URL couldn't be downloaded.
+     */
+    FAILED
+}
@@ -1,6 +1,9 @@
 package vandy.mooc.services;
 
+import vandy.mooc.download.Log;
+import vandy.mooc.utils.AndroidLogger;
 import android.content.Context;
+import android.app.Service;
 import android.content.Intent;
 import android.os.IBinder;
 import android.os.Messenger;
@@ -10,9 +13,18 @@ import android.os.Messenger;
  * a Message passed to a Request Messenger, stores the image in a file
  * on the local device, and returns the URI to the downloaded image
  * file back to the Activity via the Reply Messenger passed with the
- * original Message.
+ * original Message.  The Service also starts itself while any
+ * download is outstanding, so it isn't destroyed when its clients
+ * unbind, e.g., while MainActivity is stopped to show the gallery,
+ * and stops itself once the last download replies.
  */
 public class DownloadImagesBoundService extends LifecycleLoggingService {
+    /**
+     * Intent extra that selects the non-blocking NIO download engine
+     * rather than one thread per download.
+     */
+    private static final String NIO_ENGINE = "NIO_ENGINE";
+
      /**
      * A RequestHandler that handles request Messages send from the
      * Activity.
@@ -25,6 +37,12 @@ public class DownloadImagesBoundService extends LifecycleLoggingService {
      */
     private Messenger mRequestMessenger = null;
 
+    /**
+     * The startId of the most recent call to onStartCommand(), which
+     * is passed to stopSelf() so a later start isn't stopped early.
+     */
+    private volatile int mLastStartId;
+
     /**
      * Factory method that returns an explicit Intent for downloading
      * an image.
@@ -36,11 +54,25 @@ public class DownloadImagesBoundService extends LifecycleLoggingService {
         return new Intent(context, DownloadImagesBoundService.class);
     }
 
+    /**
+     * Factory method that returns an explicit Intent for downloading
+     * images, which are downloaded by the non-blocking NIO engine if
+     * @a useNioEngine is true.
+     */
+    public static Intent makeIntent(Context context,
+                                    boolean useNioEngine) {
+        return makeIntent(context).putExtra(NIO_ENGINE, useNioEngine);
+    }
+
     /**
      * Hook method called when the Service is created.
      */
     @Override
     public void onCreate() {
+        // Send the log messages of the download core to the Android
+        // logger.
+        Log.setLogger(new AndroidLogger());
+
         // Create a RequestHandler used to handle request Messages
         // sent from an Activity.
     	// TODO -- you fill in here.
@@ -58,13 +90,63 @@ public class DownloadImagesBoundService extends LifecycleLoggingService {
     @Override
     public IBinder onBind(Intent intent) {
         super.onBind(intent);
+
+        // The Service calls onBind() only for the first client, so
+        // the first client selects the engine.  This runs in the
+        // main thread, as does the RequestHandler, so no request has
+        // been handled yet.
+        if (intent.getBooleanExtra(NIO_ENGINE, false))
+            mRequestHandler.useNioEngine();
+
+        // Restart the downloads replayed from the journal now that
+        // the engine won't change.
+        mRequestHandler.restartReplayedDownloads();
+
         // Return the iBinder associated with the Request Messenger.
         return mRequestMessenger.getBinder();
     }
 
     /**
-     * Hook method called when the last client unbinds from the
-     * Service.
+     * Hook method called each time the Service is started by
+     * onDownloadsOutstanding().
+     */
+    @Override
+    public int onStartCommand(Intent intent,
+                              int flags,
+                              int startId) {
+        super.onStartCommand(intent, flags, startId);
+        mLastStartId = startId;
+
+        // The downloads may have all replied before the start was
+        // delivered, in which case nothing is left to keep the
+        // Service running for.
+        if (!mRequestHandler.hasOutstandingDownloads())
+            stopSelf(startId);
+
+        // The journal restarts the unfinished downloads if the
+        // process dies, so there's no need to restart the Service.
+        return Service.START_NOT_STICKY;
+    }
+
+    /**
+     * Called by the RequestHandler when the first of a batch of
+     * downloads starts, which starts the Service so it keeps running
+     * after its clients unbind.
+     */
+    void onDownloadsOutstanding() {
+        startService(makeIntent(this));
+    }
+
+    /**
+     * Called by the RequestHandler when the last outstanding download
+     * replies, which stops the Service once it's also unbound.
+     */
+    void onDownloadsFinished() {
+        stopSelf(mLastStartId);
+    }
+
+    /**
+     * Hook method called when the Service is unbound and stopped.
      */
     @Override
     public void onDestroy() {
@@ -0,0 +1,145 @@
+package vandy.mooc.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import vandy.mooc.download.DownloadAttempt;
+import vandy.mooc.download.ImageResponse;
+import vandy.mooc.download.PrefetchCache;
+import android.net.Uri;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Prefetches images at background priority before they're
+ * requested for download.  A prefetch resolves the host name, opens
+ * (and thus warms up) a pooled connection to it, and reads the body
+ * into the PrefetchCache, from which a later download takes it.  A
+ * prefetch can be cancelled, e.g., when the user removes its URL.
+ */
+class Prefetcher {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    /**
+     * Number of threads that prefetch images, which is kept small so
+     * prefetches don't compete with downloads.
+     */
+    private static final int PREFETCH_THREADS = 2;
+
+    /**
+     * Runs the prefetches.
+     */
+    private final ExecutorService mExecutorService =
+        Executors.newFixedThreadPool(PREFETCH_THREADS);
+
+    /**
+     * The prefetches that haven't completed, keyed by URL, and the
+     * attempts that let them be cancelled.
+     */
+    private final HashMap<String, Future<?>> mFutures =
+        new HashMap<String, Future<?>>();
+    private final HashMap<String, DownloadAttempt> mAttempts =
+        new HashMap<String, DownloadAttempt>();
+
+    /**
+     * Prefetch the image at the @a url, whose body is only cached if
+     * it's no bigger than @a maxImageBytes.
+     */
+    synchronized void prefetch(final Uri url,
+                               final long maxImageBytes) {
+        final String key = url.toString();
+        if (mFutures.containsKey(key))
+            return;
+
+        final DownloadAttempt attempt =
+            new DownloadAttempt(new AtomicReference<DownloadAttempt>());
+        mAttempts.put(key, attempt);
+        mFutures.put(key, mExecutorService.submit(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority
+                        (Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        fetch(url, maxImageBytes, attempt);
+                    } finally {
+                        synchronized (Prefetcher.this) {
+                            if (mAttempts.get(key) == attempt) {
+                                mAttempts.remove(key);
+                                mFutures.remove(key);
+                            }
+                        }
+                    }
+                }
+            }));
+    }
+
+    /**
+     * Cancel the prefetch of the @a url and forget its body.
+     */
+    synchronized void cancel(Uri url) {
+        String key = url.toString();
+        Future<?> future = mFutures.remove(key);
+        if (future != null)
+            future.cancel(false);
+        DownloadAttempt attempt = mAttempts.remove(key);
+        if (attempt != null)
+            attempt.cancel();
+        PrefetchCache.remove(key);
+    }
+
+    /**
+     * Shutdown the prefetches immediately.
+     */
+    void shutdown() {
+        mExecutorService.shutdownNow();
+    }
+
+    /**
+     * Resolve the host of the @a url, warm up a connection to it, and
+     * cache the body.
+     */
+    private void fetch(Uri url,
+                       long maxImageBytes,
+                       DownloadAttempt attempt) {
+        try {
+            // Resolve the host name, which the resolver caches.
+            InetAddress.getByName(url.getHost());
+
+            try (InputStream inputStream =
+                 ImageResponse.open(new URL(url.toString()),
+                                    maxImageBytes,
+                                    attempt)) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int n; (n = inputStream.read(buffer)) != -1; )
+                    body.write(buffer, 0, n);
+
+                if (!attempt.isCancelled()
+                    && PrefetchCache.put(url.toString(),
+                                         body.toByteArray()))
+                    Log.d(TAG,
+                          "prefetched "
+                          + body.size()
+                          + " bytes of "
+                          + url);
+            }
+        } catch (Exception e) {
+            // The download will try again and report any failure.
+            Log.d(TAG,
+                  "prefetch of "
+                  + url
+                  + " failed: "
+                  + e);
+        }
+    }
+}
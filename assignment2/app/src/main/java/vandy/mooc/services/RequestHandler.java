@@ -1,17 +1,45 @@
 package vandy.mooc.services;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import vandy.mooc.download.AdaptiveLimiter;
+import vandy.mooc.download.DownloadEngine;
+import vandy.mooc.download.DownloadManifest;
+import vandy.mooc.download.DownloadRequest;
+import vandy.mooc.download.DownloadScheduler;
+import vandy.mooc.download.DownloadStats;
+import vandy.mooc.download.ImageStore;
+import vandy.mooc.download.LatencyTracker;
+import vandy.mooc.download.NioDownloadEngine;
+import vandy.mooc.download.OutputFormat;
+import vandy.mooc.download.RequestJournal;
+import vandy.mooc.download.RetryPolicy;
+import vandy.mooc.download.StorageManager;
+import vandy.mooc.download.ThreadPoolDownloadEngine;
+import vandy.mooc.utils.MediaStoreIndex;
 import vandy.mooc.utils.ReplyMessage;
 import vandy.mooc.utils.RequestMessage;
 import vandy.mooc.utils.Utils;
+import android.graphics.Bitmap;
 import android.net.Uri;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
 import android.util.Log;
 
 /**
@@ -36,6 +64,114 @@ class RequestHandler extends Handler {
      */
     private ExecutorService mExecutorService;
 
+    /**
+     * Keeps the images stored in the sessions under DCIM within a
+     * quota.
+     */
+    private StorageManager mStorageManager;
+
+    /**
+     * Stores the downloaded images.
+     */
+    private ImageStore mImageStore;
+
+    /**
+     * Downloads the images, one thread per download unless the
+     * NioDownloadEngine is used.
+     */
+    private DownloadEngine mEngine;
+
+    /**
+     * Starts the downloads on the ExecutorService as the
+     * AdaptiveLimiter allows.
+     */
+    private DownloadScheduler mScheduler;
+
+    /**
+     * Runs the timers that retry and hedge downloads.
+     */
+    private ScheduledExecutorService mTimer;
+
+    /**
+     * Latencies of the recent downloads, which determine when a
+     * download is hedged.
+     */
+    private final LatencyTracker mLatencyTracker = new LatencyTracker();
+
+    /**
+     * Most downloads of one client in flight at once while other
+     * clients are waiting.
+     */
+    private static final int MAX_IN_FLIGHT_PER_CLIENT = 8;
+
+    /**
+     * Prefetches images at low priority before they're requested.
+     */
+    private final Prefetcher mPrefetcher = new Prefetcher();
+
+    /**
+     * Name of the file in the Service's files directory that
+     * journals the download requests.
+     */
+    private static final String JOURNAL_FILENAME = "download_journal";
+
+    /**
+     * Journals the download requests so they survive the Service's
+     * process being killed, or null if the journal can't be opened.
+     */
+    private RequestJournal mJournal;
+
+    /**
+     * The requests whose results couldn't be delivered, e.g., because
+     * they were replayed from the journal after a restart, which wait
+     * for a client to send a RESUME request.
+     */
+    private final List<RequestJournal.Request> mUndelivered =
+        new ArrayList<>();
+
+    /**
+     * The reply Messenger of the client that most recently sent a
+     * RESUME request, which receives the results of the requests
+     * replayed from the journal as they complete, or null if no
+     * client has resumed.
+     */
+    private volatile Messenger mResumedMessenger;
+
+    /**
+     * The directory pathname of the session mResumedMessenger's
+     * client resumed.
+     */
+    private volatile String mResumedDirectoryPathname;
+
+    /**
+     * True once the downloads replayed from the journal have been
+     * restarted.
+     */
+    private boolean mReplayRestarted;
+
+    /**
+     * Maps the directory pathname and URL of each download that
+     * hasn't completed to its DownloadRequest, so its priority can be
+     * updated.
+     */
+    private final ConcurrentHashMap<String, DownloadRequest> mActiveRequests =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The DownloadRequests that haven't completed, which are
+     * cancelled when the Service shuts down, so the ones waiting to
+     * be retried still reply.
+     */
+    private final Set<DownloadRequest> mPendingRequests =
+        Collections.newSetFromMap
+            (new ConcurrentHashMap<DownloadRequest, Boolean>());
+
+    /**
+     * Number of downloads that have started but not replied, which
+     * keep the Service running while there are any.
+     */
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+
     /**
      * Constructor initializes the WeakReference and ExecutorService.
      */
@@ -45,6 +181,102 @@ class RequestHandler extends Handler {
 
         // Create an ExecutorService that manages a pool of threads.
         mExecutorService = Executors.newCachedThreadPool();
+
+        // Keep the sessions under DCIM, which is where ImageOpsImpl
+        // creates them, within the quota.
+        mStorageManager = new StorageManager
+            (Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM),
+             StorageManager.DEFAULT_QUOTA_BYTES,
+             new MediaStoreIndex(service),
+             mExecutorService);
+
+        // Download each image with blocking I/O on its own thread
+        // unless useNioEngine() is called.
+        mImageStore = Utils.makeImageStore(service,
+                                           mStorageManager);
+        mEngine = new ThreadPoolDownloadEngine(mImageStore);
+
+        // Create a DownloadScheduler that limits how many of the
+        // threads download at once.
+        mScheduler = makeScheduler(mEngine);
+
+        // Create a ScheduledExecutorService for the retry and hedge
+        // timers.
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+
+        // Open the journal and hold on to the results that were never
+        // delivered.  The downloads that were unfinished when the
+        // Service's process died are restarted by
+        // restartReplayedDownloads() once the engine is chosen.
+        try {
+            mJournal =
+                new RequestJournal(new File(service.getFilesDir(),
+                                            JOURNAL_FILENAME));
+            mUndelivered.addAll(mJournal.getUndelivered());
+        } catch (IOException e) {
+            Log.e(TAG,
+                  "request journal unavailable -- requests won't survive a restart",
+                  e);
+        }
+    }
+
+    /**
+     * Factory method that returns a DownloadScheduler whose limit is
+     * tuned within the concurrency bounds of the @a engine and which
+     * shares it fairly among the clients.
+     */
+    private DownloadScheduler makeScheduler(DownloadEngine engine) {
+        int[] bounds = engine.getConcurrencyBounds();
+        DownloadScheduler scheduler =
+            new DownloadScheduler(mExecutorService,
+                                  new AdaptiveLimiter(bounds[0],
+                                                      bounds[1],
+                                                      bounds[2]));
+        scheduler.setMaxInFlightPerClient(MAX_IN_FLIGHT_PER_CLIENT);
+        return scheduler;
+    }
+
+    /**
+     * Download the images with the NioDownloadEngine rather than one
+     * thread per download.  This must be called before the first
+     * request message is handled.
+     */
+    public void useNioEngine() {
+        if (mEngine instanceof NioDownloadEngine)
+            return;
+        try {
+            DownloadEngine engine =
+                new NioDownloadEngine(mImageStore, mExecutorService);
+            mScheduler.shutdown();
+            mEngine.shutdown();
+            mEngine = engine;
+            mScheduler = makeScheduler(engine);
+            Log.d(TAG,
+                  "using the NIO download engine");
+        } catch (IOException e) {
+            Log.e(TAG,
+                  "NIO download engine unavailable -- using threads. "
+                  + e.toString());
+        }
+    }
+
+    /**
+     * Restart the downloads that were unfinished when the Service's
+     * process died, unless they've already been restarted.  This is
+     * called once the engine is chosen, since changing it would cancel
+     * the downloads that have started.
+     */
+    public void restartReplayedDownloads() {
+        if (mReplayRestarted || mJournal == null)
+            return;
+        mReplayRestarted = true;
+
+        for (RequestJournal.Request request : mJournal.getUnfinished())
+            startDownload(request,
+                          null,
+                          DownloadScheduler.DEFAULT_WEIGHT,
+                          DownloadScheduler.PRIORITY_NORMAL,
+                          0);
     }
 
     /**
@@ -77,48 +309,328 @@ class RequestHandler extends Handler {
         // TODO -- you fill in here.
         final int requestCode = requestMessage.getRequestCode();
 
-        // A Runnable that downloads the image, stores it in a file,
-        // and sends the path to the file back to the Activity.
-        final Runnable downloadImageAndReply = 
-            new Runnable() {
+        // Get the policy used to store the image.
+        final OutputFormat outputFormat = requestMessage.getOutputFormat();
+
+        // Get the ceiling on the size of the image.
+        final long maxImageBytes = requestMessage.getMaxImageBytes();
+
+        // Prefetches, their cancellation and resumption aren't
+        // downloads.
+        switch (requestMessage.getOperation()) {
+        case PREFETCH:
+            mPrefetcher.prefetch(url, maxImageBytes);
+            return;
+        case CANCEL_PREFETCH:
+            mPrefetcher.cancel(url);
+            return;
+        case RESUME:
+            // A client that (re)binds collects the results that
+            // couldn't be delivered.
+            resume(replyMessenger, directoryPathname);
+            return;
+        case UPDATE_PRIORITY:
+            // Reorder the download if it's still waiting to start.
+            DownloadRequest downloadRequest =
+                mActiveRequests.get(directoryPathname + url);
+            if (downloadRequest != null)
+                downloadRequest.setPriority(requestMessage.getPriority());
+            return;
+        default:
+            break;
+        }
+
+        // Get the policy used to retry and hedge the download.
+        final RetryPolicy retryPolicy = requestMessage.getRetryPolicy();
+
+        // Journal the request before it's started, so it's restarted
+        // if the Service's process dies before it completes.
+        RequestJournal.Request request = mJournal != null
+            ? mJournal.enqueue(requestCode,
+                               url.toString(),
+                               directoryPathname,
+                               outputFormat,
+                               maxImageBytes,
+                               retryPolicy)
+            : new RequestJournal.Request(0,
+                                         requestCode,
+                                         url.toString(),
+                                         directoryPathname,
+                                         outputFormat,
+                                         maxImageBytes,
+                                         retryPolicy);
+        startDownload(request,
+                      replyMessenger,
+                      requestMessage.getClientWeight(),
+                      requestMessage.getPriority(),
+                      requestMessage.getThumbnailSize());
+    }
+
+    /**
+     * Start downloading the image of the @a request with the @a
+     * priority and deliver the result, with a thumbnail of @a
+     * thumbnailSize pixels if it's not 0, via the @a replyMessenger,
+     * or hold on to it until a client resumes if the @a
+     * replyMessenger is null.  The download is queued with the
+     * client's other downloads, whose turns have the @a clientWeight.
+     */
+    private void startDownload(final RequestJournal.Request request,
+                               final Messenger replyMessenger,
+                               int clientWeight,
+                               int priority,
+                               final int thumbnailSize) {
+        final String url = request.getUrl();
+        final String directoryPathname = request.getDirectoryPathname();
+        final String key = directoryPathname + url;
+
+        // Keep the Service running until the download replies, even
+        // if its client unbinds, e.g., when MainActivity stops to
+        // show the gallery.
+        if (mOutstanding.getAndIncrement() == 0) {
+            DownloadImagesBoundService service = mService.get();
+            if (service != null)
+                service.onDownloadsOutstanding();
+        }
+
+        // The DownloadRequest once it's made, which the Callback
+        // forgets when it completes.
+        final AtomicReference<DownloadRequest> pending =
+            new AtomicReference<>();
+
+        // A Callback that sends the path to the downloaded image
+        // file back to the Activity.
+        final DownloadRequest.Callback reply =
+            new DownloadRequest.Callback() {
                 /**
                  * This method runs in a background Thread.
                  */
                 @Override
-                public void run() {
-                    // Download and store the requested image.
-                    // TODO -- you fill in here.
-                    Uri pathToImageFile = Utils.downloadImage
-                            (mService.get(), url, directoryPathname);
+                public void onComplete(DownloadManifest.Entry entry) {
+                    // Record the outcome in the manifest of the
+                    // directory, which is what readers use to find
+                    // the downloaded images.
+                    DownloadManifest.append(directoryPathname, entry);
+
+                    if (!entry.succeeded())
+                        DownloadStats.getInstance().recordFailure();
+                    Log.d(TAG,
+                          "download stats: "
+                          + DownloadStats.getInstance()
+                          + " clients: "
+                          + mScheduler.getClientSummary());
+
+                    mActiveRequests.remove(key);
+                    DownloadRequest downloadRequest = pending.get();
+                    if (downloadRequest != null)
+                        mPendingRequests.remove(downloadRequest);
 
-                    // Send the path to the image file, url, and
-                    // requestCode back to the Activity via the
-                    // replyMessenger.
+                    // Journal the result, then send the path to the
+                    // image file, url, and requestCode back to the
+                    // Activity via the replyMessenger.
                     // TODO -- you fill in here.
-                    sendPath(replyMessenger, pathToImageFile, url, requestCode);
+                    if (mJournal != null)
+                        mJournal.complete(request, entry);
+                    deliver(request,
+                            replyMessenger != null
+                            ? replyMessenger
+                            : getResumedMessenger(directoryPathname),
+                            thumbnailSize);
+
+                    // Let the Service stop once it's unbound if this
+                    // was the last outstanding download.
+                    if (mOutstanding.decrementAndGet() == 0) {
+                        DownloadImagesBoundService service = mService.get();
+                        if (service != null)
+                            service.onDownloadsFinished();
+                    }
                 }
             };
 
-        // Execute the downloadImageAndReply Runnable to download the
-        // image and reply.
+        // There's nowhere to store the image if external storage
+        // isn't writable.
+        if (!Utils.isExternalStorageWritable()) {
+            Log.d(TAG,
+                  "external storage is not writable");
+            reply.onComplete(DownloadManifest.Entry.failed(url));
+            return;
+        }
+
+        // Refuse the download if the quota is used up and evicting
+        // the older sessions can't make room for it.
+        if (!mStorageManager.admit(directoryPathname)) {
+            Log.d(TAG,
+                  "storage quota exceeded: "
+                  + mStorageManager);
+            reply.onComplete(DownloadManifest.Entry.failed(url));
+            return;
+        }
+
+        // Start a DownloadRequest that downloads the image and stores
+        // it in a file, retrying and hedging it as its RetryPolicy
+        // allows, and whose attempts run once the scheduler's limit
+        // allows.
         // TODO -- you fill in here.
-        mExecutorService.execute(downloadImageAndReply);
+        DownloadRequest downloadRequest =
+            new DownloadRequest(url,
+                                directoryPathname,
+                                request.getOutputFormat(),
+                                request.getMaxImageBytes(),
+                                request.getRetryPolicy(),
+                                mEngine,
+                                mScheduler,
+                                mTimer,
+                                mLatencyTracker,
+                                reply);
+        // Queue the download with the client's other downloads, which
+        // are identified by the binder of its reply Messenger.
+        if (replyMessenger != null)
+            downloadRequest.setClient(replyMessenger.getBinder(),
+                                      clientWeight);
+        downloadRequest.setPriority(priority);
+        mActiveRequests.put(key, downloadRequest);
+        pending.set(downloadRequest);
+        mPendingRequests.add(downloadRequest);
+        downloadRequest.start();
+    }
+
+    /**
+     * Send the result of the completed @a request, with a thumbnail
+     * of @a thumbnailSize pixels if it's not 0, via the @a
+     * replyMessenger and journal that it was delivered, or hold on
+     * to it until a client resumes if it can't be sent.
+     */
+    private void deliver(RequestJournal.Request request,
+                         Messenger replyMessenger,
+                         int thumbnailSize) {
+        DownloadManifest.Entry entry = request.getEntry();
+        Uri pathToImageFile = entry.succeeded()
+            ? Uri.parse(entry.getImagePathname())
+            : null;
+
+        if (replyMessenger != null
+            && sendPath(replyMessenger,
+                        pathToImageFile,
+                        Uri.parse(request.getUrl()),
+                        request.getRequestCode(),
+                        thumbnailSize)) {
+            if (mJournal != null)
+                mJournal.deliver(request);
+        } else
+            synchronized (mUndelivered) {
+                mUndelivered.add(request);
+            }
+    }
+
+    /**
+     * Deliver the results held for the @a directoryPathname session
+     * via the @a replyMessenger of the client that resumed.  Results
+     * held for other sessions are dropped, since their clients are
+     * gone and their manifests already record them.  They're sent
+     * without thumbnails, since this runs on the main Thread.
+     */
+    private void resume(Messenger replyMessenger,
+                        String directoryPathname) {
+        // The requests replayed from the journal that are still
+        // downloading deliver their results to this client.
+        mResumedDirectoryPathname = directoryPathname;
+        mResumedMessenger = replyMessenger;
+
+        List<RequestJournal.Request> undelivered;
+        synchronized (mUndelivered) {
+            undelivered = new ArrayList<>(mUndelivered);
+            mUndelivered.clear();
+        }
+
+        Log.d(TAG,
+              "resuming with "
+              + undelivered.size()
+              + " undelivered results");
+        for (RequestJournal.Request request : undelivered)
+            if (!request.getDirectoryPathname().equals(directoryPathname)) {
+                if (mJournal != null)
+                    mJournal.deliver(request);
+            } else
+                deliver(request, replyMessenger, 0);
+    }
+
+    /**
+     * Returns the reply Messenger of the client that most recently
+     * resumed the @a directoryPathname session, or null if its client
+     * hasn't resumed, in which case the result is held until it does.
+     */
+    private Messenger getResumedMessenger(String directoryPathname) {
+        Messenger messenger = mResumedMessenger;
+        return directoryPathname.equals(mResumedDirectoryPathname)
+            ? messenger
+            : null;
     }
 
     /**
      * Send the @a pathToImageFile, @a url, and @a requestCode back to
      * the Activity via the @a messenger.
+     *
+     * @return true if the reply was sent, else false.
+     */
+    public boolean sendPath(Messenger messenger,
+                            Uri pathToImageFile,
+                            Uri url,
+                            int requestCode) {
+        return sendPath(messenger,
+                        pathToImageFile,
+                        url,
+                        requestCode,
+                        0);
+    }
+
+    /**
+     * Send the @a pathToImageFile, @a url, and @a requestCode back to
+     * the Activity via the @a messenger as above, along with a
+     * thumbnail of the image whose largest dimension is @a
+     * thumbnailSize pixels if it's not 0.  The thumbnail is decoded
+     * here, off the client's UI Thread and out of its heap, and is
+     * dropped if the reply is too large to send with it.
+     *
+     * @return true if the reply was sent, else false.
      */
-    public void sendPath(Messenger messenger, 
-                         Uri pathToImageFile,
-                         Uri url,
-                         int requestCode) {
+    public boolean sendPath(Messenger messenger,
+                            Uri pathToImageFile,
+                            Uri url,
+                            int requestCode,
+                            int thumbnailSize) {
         // Call the makeReplyMessage() factory method to create
         // Message.
         // TODO -- you fill in here.
         ReplyMessage replyMessage =
                 ReplyMessage.makeReplyMessage(pathToImageFile, url, requestCode);
 
+        Bitmap thumbnail = null;
+        if (pathToImageFile != null && thumbnailSize > 0) {
+            thumbnail = Utils.makeThumbnail(pathToImageFile.toString(),
+                                            thumbnailSize);
+            if (thumbnail != null)
+                replyMessage.setThumbnail(thumbnail);
+        }
+
+        // Send the reply with its thumbnail, unless the Binder buffer
+        // is too full for it, in which case it's sent without.
+        if (thumbnail != null)
+            try {
+                messenger.send(replyMessage.getMessage());
+                return true;
+            } catch (TransactionTooLargeException e) {
+                Log.d(TAG,
+                      "sending "
+                      + pathToImageFile
+                      + " without its thumbnail: "
+                      + e);
+                replyMessage.removeThumbnail();
+            } catch (Exception e) {
+                Log.e(getClass().getName(),
+                      "Exception while sending reply message back to Activity.",
+                      e);
+                return false;
+            }
+
         try {
             Log.d(TAG,
                   "sending "
@@ -128,20 +640,51 @@ class RequestHandler extends Handler {
             // Send the replyMessage back to the Activity.
             // TODO -- you fill in here.
             messenger.send(replyMessage.getMessage());
+            return true;
         } catch (Exception e) {
             Log.e(getClass().getName(),
                   "Exception while sending reply message back to Activity.",
                   e);
+            return false;
         }
     }
 
     /**
-     * Shutdown the ExecutorService immediately.
+     * Returns true if any download has started but not replied.
+     */
+    public boolean hasOutstandingDownloads() {
+        return mOutstanding.get() > 0;
+    }
+
+    /**
+     * Shutdown the ExecutorService immediately.  The downloads that
+     * haven't started or are waiting to be retried fail, so their
+     * clients still get a reply for each of them.
      */
     public void shutdown() {
         // Immediately shutdown the ExecutorService.
         // TODO -- you fill in here.
+        mScheduler.shutdown();
+
+        // Fail the downloads waiting for a retry before the timer
+        // that would run it is shut down.  The ones still running
+        // reply when they finish, but aren't retried or hedged.
+        for (DownloadRequest downloadRequest : mPendingRequests)
+            downloadRequest.cancel();
+        mTimer.shutdownNow();
+        mPrefetcher.shutdown();
+        mEngine.shutdown();
         mExecutorService.shutdown();
+        if (mJournal != null)
+            mJournal.close();
+    }
+
+    /**
+     * Returns the limiter that tunes how many downloads are in flight
+     * at once.
+     */
+    public AdaptiveLimiter getLimiter() {
+        return mScheduler.getLimiter();
     }
 }
 
@@ -0,0 +1,169 @@
+package vandy.mooc.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * A live feed of the pathnames of images that have been downloaded
+ * successfully into a directory.  The ImageOps publish each pathname
+ * as soon as its reply arrives from the Service and the
+ * DisplayImagesActivity subscribes to the feed, so the gallery can
+ * show each image as it arrives rather than waiting for the whole
+ * batch.  An image published with a thumbnail from the Service is
+ * passed to the subscribers with it, so they can show it without
+ * reading its file, but the thumbnails aren't kept for later
+ * subscribers.  A feed is forgotten once its batch is finished and
+ * its last subscriber has left, after which the manifest of the
+ * directory records its images.  All methods must be called from the
+ * UI thread.
+ */
+public class ImageFeed {
+    /**
+     * Callback interface implemented by subscribers to a feed.
+     */
+    public interface Listener {
+        /**
+         * Called back for every image already in the feed when the
+         * Listener subscribes and then for each image published
+         * afterwards, with its @a thumbnail if it was published with
+         * one and has just been published, else null.
+         */
+        void onImageAdded(String imagePathname,
+                          Bitmap thumbnail);
+    }
+
+    /**
+     * Maps a directory pathname to its feed.
+     */
+    private static final HashMap<String, ImageFeed> sFeeds =
+        new HashMap<String, ImageFeed>();
+
+    /**
+     * The pathnames published thus far.
+     */
+    private final ArrayList<String> mImagePathnames =
+        new ArrayList<String>();
+
+    /**
+     * The Listeners currently subscribed.
+     */
+    private final ArrayList<Listener> mListeners =
+        new ArrayList<Listener>();
+
+    /**
+     * The directory pathname that maps to this feed.
+     */
+    private final String mDirectoryPathname;
+
+    /**
+     * True once the batch has finished and no more images will be
+     * published until the next batch starts.
+     */
+    private boolean mFinished;
+
+    /**
+     * Constructor is private to ensure the get() factory method is
+     * used.
+     */
+    private ImageFeed(String directoryPathname) {
+        mDirectoryPathname = directoryPathname;
+    }
+
+    /**
+     * Returns the feed for the @a directoryPathname, creating it if
+     * it doesn't exist yet.
+     */
+    public static ImageFeed get(String directoryPathname) {
+        ImageFeed feed = sFeeds.get(directoryPathname);
+        if (feed == null) {
+            feed = new ImageFeed(directoryPathname);
+            sFeeds.put(directoryPathname, feed);
+        }
+        return feed;
+    }
+
+    /**
+     * Returns the feed for the @a directoryPathname, or null if it
+     * doesn't exist, e.g., because its batch has finished and been
+     * forgotten.
+     */
+    public static ImageFeed find(String directoryPathname) {
+        return sFeeds.get(directoryPathname);
+    }
+
+    /**
+     * Forget all images published to the feed for the @a
+     * directoryPathname, e.g., after they've been deleted.
+     */
+    public static void clear(String directoryPathname) {
+        ImageFeed feed = sFeeds.get(directoryPathname);
+        if (feed != null)
+            feed.mImagePathnames.clear();
+    }
+
+    /**
+     * Publish the @a imagePathname and its @a thumbnail (if it's not
+     * null) to all subscribers.
+     */
+    public void publish(String imagePathname,
+                        Bitmap thumbnail) {
+        // A new batch has started publishing to this feed.
+        mFinished = false;
+        mImagePathnames.add(imagePathname);
+
+        // Iterate over a copy in case a Listener unsubscribes while
+        // it's being called back.
+        for (Listener listener : new ArrayList<Listener>(mListeners))
+            listener.onImageAdded(imagePathname,
+                                  thumbnail);
+    }
+
+    /**
+     * Subscribe the @a listener, which is first called back with all
+     * the images published thus far.
+     */
+    public void subscribe(Listener listener) {
+        mListeners.add(listener);
+
+        for (String imagePathname : new ArrayList<String>(mImagePathnames))
+            listener.onImageAdded(imagePathname,
+                                  null);
+    }
+
+    /**
+     * Unsubscribe the @a listener.
+     */
+    public void unsubscribe(Listener listener) {
+        mListeners.remove(listener);
+        evictIfUnused();
+    }
+
+    /**
+     * Mark the batch as finished, which forgets the feed once it has
+     * no subscribers.
+     */
+    public void finish() {
+        mFinished = true;
+        evictIfUnused();
+    }
+
+    /**
+     * Forget the feed if its batch has finished and it has no
+     * subscribers, so the feeds of old batches aren't kept forever.
+     */
+    private void evictIfUnused() {
+        if (mFinished
+            && mListeners.isEmpty()
+            && sFeeds.get(mDirectoryPathname) == this)
+            sFeeds.remove(mDirectoryPathname);
+    }
+
+    /**
+     * Returns the number of images published thus far.
+     */
+    public int size() {
+        return mImagePathnames.size();
+    }
+}
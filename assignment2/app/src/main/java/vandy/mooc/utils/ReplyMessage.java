@@ -1,6 +1,7 @@
 package vandy.mooc.utils;
 
 import android.app.Activity;
+import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Message;
@@ -63,7 +64,7 @@ public class ReplyMessage extends RequestReplyMessageBase {
         // IMAGE_PATHNAME key only if the download succeeded.
         // TODO -- you fill in here.
         if (pathToImageFile != null) {
-            data.putString(IMAGE_URL, pathToImageFile.toString());
+            data.putString(IMAGE_PATHNAME, pathToImageFile.toString());
         }
 
         // Set the Bundle to be the data in the message.
@@ -72,4 +73,29 @@ public class ReplyMessage extends RequestReplyMessageBase {
 
         return replyMessage;
     }
+
+    /**
+     * Set the @a thumbnail of the downloaded image, which is
+     * parceled with the reply so the client can show the image
+     * without reading and decoding its file.
+     */
+    public void setThumbnail(Bitmap thumbnail) {
+        mMessage.getData().putParcelable(THUMBNAIL, thumbnail);
+    }
+
+    /**
+     * Remove the thumbnail from the reply, e.g., if it doesn't fit in
+     * the Binder transaction.
+     */
+    public void removeThumbnail() {
+        mMessage.getData().remove(THUMBNAIL);
+    }
+
+    /**
+     * Returns the thumbnail of the downloaded image in the reply @a
+     * data, or null if it has none.
+     */
+    public static Bitmap getThumbnail(Bundle data) {
+        return data.getParcelable(THUMBNAIL);
+    }
 }
@@ -1,5 +1,9 @@
 package vandy.mooc.utils;
 
+import vandy.mooc.download.DownloadScheduler;
+import vandy.mooc.download.ImageResponse;
+import vandy.mooc.download.OutputFormat;
+import vandy.mooc.download.RetryPolicy;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Message;
@@ -10,6 +14,40 @@ import android.os.Messenger;
  * a request from the Activity to the Service.
  */
 public class RequestMessage extends RequestReplyMessageBase {
+    /**
+     * The operations the Service performs for a request.
+     */
+    public enum Operation {
+        /**
+         * Download an image and reply with its pathname.
+         */
+        DOWNLOAD,
+
+        /**
+         * Prefetch an image at low priority, without replying, so a
+         * later download of it finishes quickly.
+         */
+        PREFETCH,
+
+        /**
+         * Cancel the prefetch of an image, without replying.
+         */
+        CANCEL_PREFETCH,
+
+        /**
+         * Reply with the results of the directory's downloads that
+         * completed while no client could receive them, e.g., after
+         * the Service's process was restarted.
+         */
+        RESUME,
+
+        /**
+         * Change the priority of the download of an image that's
+         * still waiting to start, without replying.
+         */
+        UPDATE_PRIORITY
+    }
+
     /**
      * Constructor is private to ensure the makeRequestMessage()
      * factory method is used.
@@ -28,11 +66,29 @@ public class RequestMessage extends RequestReplyMessageBase {
 
     /**
      * Factory method creates a RequestMessage to return to the
-     * Activity with information necessary to download an image.
+     * Activity with information necessary to download an image,
+     * which is stored using the OutputFormat.DEFAULT policy.
+     */
+    public static RequestMessage makeRequestMessage(int requestCode, 
+                                                    Uri url,
+                                                    String directoryPathname,
+                                                    Messenger replyMessenger) {
+        return makeRequestMessage(requestCode,
+                                  url,
+                                  directoryPathname,
+                                  OutputFormat.DEFAULT,
+                                  replyMessenger);
+    }
+
+    /**
+     * Factory method creates a RequestMessage to return to the
+     * Activity with information necessary to download an image and
+     * the @a outputFormat used to store it.
      */
     public static RequestMessage makeRequestMessage(int requestCode, 
                                                     Uri url,
                                                     String directoryPathname,
+                                                    OutputFormat outputFormat,
                                                     Messenger replyMessenger) {
         // Create a RequestMessage that holds a reference to a Message
         // created via the Message.obtain() factory method.
@@ -64,6 +120,10 @@ public class RequestMessage extends RequestReplyMessageBase {
         // TODO -- you fill in here.
         data.putInt(REQUEST_CODE, requestCode);
 
+        // Put the output format policy into the Bundle.
+        data.putString(OUTPUT_MODE, outputFormat.getMode().name());
+        data.putInt(OUTPUT_QUALITY, outputFormat.getQuality());
+
         // Set the Bundle as the "data" for the Message.
         // TODO -- you fill in here.
         message.setData(data);
@@ -71,4 +131,136 @@ public class RequestMessage extends RequestReplyMessageBase {
         // Return the message to the caller.
         return requestMessage;
     }
+
+    /**
+     * Set the @a operation the Service performs for this request,
+     * which is DOWNLOAD unless it's set.
+     */
+    public void setOperation(Operation operation) {
+        mMessage.getData().putString(OPERATION, operation.name());
+    }
+
+    /**
+     * Accessor method that returns the operation the Service
+     * performs for this request.
+     */
+    public Operation getOperation() {
+        String operation = mMessage.getData().getString(OPERATION);
+        return operation == null
+            ? Operation.DOWNLOAD
+            : Operation.valueOf(operation);
+    }
+
+    /**
+     * Set the ceiling on the size of the downloaded image, beyond
+     * which the download is aborted.
+     */
+    public void setMaxImageBytes(long maxImageBytes) {
+        mMessage.getData().putLong(MAX_IMAGE_BYTES, maxImageBytes);
+    }
+
+    /**
+     * Accessor method that returns the ceiling on the size of the
+     * downloaded image.
+     */
+    public long getMaxImageBytes() {
+        return mMessage.getData().getLong(MAX_IMAGE_BYTES,
+                                          ImageResponse.DEFAULT_MAX_IMAGE_BYTES);
+    }
+
+    /**
+     * Set the policy used to retry and hedge the download.
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        Bundle data = mMessage.getData();
+        data.putInt(RETRY_MAX_ATTEMPTS, retryPolicy.getMaxAttempts());
+        data.putLong(RETRY_BASE_DELAY_MS, retryPolicy.getBaseDelayMs());
+        data.putLong(RETRY_MAX_DELAY_MS, retryPolicy.getMaxDelayMs());
+        data.putBoolean(RETRY_HEDGE, retryPolicy.isHedged());
+    }
+
+    /**
+     * Accessor method that returns the policy used to retry and hedge
+     * the download, which is RetryPolicy.DEFAULT unless it's set.
+     */
+    public RetryPolicy getRetryPolicy() {
+        Bundle data = mMessage.getData();
+        if (!data.containsKey(RETRY_MAX_ATTEMPTS))
+            return RetryPolicy.DEFAULT;
+        return new RetryPolicy(data.getInt(RETRY_MAX_ATTEMPTS),
+                               data.getLong(RETRY_BASE_DELAY_MS),
+                               data.getLong(RETRY_MAX_DELAY_MS),
+                               data.getBoolean(RETRY_HEDGE));
+    }
+
+    /**
+     * Set the @a weight of the client that sent this request, i.e.,
+     * how many of its downloads the Service starts per turn relative
+     * to the other clients.
+     */
+    public void setClientWeight(int weight) {
+        mMessage.getData().putInt(CLIENT_WEIGHT, weight);
+    }
+
+    /**
+     * Accessor method that returns the weight of the client that
+     * sent this request, which is 1 unless it's set.
+     */
+    public int getClientWeight() {
+        return mMessage.getData().getInt(CLIENT_WEIGHT, 1);
+    }
+
+    /**
+     * Set the @a priority of the download, e.g.,
+     * DownloadScheduler.PRIORITY_HIGH for an image on screen.
+     */
+    public void setPriority(int priority) {
+        mMessage.getData().putInt(PRIORITY, priority);
+    }
+
+    /**
+     * Accessor method that returns the priority of the download,
+     * which is DownloadScheduler.PRIORITY_NORMAL unless it's set.
+     */
+    public int getPriority() {
+        return mMessage.getData().getInt(PRIORITY,
+                                         DownloadScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Set the largest dimension in pixels of the thumbnail the
+     * Service sends with each reply to @a thumbnailSize, or 0 for
+     * none.
+     */
+    public void setThumbnailSize(int thumbnailSize) {
+        mMessage.getData().putInt(THUMBNAIL_SIZE, thumbnailSize);
+    }
+
+    /**
+     * Accessor method that returns the largest dimension in pixels of
+     * the thumbnail sent with each reply, which is 0 (none) unless
+     * it's set.
+     */
+    public int getThumbnailSize() {
+        return mMessage.getData().getInt(THUMBNAIL_SIZE, 0);
+    }
+
+    /**
+     * Accessor method that returns the policy used to store the
+     * downloaded image, which is OutputFormat.DEFAULT unless it's
+     * set.
+     */
+    public OutputFormat getOutputFormat() {
+        Bundle data = mMessage.getData();
+        String mode = data.getString(OUTPUT_MODE);
+        if (mode == null)
+            return OutputFormat.DEFAULT;
+        try {
+            return new OutputFormat(OutputFormat.Mode.valueOf(mode),
+                                    data.getInt(OUTPUT_QUALITY,
+                                                OutputFormat.DEFAULT.getQuality()));
+        } catch (IllegalArgumentException e) {
+            return OutputFormat.DEFAULT;
+        }
+    }
 }
@@ -32,6 +32,51 @@ class RequestReplyMessageBase {
      * to store a downloaded image.
      */
     protected static final String DIRECTORY_PATHNAME = "DIRECTORY_PATHNAME";
+
+    /**
+     * String constant used to extract the ceiling on the size of a
+     * downloaded image.
+     */
+    protected static final String MAX_IMAGE_BYTES = "MAX_IMAGE_BYTES";
+
+    /**
+     * String constant used to extract the operation the Service
+     * performs for a request.
+     */
+    protected static final String OPERATION = "OPERATION";
+
+    /**
+     * String constants used to extract the OutputFormat used to store
+     * a downloaded image.
+     */
+    protected static final String OUTPUT_MODE = "OUTPUT_MODE";
+    protected static final String OUTPUT_QUALITY = "OUTPUT_QUALITY";
+
+    /**
+     * String constants used to extract the RetryPolicy of a download.
+     */
+    protected static final String RETRY_MAX_ATTEMPTS = "RETRY_MAX_ATTEMPTS";
+    protected static final String RETRY_BASE_DELAY_MS = "RETRY_BASE_DELAY_MS";
+    protected static final String RETRY_MAX_DELAY_MS = "RETRY_MAX_DELAY_MS";
+    protected static final String RETRY_HEDGE = "RETRY_HEDGE";
+
+    /**
+     * String constant used to extract the weight of the client that
+     * sent a request.
+     */
+    protected static final String CLIENT_WEIGHT = "CLIENT_WEIGHT";
+
+    /**
+     * String constant used to extract the priority of a download.
+     */
+    protected static final String PRIORITY = "PRIORITY";
+
+    /**
+     * String constants used to extract the size of the thumbnail a
+     * client wants with each reply and the thumbnail itself.
+     */
+    protected static final String THUMBNAIL_SIZE = "THUMBNAIL_SIZE";
+    protected static final String THUMBNAIL = "THUMBNAIL";
     
     /**
      * Message used to hold the information.
@@ -1,16 +1,22 @@
 package vandy.mooc.utils;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 import android.util.Log;
+import android.view.Choreographer;
 
 /**
  * This class inherits from Handler and uses its handleMessage() hook
  * method to forward relevant data from Messages sent from the
- * DownloadImageService back to the MainActivity.
+ * DownloadImageService back to the MainActivity.  The replies that
+ * arrive within one display frame are gathered and forwarded together
+ * at the start of the next frame, followed by one call to
+ * onServiceResultsHandled(), so a burst of replies updates the UI
+ * once per frame rather than once per reply.
  */
 public class ServiceResultHandler extends Handler {
     /**
@@ -22,6 +28,46 @@ public class ServiceResultHandler extends Handler {
      * Used to enable garbage collection.
      */
     private WeakReference<ServiceResult> mResult;
+
+    /**
+     * If true the replies are forwarded once per display frame, else
+     * each is forwarded as soon as it arrives, which is useful for
+     * comparing the frames dropped during a burst of replies.
+     */
+    private static final boolean COALESCE_RESULTS = true;
+
+    /**
+     * Copies of the replies that arrived since the last frame, or
+     * while there was no ServiceResult to receive them.  The handler
+     * is retained across configuration changes, so they survive
+     * them.  They're bounded by the downloads the owner requested,
+     * and dropped once it's finishing.
+     */
+    private final ArrayList<Message> mPending = new ArrayList<>();
+
+    /**
+     * True if a frame callback has been posted to forward the pending
+     * replies.
+     */
+    private boolean mFrameScheduled;
+
+    /**
+     * True once the owner is finishing, after which replies are
+     * dropped rather than held.
+     */
+    private boolean mOwnerFinishing;
+
+    /**
+     * Forwards the pending replies at the start of a frame.
+     */
+    private final Choreographer.FrameCallback mFrameCallback =
+        new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                mFrameScheduled = false;
+                forwardPending();
+            }
+        };
     
     /**
      * Constructor stores @a serviceResult into a WeakReference.
@@ -34,10 +80,32 @@ public class ServiceResultHandler extends Handler {
      * Called to reset ServiceResult callback instance (e.g.,
      * MainActivity) after a configuration change, which will have
      * caused the garbage collector to destroy the Service object
-     * associated with the mResult WeakReference.
+     * associated with the mResult WeakReference.  The replies held
+     * while there was no ServiceResult are then forwarded to it in
+     * order on the next frame, once its Activity has finished being
+     * created.
      */
     public void onConfigurationChange(ServiceResult serviceResult) {
         mResult = new WeakReference<>(serviceResult);
+        if (!mPending.isEmpty())
+            scheduleFrame();
+    }
+
+    /**
+     * Called when the owner of the ServiceResult (e.g., MainActivity)
+     * is finishing rather than changing configuration, so no
+     * ServiceResult will be attached to receive the held replies or
+     * any that arrive later.
+     */
+    public void onOwnerFinishing() {
+        mOwnerFinishing = true;
+        Log.d(TAG,
+              "dropping "
+              + mPending.size()
+              + " replies since the owner is finishing");
+        for (Message message : mPending)
+            message.recycle();
+        mPending.clear();
     }
 
     /**
@@ -49,28 +117,79 @@ public class ServiceResultHandler extends Handler {
         Log.d(TAG,
               "handleMessage() called back");
 
-        // Convert the Message into a ReplyMessage.
-        ReplyMessage replyMessage =
-            ReplyMessage.makeReplyMessage(message);
-
-        // Extract the necessary fields from the ReplyMessage.
-        final int requestCode =
-            replyMessage.getRequestCode();
-        final int resultCode = replyMessage.getResultCode();
-        final Bundle data = replyMessage.getData();
-
-        if (mResult.get() == null) {
-            // Warn programmer that mResult callback reference has
-            // been lost without being restored after a configuration
-            // change.
-            Log.w(TAG, "Configuration change handling not implemented correctly;"
-                    + " lost weak reference to ServiceResult callback)");
-        } else {
+        // Nothing will receive the reply.
+        if (mOwnerFinishing)
+            return;
+
+        // Copy the Message since it's recycled once this returns.
+        mPending.add(Message.obtain(message));
+
+        if (!COALESCE_RESULTS)
+            forwardPending();
+        else
+            // Forward the replies that arrive until the next frame
+            // along with this one.
+            scheduleFrame();
+    }
+
+    /**
+     * Forward the pending replies at the start of the next frame,
+     * unless that's already scheduled.
+     */
+    private void scheduleFrame() {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    /**
+     * Forward the pending replies to the ServiceResult callback, then
+     * tell it they've all been handled, or keep holding them if
+     * there's no ServiceResult, e.g., in the middle of a rotation.
+     */
+    private void forwardPending() {
+        // Read the WeakReference once, so the ServiceResult can't be
+        // collected partway through the replies.
+        ServiceResult result = mResult.get();
+        if (mOwnerFinishing)
+            return;
+        if (result == null) {
+            // Hold on to the replies until a ServiceResult is
+            // attached again after the configuration change, rather
+            // than dropping them and downloading the images again.
+            Log.d(TAG,
+                  "holding "
+                  + mPending.size()
+                  + " replies until a ServiceResult is attached");
+            return;
+        }
+
+        ArrayList<Message> pending = new ArrayList<>(mPending);
+        mPending.clear();
+
+        Log.d(TAG,
+              "forwarding "
+              + pending.size()
+              + " replies");
+        for (Message message : pending) {
+            // Convert the Message into a ReplyMessage.
+            ReplyMessage replyMessage =
+                ReplyMessage.makeReplyMessage(message);
+
+            // Extract the necessary fields from the ReplyMessage.
+            final int requestCode =
+                replyMessage.getRequestCode();
+            final int resultCode = replyMessage.getResultCode();
+            final Bundle data = replyMessage.getData();
+
             // Forward result to ServiceResult callback
             // implementation.
-            mResult.get().onServiceResult(requestCode,
-                                          resultCode,
-                                          data);
+            result.onServiceResult(requestCode,
+                                   resultCode,
+                                   data);
+            message.recycle();
         }
+        result.onServiceResultsHandled();
     }
 }
@@ -1,16 +1,17 @@
 package vandy.mooc.utils;
 
-import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.InputStream;
-import java.net.URL;
-import java.util.Locale;
 
 import vandy.mooc.R;
+import vandy.mooc.download.DownloadAttempt;
+import vandy.mooc.download.DownloadManifest;
+import vandy.mooc.download.ImageFileWriter;
+import vandy.mooc.download.ImageResponse;
+import vandy.mooc.download.ImageStore;
+import vandy.mooc.download.OutputFormat;
+import vandy.mooc.download.StorageManager;
 import android.app.Activity;
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
@@ -19,9 +20,6 @@ import android.graphics.Color;
 import android.net.Uri;
 import android.os.Environment;
 import android.os.IBinder;
-import android.provider.MediaStore;
-import android.provider.MediaStore.Images;
-import android.util.Base64;
 import android.util.Log;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.ImageView;
@@ -82,6 +80,45 @@ public class Utils {
         }  
     }
 
+    /**
+     * Returns a thumbnail of the image file at the @a pathname whose
+     * largest dimension is at most @a size pixels, or null if it
+     * can't be decoded.  The image is subsampled while it's decoded,
+     * so the full-size Bitmap is never allocated.
+     */
+    public static Bitmap makeThumbnail(String pathname,
+                                       int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(pathname, options);
+        int largest = Math.max(options.outWidth, options.outHeight);
+        if (largest <= 0)
+            return null;
+
+        // Subsample by the largest power of 2 that keeps the image at
+        // least as large as the thumbnail.
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (largest / (options.inSampleSize * 2) >= size)
+            options.inSampleSize *= 2;
+        Bitmap bitmap = BitmapFactory.decodeFile(pathname, options);
+        if (bitmap == null)
+            return null;
+
+        // Scale the rest of the way down.
+        largest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (largest <= size)
+            return bitmap;
+        Bitmap thumbnail =
+            Bitmap.createScaledBitmap(bitmap,
+                                      Math.max(1, bitmap.getWidth() * size / largest),
+                                      Math.max(1, bitmap.getHeight() * size / largest),
+                                      true);
+        if (thumbnail != bitmap)
+            bitmap.recycle();
+        return thumbnail;
+    }
+
     /**
      * Apply a grayscale filter to the @a imageEntity and return it.
      */
@@ -131,151 +168,114 @@ public class Utils {
             }
         }
 
-        return Utils.createDirectoryAndSaveFile
-            (context, 
-             grayScaleImage,
+        DownloadManifest.Entry entry = makeImageStore(context).save
+            (BitmapImageCodec.encode(null,
+                                     grayScaleImage,
+                                     OutputFormat.DEFAULT),
+             grayScaleImage.getWidth(),
+             grayScaleImage.getHeight(),
+             pathToImageFile.toString(),
              // Name of the image file that we're filtering.
              pathToImageFile.toString(),
-             directoryPathname.toString());
+             directoryPathname.toString(),
+             null);
+        return entry.succeeded() 
+            ? Uri.parse(entry.getImagePathname())
+            : null;
     }
     
+    /**
+     * Factory method that returns an ImageStore that stores images
+     * in the @a context, encoding them with Bitmap and inserting them
+     * into the MediaStore.  If we're offline the ImageStore "downloads"
+     * the image in our resources instead.
+     */
+    public static ImageStore makeImageStore(Context context) {
+        return makeImageStore(context,
+                              null);
+    }
+
+    /**
+     * Factory method that returns an ImageStore like
+     * makeImageStore(Context) whose files are sharded and counted
+     * against the quota of the @a storageManager.
+     */
+    public static ImageStore makeImageStore(final Context context,
+                                            StorageManager storageManager) {
+        if (!DOWNLOAD_OFFLINE)
+            return new ImageStore(new BitmapImageCodec(),
+                                  new MediaStoreIndex(context),
+                                  ImageFileWriter.getInstance(),
+                                  storageManager);
+
+        return new ImageStore(new BitmapImageCodec(),
+                              new MediaStoreIndex(context),
+                              ImageFileWriter.getInstance(),
+                              storageManager) {
+            @Override
+            public DownloadManifest.Entry download(String url,
+                                                   String directoryPathname,
+                                                   OutputFormat outputFormat,
+                                                   long maxImageBytes,
+                                                   DownloadAttempt attempt) {
+                // Get a stream from the image resource.
+                try (InputStream inputStream =
+                     ImageResponse.check(context.getResources().openRawResource(OFFLINE_TEST_IMAGE),
+                                         maxImageBytes)) {
+                        // Create an output file and save the image
+                        // into it.
+                        return store(inputStream,
+                                     url,
+                                     OFFLINE_FILENAME,
+                                     directoryPathname,
+                                     outputFormat,
+                                     attempt);
+                } catch (Exception e) {
+                    Log.e(TAG,
+                          "Exception getting resources."
+                          + e.toString());
+                    return DownloadManifest.Entry.failed(url);
+                }
+            }
+        };
+    }
+
     /**
      * Download the image located at the provided Internet url using
      * the URL class, store it on the android file system using a
-     * FileOutputStream, and return the path to the image file on
-     * disk.
+     * FileOutputStream, and return a manifest entry describing the
+     * image file on disk.
      *
      * @param context	the context in which to write the file.
      * @param url       the web url.
+     * @param outputFormat how the image is encoded before it's stored.
+     * @param maxImageBytes the ceiling on the size of the image.
+     * @param attempt   the attempt this download is part of.
      * 
-     * @return          the absolute path to the downloaded image file on the file system.
+     * @return          the manifest entry of the download, which holds
+     *                  the absolute path to the downloaded image file on
+     *                  the file system if the download succeeded.  If
+     *                  an image with the same contents is already
+     *                  stored in the directory this is the path to
+     *                  that file.
      */
-    public static Uri downloadImage(Context context,
-                                    Uri url,
-                                    String directoryPathname) {
+    public static DownloadManifest.Entry downloadImage(Context context,
+                                                      Uri url,
+                                                      String directoryPathname,
+                                                      OutputFormat outputFormat,
+                                                      long maxImageBytes,
+                                                      DownloadAttempt attempt) {
         if (!isExternalStorageWritable()) {
             Log.d(TAG,
                   "external storage is not writable");
-            return null;
+            return DownloadManifest.Entry.failed(url.toString());
         }
 
-        // If we're offline, open the image in our resources.
-        if (DOWNLOAD_OFFLINE) {
-            // Get a stream from the image resource.
-            try (InputStream inputStream =
-                 context.getResources().openRawResource(OFFLINE_TEST_IMAGE)) {
-                    // Create an output file and save the image into it.
-                    return Utils.createDirectoryAndSaveFile
-                        (context,
-                         // Decode the InputStream into a Bitmap image.
-                         BitmapFactory.decodeStream(inputStream),
-                         OFFLINE_FILENAME,
-                         directoryPathname);
-            } catch (Exception e) {
-                Log.e(TAG,
-                      "Exception getting resources."
-                      + e.toString());
-                return null;
-            }
-        } 
-        // Otherwise, download the file requested by the user.
-        else {
-            // Download the contents at the URL, which should
-            // reference an image.
-            try (InputStream inputStream = 
-                 (InputStream) new URL(url.toString()).getContent()) {
-                    // Create an output file and save the image into it.
-                    return Utils.createDirectoryAndSaveFile
-                        (context,
-                         // Decode the InputStream into a Bitmap image.
-                         BitmapFactory.decodeStream(inputStream),
-                         url.toString(),
-                         directoryPathname);
-             } catch (Exception e) {
-                Log.e(TAG,
-                      "Exception while downloading -- returning null."
-                      + e.toString());
-                return null;
-            }
-        }
-    }
-        
-    /**
-     * Decode an InputStream into a Bitmap and store it in a file on
-     * the device.
-     *
-     * @param context	   the context in which to write the file.
-     * @param inputStream  the Input Stream.
-     * @param fileName     name of the file.
-     * 
-     * @return          the absolute path to the downloaded image file on the file system.
-     */
-    private static Uri createDirectoryAndSaveFile(Context context,
-                                                  Bitmap imageToSave,
-                                                  String fileName,
-                                                  String directoryPathname) {
-        // Bail out of we get an invalid bitmap.
-        if (imageToSave == null)
-            return null;
-
-        // Try to open a directory.
-        File directory =
-            new File(directoryPathname);
-
-        // If the directory doesn't exist already then create it.
-        if (!directory.exists()) {
-            // File newDirectory =
-            // new File(directory.getAbsolutePath());
-            directory.mkdirs();
-        }
-
-        File file = new File(directory, 
-                             getTemporaryFilename(fileName));
-        // Delete the file if it already exists.
-        if (file.exists())
-            file.delete();
-
-        // Save the image to the output file.
-        try (FileOutputStream outputStream = new FileOutputStream(file)) {
-            imageToSave.compress(Bitmap.CompressFormat.JPEG,
-                                 100,
-                                 outputStream);
-            outputStream.flush();
-        } catch (Exception e) {
-            // Indicate a failure.
-            return null;
-        }
-
-        // Get the absolute path of the image.
-        String absolutePathToImage = file.getAbsolutePath();
-
-        // Provide metadata so the downloaded image is viewable in the
-        // Gallery.
-        ContentValues values =
-            new ContentValues();
-        values.put(Images.Media.TITLE,
-                   fileName);
-        values.put(Images.Media.DESCRIPTION,
-                   fileName);
-        values.put(Images.Media.DATE_TAKEN,
-                   System.currentTimeMillis ());
-        values.put(Images.ImageColumns.BUCKET_DISPLAY_NAME,
-                   file.getName().toLowerCase(Locale.US));
-        values.put("_data",
-                   absolutePathToImage);
-        
-        ContentResolver cr = 
-            context.getContentResolver();
-
-        // Store the metadata for the image into the Gallery.
-        cr.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
-                  values);
-
-        Log.d(TAG,
-              "absolute path to image file is " 
-              + absolutePathToImage);
-            
-        return Uri.parse(absolutePathToImage);
+        return makeImageStore(context).download(url.toString(),
+                                                directoryPathname,
+                                                outputFormat,
+                                                maxImageBytes,
+                                                attempt);
     }
 
     /**
@@ -283,30 +283,11 @@ public class Utils {
      * 
      * @return true if an image can be written, and false otherwise
      */
-    private static boolean isExternalStorageWritable() {
+    public static boolean isExternalStorageWritable() {
         return Environment.MEDIA_MOUNTED.equals
             (Environment.getExternalStorageState());
     }
 
-    /**
-     * Create a temporary filename to store the result of a download.
-     * 
-     * @param url Name of the URL.
-     * @return String containing the temporary filename.
-     */
-    static private String getTemporaryFilename(final String url) {
-        // This is what you'd normally call to get a unique temporary
-        // filename, but for testing purposes we always name the file
-        // the same to avoid filling up student phones with numerous
-        // files!
-        //
-        // return Base64.encodeToString((url.toString() 
-        //                              + System.currentTimeMillis()).getBytes(),
-        //                              Base64.NO_WRAP);
-        return Base64.encodeToString(url.getBytes(),
-                                     Base64.NO_WRAP);
-    }
-
     /**
      * Show a toast message.
      */
@@ -0,0 +1,23 @@
+package vandy.mooc.utils;
+
+import vandy.mooc.download.Logger;
+import android.util.Log;
+
+/**
+ * A Logger that forwards the log messages of the download core to
+ * the Android logger.
+ */
+public class AndroidLogger implements Logger {
+    @Override
+    public void d(String tag,
+                  String message) {
+        Log.d(tag, message);
+    }
+
+    @Override
+    public void e(String tag,
+                  String message,
+                  Throwable throwable) {
+        Log.e(tag, message, throwable);
+    }
+}
@@ -0,0 +1,123 @@
+package vandy.mooc.utils;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+import android.util.LruCache;
+
+/**
+ * Caches the Bitmaps decoded from image files within a memory budget,
+ * keyed by the pathname of the file and the sample size it was
+ * decoded at.  An instance is stored in the RetainedFragmentManager
+ * so it survives runtime configuration changes, which lets a rotated
+ * Activity show its images again without decoding them from disk.
+ * The least recently used Bitmaps are evicted once the budget is
+ * used up, and more of them as the system asks via onTrimMemory().
+ */
+public class BitmapCache {
+    /**
+     * Debugging tag used by the Android logger.
+     */
+    private final static String TAG = "BitmapCache";
+
+    /**
+     * The budget is this fraction of the app's memory class.
+     */
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+
+    /**
+     * Maps the key of each Bitmap to the Bitmap, sized in kilobytes.
+     */
+    private final LruCache<String, Bitmap> mCache;
+
+    /**
+     * Constructor sizes the cache to a fraction of the memory class
+     * of the app running in @a context.
+     */
+    public BitmapCache(Context context) {
+        ActivityManager activityManager = (ActivityManager)
+            context.getSystemService(Context.ACTIVITY_SERVICE);
+        int maxKilobytes = activityManager.getMemoryClass()
+            * 1024
+            / MEMORY_CLASS_DIVISOR;
+
+        mCache = new LruCache<String, Bitmap>(maxKilobytes) {
+                @Override
+                protected int sizeOf(String key,
+                                     Bitmap bitmap) {
+                    return bitmap.getByteCount() / 1024 + 1;
+                }
+            };
+    }
+
+    /**
+     * Returns the Bitmap decoded from the @a pathname at the @a
+     * sampleSize, or null if it's not cached.
+     */
+    public Bitmap get(String pathname,
+                      int sampleSize) {
+        return mCache.get(makeKey(pathname, sampleSize));
+    }
+
+    /**
+     * Cache the @a bitmap decoded from the @a pathname at the @a
+     * sampleSize.
+     */
+    public void put(String pathname,
+                    int sampleSize,
+                    Bitmap bitmap) {
+        if (bitmap != null)
+            mCache.put(makeKey(pathname, sampleSize), bitmap);
+    }
+
+    /**
+     * Evict Bitmaps according to the @a level passed to
+     * onTrimMemory(): all of them once the process is a candidate to
+     * be killed, down to a quarter of the budget when it's in the
+     * background or memory is critically low, and down to half of it
+     * otherwise.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE)
+            mCache.evictAll();
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                 || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+            trimTo(mCache.maxSize() / 4);
+        else
+            trimTo(mCache.maxSize() / 2);
+
+        Log.d(TAG,
+              "trimmed for level "
+              + level
+              + " to "
+              + mCache.size()
+              + " of "
+              + mCache.maxSize()
+              + " KB");
+    }
+
+    /**
+     * Evict the least recently used Bitmaps until the cache holds at
+     * most @a maxKilobytes.
+     */
+    private void trimTo(int maxKilobytes) {
+        // The snapshot is ordered from the least to the most recently
+        // used Bitmap.
+        for (String key : mCache.snapshot().keySet()) {
+            if (mCache.size() <= maxKilobytes)
+                break;
+            mCache.remove(key);
+        }
+    }
+
+    /**
+     * Returns the key of the Bitmap decoded from the @a pathname at
+     * the @a sampleSize.
+     */
+    private static String makeKey(String pathname,
+                                  int sampleSize) {
+        return pathname + "#" + sampleSize;
+    }
+}
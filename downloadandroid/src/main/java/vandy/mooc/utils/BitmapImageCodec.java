@@ -0,0 +1,164 @@
+package vandy.mooc.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import vandy.mooc.download.DownloadStats;
+import vandy.mooc.download.ImageCodec;
+import vandy.mooc.download.OutputFormat;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * An ImageCodec that decodes images with BitmapFactory and encodes
+ * them with Bitmap.compress().
+ */
+public class BitmapImageCodec implements ImageCodec {
+    /**
+     * Decode the @a file into a Bitmap image unless it's stored
+     * unchanged, in which case only its bounds are decoded to check
+     * that it's an image, and encode it as the @a outputFormat
+     * requires.  The compressed bytes of the file are never read into
+     * memory as a whole.
+     */
+    @Override
+    public EncodedImage encode(File file,
+                               OutputFormat outputFormat) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = !outputFormat.needsDecode();
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(),
+                                                 options);
+        if (outputFormat.needsDecode()) {
+            if (bitmap == null)
+                return null;
+            DownloadStats.getInstance().recordDecode();
+        } else if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+
+        // The file is stored unchanged unless another encoding is
+        // required or smaller.
+        byte[] encoded = null;
+        switch (outputFormat.getMode()) {
+        case ORIGINAL:
+            DownloadStats.getInstance().recordStoredFormat
+                (OutputFormat.Mode.ORIGINAL);
+            break;
+        case JPEG:
+        case WEBP:
+            encoded = compress(bitmap,
+                               outputFormat.getMode(),
+                               outputFormat.getQuality());
+            if (encoded == null)
+                return null;
+            DownloadStats.getInstance().recordStoredFormat
+                (outputFormat.getMode());
+            break;
+        default:
+            encoded = compressSmallest(bitmap,
+                                       outputFormat.getQuality(),
+                                       file.length());
+            break;
+        }
+        return new EncodedImage(encoded,
+                                options.outWidth,
+                                options.outHeight);
+    }
+
+    /**
+     * Encode the image according to the @a outputFormat and return
+     * the bytes to store.  The @a originalBytes are the downloaded
+     * bytes and the @a bitmap is their decoded image, which is null
+     * for the ORIGINAL mode.  Returns null if the image can't be
+     * encoded.
+     */
+    public static byte[] encode(byte[] originalBytes,
+                                Bitmap bitmap,
+                                OutputFormat outputFormat) {
+        byte[] bytes;
+        OutputFormat.Mode chosen = outputFormat.getMode();
+
+        switch (outputFormat.getMode()) {
+        case ORIGINAL:
+            bytes = originalBytes;
+            break;
+        case JPEG:
+        case WEBP:
+            bytes = compress(bitmap,
+                             outputFormat.getMode(),
+                             outputFormat.getQuality());
+            break;
+        default:
+            // The smallest encoding records its own format.
+            bytes = compressSmallest(bitmap,
+                                     outputFormat.getQuality(),
+                                     originalBytes.length);
+            return bytes != null ? bytes : originalBytes;
+        }
+
+        if (bytes != null)
+            DownloadStats.getInstance().recordStoredFormat(chosen);
+        return bytes;
+    }
+
+    /**
+     * Returns the smallest of the WEBP and JPEG encodings of the @a
+     * bitmap at the @a quality, or null if neither is smaller than
+     * the @a originalLength bytes that were downloaded, which always
+     * qualify.  JPEG is only a candidate if it doesn't lose
+     * transparency.
+     */
+    private static byte[] compressSmallest(Bitmap bitmap,
+                                           int quality,
+                                           long originalLength) {
+        byte[] bytes = null;
+        long smallest = originalLength;
+        OutputFormat.Mode chosen = OutputFormat.Mode.ORIGINAL;
+
+        byte[] webp = compress(bitmap,
+                               OutputFormat.Mode.WEBP,
+                               quality);
+        if (webp != null && webp.length < smallest) {
+            bytes = webp;
+            smallest = webp.length;
+            chosen = OutputFormat.Mode.WEBP;
+        }
+
+        if (!bitmap.hasAlpha()) {
+            byte[] jpeg = compress(bitmap,
+                                   OutputFormat.Mode.JPEG,
+                                   quality);
+            if (jpeg != null && jpeg.length < smallest) {
+                bytes = jpeg;
+                chosen = OutputFormat.Mode.JPEG;
+            }
+        }
+
+        DownloadStats.getInstance().recordStoredFormat(chosen);
+        return bytes;
+    }
+
+    /**
+     * Compress the @a bitmap in the given @a mode (JPEG or WEBP) at
+     * the given @a quality, recording how long it took and how many
+     * bytes it produced.
+     */
+    private static byte[] compress(Bitmap bitmap,
+                                   OutputFormat.Mode mode,
+                                   int quality) {
+        long start = System.nanoTime();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        if (!bitmap.compress(mode == OutputFormat.Mode.WEBP
+                             ? Bitmap.CompressFormat.WEBP
+                             : Bitmap.CompressFormat.JPEG,
+                             quality,
+                             outputStream))
+            return null;
+
+        byte[] bytes = outputStream.toByteArray();
+        DownloadStats.getInstance().recordEncode
+            (mode,
+             System.nanoTime() - start,
+             bytes.length);
+        return bytes;
+    }
+}
@@ -0,0 +1,146 @@
+package vandy.mooc.utils;
+
+import java.util.Locale;
+
+import android.view.Choreographer;
+
+/**
+ * Measures the intervals between the frames drawn by the UI Thread
+ * while it's running, e.g., during a batch of downloads.  Comparing
+ * their variance with the download Service in its own process and
+ * in the app's process shows how much jank the Service's GC pauses
+ * cause.  The intervals cover every Activity on the UI Thread, so a
+ * gallery started during the batch is measured too.  It must be
+ * started and stopped on the UI Thread.
+ */
+public class FrameTimeMonitor implements Choreographer.FrameCallback {
+    /**
+     * An interval longer than this means at least one frame was
+     * dropped at 60 frames per second.
+     */
+    private static final long JANK_NANOS = 32 * 1000 * 1000;
+
+    /**
+     * True while the frames are being measured.
+     */
+    private boolean mRunning;
+
+    /**
+     * Time of the last frame, or 0 if none has been drawn yet.
+     */
+    private long mLastFrameNanos;
+
+    /**
+     * Number of intervals measured.
+     */
+    private int mIntervals;
+
+    /**
+     * Running mean of the intervals in nanoseconds.
+     */
+    private double mMeanNanos;
+
+    /**
+     * Running sum of the squared deviations of the intervals from
+     * their mean, from which the variance is computed.
+     */
+    private double mSquaredDeviations;
+
+    /**
+     * Longest interval in nanoseconds.
+     */
+    private long mMaxNanos;
+
+    /**
+     * Number of intervals longer than JANK_NANOS.
+     */
+    private int mJankyIntervals;
+
+    /**
+     * Start measuring the frames afresh, unless they're already being
+     * measured.
+     */
+    public void start() {
+        if (mRunning)
+            return;
+        mRunning = true;
+        mLastFrameNanos = 0;
+        mIntervals = 0;
+        mMeanNanos = 0;
+        mSquaredDeviations = 0;
+        mMaxNanos = 0;
+        mJankyIntervals = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Stop measuring the frames, keeping the measurements.
+     */
+    public void stop() {
+        if (!mRunning)
+            return;
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+    }
+
+    /**
+     * Returns true while the frames are being measured.
+     */
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Hook method called back by the Choreographer when a frame
+     * starts at @a frameTimeNanos.
+     */
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning)
+            return;
+        if (mLastFrameNanos != 0)
+            record(frameTimeNanos - mLastFrameNanos);
+        mLastFrameNanos = frameTimeNanos;
+
+        // Ask to be called back on the next frame too.
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Record the @a intervalNanos between two frames, updating the
+     * mean and variance in one pass (Welford's method).
+     */
+    private void record(long intervalNanos) {
+        ++mIntervals;
+        double delta = intervalNanos - mMeanNanos;
+        mMeanNanos += delta / mIntervals;
+        mSquaredDeviations += delta * (intervalNanos - mMeanNanos);
+        mMaxNanos = Math.max(mMaxNanos, intervalNanos);
+        if (intervalNanos > JANK_NANOS)
+            ++mJankyIntervals;
+    }
+
+    /**
+     * Returns the variance of the intervals in milliseconds squared.
+     */
+    public double getVarianceMs() {
+        return mIntervals < 2
+            ? 0
+            : mSquaredDeviations / (mIntervals - 1) / 1e12;
+    }
+
+    /**
+     * Returns a one-line summary of the intervals for logging.
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.US,
+                             "frames=%d mean=%.2f ms variance=%.2f ms^2"
+                             + " max=%.2f ms janky=%d",
+                             mIntervals,
+                             mMeanNanos / 1e6,
+                             getVarianceMs(),
+                             mMaxNanos / 1e6,
+                             mJankyIntervals);
+    }
+}
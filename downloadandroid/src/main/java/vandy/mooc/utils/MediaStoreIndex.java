@@ -0,0 +1,77 @@
+package vandy.mooc.utils;
+
+import java.io.File;
+import java.util.Locale;
+
+import vandy.mooc.download.MediaIndex;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.provider.MediaStore;
+import android.provider.MediaStore.Images;
+
+/**
+ * A MediaIndex that inserts the stored images into the MediaStore,
+ * so they're viewable in the Gallery, and deletes their rows when
+ * they're removed.
+ */
+public class MediaStoreIndex implements MediaIndex {
+    /**
+     * Context whose ContentResolver inserts the images.
+     */
+    private final Context mContext;
+
+    /**
+     * Constructor initializes the field.
+     */
+    public MediaStoreIndex(Context context) {
+        mContext = context;
+    }
+
+    @Override
+    public void add(File file,
+                    String title) {
+        // Provide metadata so the downloaded image is viewable in the
+        // Gallery.
+        ContentValues values =
+            new ContentValues();
+        values.put(Images.Media.TITLE,
+                   title);
+        values.put(Images.Media.DESCRIPTION,
+                   title);
+        values.put(Images.Media.DATE_TAKEN,
+                   System.currentTimeMillis ());
+        values.put(Images.ImageColumns.BUCKET_DISPLAY_NAME,
+                   file.getName().toLowerCase(Locale.US));
+        values.put("_data",
+                   file.getAbsolutePath());
+        
+        ContentResolver cr = 
+            mContext.getContentResolver();
+
+        // Store the metadata for the image into the Gallery.
+        cr.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+                  values);
+    }
+
+    @Override
+    public void removeDirectory(File directory) {
+        // Delete the rows of every image under the directory in one
+        // statement.
+        String prefix = directory.getAbsolutePath() + File.separator;
+        mContext.getContentResolver().delete
+            (MediaStore.Images.Media.EXTERNAL_CONTENT_URI,
+             "_data LIKE ? ESCAPE '\\'",
+             new String[] { escapeLike(prefix) + "%" });
+    }
+
+    /**
+     * Returns the @a value with the wildcards of a LIKE pattern
+     * escaped.
+     */
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\")
+                    .replace("%", "\\%")
+                    .replace("_", "\\_");
+    }
+}
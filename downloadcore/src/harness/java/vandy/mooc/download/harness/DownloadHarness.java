@@ -0,0 +1,321 @@
+package vandy.mooc.download.harness;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vandy.mooc.download.AdaptiveLimiter;
+import vandy.mooc.download.DownloadEngine;
+import vandy.mooc.download.DownloadManifest;
+import vandy.mooc.download.DownloadRequest;
+import vandy.mooc.download.DownloadScheduler;
+import vandy.mooc.download.DownloadStats;
+import vandy.mooc.download.ImageResponse;
+import vandy.mooc.download.ImageStore;
+import vandy.mooc.download.LatencyTracker;
+import vandy.mooc.download.Log;
+import vandy.mooc.download.Logger;
+import vandy.mooc.download.MediaIndex;
+import vandy.mooc.download.NioDownloadEngine;
+import vandy.mooc.download.OutputFormat;
+import vandy.mooc.download.RetryPolicy;
+import vandy.mooc.download.SizeProbe;
+import vandy.mooc.download.ThreadPoolDownloadEngine;
+import vandy.mooc.download.VirtualThreadDownloadEngine;
+
+/**
+ * Downloads a batch of images from a StubImageServer with each
+ * DownloadEngine, the same way the Service does, and reports how
+ * long each batch took, how many threads it needed, and the mean and
+ * median time for a download to complete.  Usage:
+ *
+ *   DownloadHarness [count [imageBytes [delayMs [engine ...]]]]
+ *
+ * where imageBytes is either the size of every image or a range
+ * "<min>-<max>" the sizes are spread over log-uniformly, the same
+ * sizes in the same order for each engine,
+ * where each engine is one of
+ *
+ *   threads   a cached pool of platform threads, as on a phone
+ *   cached    a cached pool of up to 1024 platform threads
+ *   vthreads  a virtual thread per download, up to 1024 at once
+ *   nio       the NioHttpClient
+ *
+ * and all but "threads" run by default ("vthreads" needs Java 21).
+ * An engine followed by ":<limit>", e.g., "nio:1024", runs with that
+ * many downloads in flight rather than the number the
+ * AdaptiveLimiter chooses, which compares the engines themselves.
+ * An engine followed by "+sjf", e.g., "threads:8+sjf", probes the
+ * size of each image and starts the smallest first, which is best
+ * compared with the same engine and limit without it, e.g.,
+ *
+ *   DownloadHarness 1000 2048-204800 0 threads:8 threads:8+sjf
+ */
+public class DownloadHarness {
+    /**
+     * Default number of images in a batch.
+     */
+    private static final int DEFAULT_COUNT = 1000;
+
+    /**
+     * Default size of each image.
+     */
+    private static final int DEFAULT_IMAGE_BYTES = 20 * 1024;
+
+    /**
+     * Most downloads in flight at once with the "cached" engine.
+     */
+    private static final int CACHED_MAX_DOWNLOADS = 1024;
+
+    /**
+     * Seed of the image sizes, so each engine gets the same ones.
+     */
+    private static final long SIZE_SEED = 42;
+
+    /**
+     * Runs the harness.
+     */
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0
+            ? Integer.parseInt(args[0])
+            : DEFAULT_COUNT;
+        String[] imageBytes = args.length > 1
+            ? args[1].split("-")
+            : new String[] { Integer.toString(DEFAULT_IMAGE_BYTES) };
+        int minImageBytes = Integer.parseInt(imageBytes[0]);
+        int maxImageBytes = Integer.parseInt(imageBytes[imageBytes.length - 1]);
+        long delayMs = args.length > 2
+            ? Long.parseLong(args[2])
+            : 0;
+        String[] engines = args.length > 3
+            ? Arrays.copyOfRange(args, 3, args.length)
+            : VirtualThreadDownloadEngine.isAvailable()
+            ? new String[] { "cached", "vthreads", "nio" }
+            : new String[] { "cached", "nio" };
+
+        // Only report errors, since the limiter and the downloads log
+        // a debug message each.
+        Log.setLogger(new Logger() {
+                @Override
+                public void d(String tag,
+                              String message) {
+                }
+
+                @Override
+                public void e(String tag,
+                              String message,
+                              Throwable throwable) {
+                    System.err.println("E/" + tag + ": " + message);
+                }
+            });
+
+        StubImageServer server = new StubImageServer(minImageBytes, delayMs);
+        try {
+            System.out.println(count
+                               + " images of "
+                               + (minImageBytes == maxImageBytes
+                                  ? minImageBytes
+                                  : minImageBytes + " to " + maxImageBytes)
+                               + " bytes, "
+                               + delayMs
+                               + " ms server delay");
+            for (String engine : engines)
+                runBatch(engine,
+                         server,
+                         makeSizes(count, minImageBytes, maxImageBytes));
+        } finally {
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Returns the sizes of @a count images spread log-uniformly from
+     * @a minImageBytes to @a maxImageBytes.
+     */
+    private static int[] makeSizes(int count,
+                                   int minImageBytes,
+                                   int maxImageBytes) {
+        Random random = new Random(SIZE_SEED);
+        double ratio = (double) maxImageBytes / minImageBytes;
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; ++i)
+            sizes[i] =
+                (int) Math.round(minImageBytes
+                                 * Math.pow(ratio, random.nextDouble()));
+        return sizes;
+    }
+
+    /**
+     * Download images of the @a sizes from the @a server with the
+     * engine of the @a engineSpec and report the results.
+     */
+    private static void runBatch(String engineSpec,
+                                 StubImageServer server,
+                                 int[] sizes) throws Exception {
+        int count = sizes.length;
+        boolean shortestJobFirst = engineSpec.endsWith("+sjf");
+        String[] parts = engineSpec.replace("+sjf", "").split(":");
+        String engineName = parts[0];
+        File directory = makeTemporaryDirectory(engineName);
+        ImageStore imageStore = new ImageStore(new PngImageCodec(),
+                                               MediaIndex.NONE);
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        DownloadEngine engine = makeEngine(engineName,
+                                           imageStore,
+                                           executorService);
+        int[] bounds = parts.length > 1
+            ? new int[] { Integer.parseInt(parts[1]),
+                          Integer.parseInt(parts[1]),
+                          Integer.parseInt(parts[1]) }
+            : engine.getConcurrencyBounds();
+        DownloadScheduler scheduler =
+            new DownloadScheduler(executorService,
+                                  new AdaptiveLimiter(bounds[0],
+                                                      bounds[1],
+                                                      bounds[2]));
+        SizeProbe sizeProbe = null;
+        if (shortestJobFirst) {
+            scheduler.setShortestJobFirst
+                (DownloadScheduler.DEFAULT_AGING_BYTES_PER_SECOND);
+            sizeProbe = new SizeProbe();
+        }
+        ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor();
+        LatencyTracker latencyTracker = new LatencyTracker();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicInteger failures = new AtomicInteger();
+        final long[] completionNanos = new long[count];
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < count; ++i) {
+            final int index = i;
+            DownloadRequest request =
+                new DownloadRequest(server.getUrl(engineName + i, sizes[i]),
+                                    directory.getPath(),
+                                    OutputFormat.DEFAULT,
+                                    ImageResponse.DEFAULT_MAX_IMAGE_BYTES,
+                                    RetryPolicy.DEFAULT,
+                                    engine,
+                                    scheduler,
+                                    timer,
+                                    latencyTracker,
+                                    new DownloadRequest.Callback() {
+                                        @Override
+                                        public void onComplete(DownloadManifest.Entry entry) {
+                                            completionNanos[index] =
+                                                System.nanoTime() - start;
+                                            if (!entry.succeeded())
+                                                failures.incrementAndGet();
+                                            done.countDown();
+                                        }
+                                    });
+            request.setSizeProbe(sizeProbe);
+            request.start();
+        }
+        done.await();
+        long elapsedMs =
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // The mean and median times to complete, which the order the
+        // downloads start in affects even when the total doesn't.
+        long totalNanos = 0;
+        for (long nanos : completionNanos)
+            totalNanos += nanos;
+        Arrays.sort(completionNanos);
+
+        System.out.println(engineSpec
+                           + ": "
+                           + elapsedMs
+                           + " ms, "
+                           + (count - failures.get())
+                           + " ok, "
+                           + failures.get()
+                           + " failed, "
+                           + (elapsedMs == 0 ? count : count * 1000L / elapsedMs)
+                           + " images/s, peak threads "
+                           + threads.getPeakThreadCount()
+                           + ", p50 "
+                           + latencyTracker.getPercentile(0.5)
+                           + " ms, p95 "
+                           + latencyTracker.getPercentile(0.95)
+                           + " ms, final limit "
+                           + scheduler.getLimiter().getLimit()
+                           + ", completion mean "
+                           + TimeUnit.NANOSECONDS.toMillis(totalNanos / count)
+                           + " ms, median "
+                           + TimeUnit.NANOSECONDS.toMillis(completionNanos[count / 2])
+                           + " ms, "
+                           + DownloadStats.getInstance().getSyncedFiles()
+                           + " files forced in "
+                           + DownloadStats.getInstance().getSyncs()
+                           + " commits");
+
+        if (sizeProbe != null)
+            sizeProbe.shutdown();
+        scheduler.shutdown();
+        timer.shutdownNow();
+        engine.shutdown();
+        executorService.shutdown();
+        deleteDirectory(directory);
+    }
+
+    /**
+     * Factory method that returns the engine named @a engineName.
+     */
+    private static DownloadEngine makeEngine(String engineName,
+                                             ImageStore imageStore,
+                                             ExecutorService executorService)
+        throws IOException {
+        switch (engineName) {
+        case "threads":
+            return new ThreadPoolDownloadEngine(imageStore);
+        case "cached":
+            return new ThreadPoolDownloadEngine(imageStore,
+                                                CACHED_MAX_DOWNLOADS);
+        case "vthreads":
+            return new VirtualThreadDownloadEngine
+                (imageStore,
+                 VirtualThreadDownloadEngine.DEFAULT_MAX_DOWNLOADS);
+        case "nio":
+            return new NioDownloadEngine(imageStore, executorService);
+        default:
+            throw new IllegalArgumentException("unknown engine "
+                                               + engineName);
+        }
+    }
+
+    /**
+     * Returns a new empty temporary directory.
+     */
+    private static File makeTemporaryDirectory(String prefix)
+        throws IOException {
+        File directory = File.createTempFile("harness-" + prefix, "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("can't create " + directory);
+        return directory;
+    }
+
+    /**
+     * Delete the @a directory and the files in it.
+     */
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+}
@@ -0,0 +1,142 @@
+package vandy.mooc.download.harness;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP server that serves distinct PNG images of a fixed
+ * size at "/image/<n>", or of <b> bytes at "/image/<n>?bytes=<b>",
+ * optionally after a delay that simulates a slow network.  Each
+ * image is a 1x1 PNG followed by bytes unique to <n> up to the size,
+ * which decoders ignore but which keep the ContentIndex from
+ * treating the images as duplicates.  A HEAD request gets the same
+ * headers without the body.
+ */
+public class StubImageServer {
+    /**
+     * A complete 1x1 PNG image.
+     */
+    static final byte[] PNG = {
+        (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n',
+        0, 0, 0, 13, 'I', 'H', 'D', 'R',
+        0, 0, 0, 1, 0, 0, 0, 1, 8, 6, 0, 0, 0,
+        0x1f, 0x15, (byte) 0xc4, (byte) 0x89,
+        0, 0, 0, 13, 'I', 'D', 'A', 'T',
+        0x78, (byte) 0x9c, 0x63, (byte) 0xf8, (byte) 0xcf, (byte) 0xc0,
+        (byte) 0xf0, 0x1f, 0, 0x05, 0, 0x01, (byte) 0xff,
+        (byte) 0x89, (byte) 0x99, 0x3d, 0x1d,
+        0, 0, 0, 0, 'I', 'E', 'N', 'D',
+        (byte) 0xae, 0x42, 0x60, (byte) 0x82
+    };
+
+    /**
+     * The underlying server.
+     */
+    private final HttpServer mServer;
+
+    /**
+     * Runs the exchanges, one thread each so delays overlap.
+     */
+    private final ExecutorService mExecutorService =
+        Executors.newCachedThreadPool();
+
+    /**
+     * Constructor starts a server on an ephemeral port of the
+     * loopback interface that serves images of @a imageBytes bytes
+     * after @a delayMs milliseconds.
+     */
+    public StubImageServer(final int imageBytes,
+                           final long delayMs) throws IOException {
+        // Send each response without waiting for an ACK, otherwise
+        // Nagle's algorithm and delayed ACKs add 40 ms to every
+        // response on the loopback interface.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0),
+                                    1024);
+        mServer.createContext("/image/", new HttpHandler() {
+                @Override
+                public void handle(HttpExchange exchange) throws IOException {
+                    try {
+                        if (delayMs > 0)
+                            Thread.sleep(delayMs);
+                        String path = exchange.getRequestURI().getPath();
+                        String query = exchange.getRequestURI().getQuery();
+                        byte[] body =
+                            makeImage(path.substring(path.lastIndexOf('/') + 1),
+                                      query != null
+                                      && query.startsWith("bytes=")
+                                      ? Integer.parseInt(query.substring(6))
+                                      : imageBytes);
+                        exchange.getResponseHeaders().set("Content-Type",
+                                                          "image/png");
+                        if ("HEAD".equals(exchange.getRequestMethod())) {
+                            exchange.getResponseHeaders().set
+                                ("Content-Length",
+                                 Integer.toString(body.length));
+                            exchange.sendResponseHeaders(200, -1);
+                            return;
+                        }
+                        exchange.sendResponseHeaders(200, body.length);
+                        try (OutputStream outputStream =
+                             exchange.getResponseBody()) {
+                            outputStream.write(body);
+                        }
+                    } catch (InterruptedException e) {
+                        exchange.sendResponseHeaders(503, -1);
+                    } finally {
+                        exchange.close();
+                    }
+                }
+            });
+        mServer.setExecutor(mExecutorService);
+        mServer.start();
+    }
+
+    /**
+     * Returns the URL of the image named @a name.
+     */
+    public String getUrl(String name) {
+        return "http://127.0.0.1:"
+            + mServer.getAddress().getPort()
+            + "/image/"
+            + name;
+    }
+
+    /**
+     * Returns the URL of the image named @a name of @a imageBytes
+     * bytes.
+     */
+    public String getUrl(String name,
+                         int imageBytes) {
+        return getUrl(name) + "?bytes=" + imageBytes;
+    }
+
+    /**
+     * Stop the server.
+     */
+    public void stop() {
+        mServer.stop(0);
+        mExecutorService.shutdownNow();
+    }
+
+    /**
+     * Returns an image of @a imageBytes bytes that's unique to the @a
+     * name.
+     */
+    static byte[] makeImage(String name,
+                            int imageBytes) {
+        byte[] image = new byte[Math.max(imageBytes, PNG.length)];
+        System.arraycopy(PNG, 0, image, 0, PNG.length);
+        byte[] suffix = name.getBytes();
+        for (int i = PNG.length; i < image.length; ++i)
+            image[i] = suffix[(i - PNG.length) % suffix.length];
+        return image;
+    }
+}
@@ -0,0 +1,248 @@
+package vandy.mooc.download;
+
+
+/**
+ * Tunes the number of downloads that may be in flight at once using
+ * additive-increase/multiplicative-decrease (AIMD).  The outcome of
+ * each download is reported to the limiter, which evaluates a round
+ * once as many downloads as the current limit have completed.  The
+ * limit is halved if too many downloads in the round failed in a way
+ * that suggests congestion (e.g., timeouts or server errors) or if
+ * the aggregate throughput dropped well below that of the previous
+ * round, and it's otherwise increased by one, always staying within
+ * the configured bounds.  The current limit and a history of recent
+ * limits are exposed so convergence can be checked.
+ *
+ * The throughput of a round is the bytes of the downloads that
+ * transferred an image divided by the time at least one of them was
+ * running, so neither failures (e.g., bad URLs) nor the idle time
+ * between batches make it look like the throughput dropped.  A round
+ * without any such download leaves the limit as it is, unless it was
+ * congested.
+ */
+public class AdaptiveLimiter {
+    /**
+     * Debugging tag used by the logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    /**
+     * Fraction of congested downloads in a round above which the
+     * limit is decreased.
+     */
+    private static final double CONGESTION_THRESHOLD = 0.1;
+
+    /**
+     * Fraction by which the aggregate throughput of a round may drop
+     * relative to the previous round before the limit is decreased.
+     */
+    private static final double THROUGHPUT_TOLERANCE = 0.25;
+
+    /**
+     * Factor the limit is multiplied by when it's decreased.
+     */
+    private static final double DECREASE_FACTOR = 0.5;
+
+    /**
+     * Number of limits kept in the history.
+     */
+    private static final int HISTORY_SIZE = 64;
+
+    /**
+     * Lower bound on the limit.
+     */
+    private final int mMinLimit;
+
+    /**
+     * Upper bound on the limit.
+     */
+    private final int mMaxLimit;
+
+    /**
+     * The current limit.
+     */
+    private int mLimit;
+
+    /**
+     * Number of downloads that completed in the current round.
+     */
+    private int mRoundCompletions;
+
+    /**
+     * Number of downloads in the current round that failed in a way
+     * that suggests congestion.
+     */
+    private int mRoundCongested;
+
+    /**
+     * Number of downloads in the current round that transferred an
+     * image, which are the throughput samples.
+     */
+    private int mRoundSamples;
+
+    /**
+     * Number of bytes the samples of the current round transferred.
+     */
+    private long mRoundBytes;
+
+    /**
+     * Sum of the elapsed times of the samples of the current round,
+     * which is used to compute their average per-request throughput.
+     */
+    private long mRoundElapsedNanos;
+
+    /**
+     * Time in the current round during which at least one sample was
+     * running.
+     */
+    private long mRoundBusyNanos;
+
+    /**
+     * Time the latest sample ended, which ends the busy time counted
+     * thus far.
+     */
+    private long mBusyEndNanos = Long.MIN_VALUE;
+
+    /**
+     * Aggregate throughput in bytes per second of the previous round.
+     */
+    private double mLastThroughput;
+
+    /**
+     * Ring buffer of the limit after each round.
+     */
+    private final int[] mHistory = new int[HISTORY_SIZE];
+
+    /**
+     * Number of rounds evaluated thus far.
+     */
+    private int mRounds;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public AdaptiveLimiter(int minLimit,
+                           int maxLimit,
+                           int initialLimit) {
+        mMinLimit = Math.max(1, minLimit);
+        mMaxLimit = Math.max(mMinLimit, maxLimit);
+        mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, initialLimit));
+    }
+
+    /**
+     * Returns the number of downloads that may be in flight at once.
+     */
+    public synchronized int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Returns the limits after the most recent rounds, oldest first.
+     */
+    public synchronized int[] getHistory() {
+        int count = Math.min(mRounds, HISTORY_SIZE);
+        int[] history = new int[count];
+        for (int i = 0; i < count; ++i)
+            history[i] = mHistory[(mRounds - count + i) % HISTORY_SIZE];
+        return history;
+    }
+
+    /**
+     * Report that a download that transferred an image of @a
+     * byteCount bytes completed after @a elapsedNanos, and whether it
+     * @a congested (i.e., failed in a way that suggests the link or
+     * server is overloaded).  The @a byteCount is 0 for a download
+     * that didn't transfer an image of its own (e.g., it failed or
+     * its image was a duplicate), which isn't a throughput sample.
+     */
+    public void onComplete(long elapsedNanos,
+                           long byteCount,
+                           boolean congested) {
+        onComplete(System.nanoTime(),
+                   elapsedNanos,
+                   byteCount,
+                   congested);
+    }
+
+    /**
+     * Report a completed download as above, which ended at @a
+     * endNanos.
+     */
+    synchronized void onComplete(long endNanos,
+                                 long elapsedNanos,
+                                 long byteCount,
+                                 boolean congested) {
+        ++mRoundCompletions;
+        if (congested)
+            ++mRoundCongested;
+        if (byteCount > 0) {
+            ++mRoundSamples;
+            mRoundBytes += byteCount;
+            mRoundElapsedNanos += elapsedNanos;
+
+            // Count the part of the sample's run that doesn't overlap
+            // the busy time counted thus far.  Samples end roughly in
+            // the order they're reported, so this is (nearly) the
+            // length of the union of their runs.
+            long startNanos = endNanos - elapsedNanos;
+            if (endNanos > mBusyEndNanos) {
+                mRoundBusyNanos +=
+                    endNanos - Math.max(startNanos, mBusyEndNanos);
+                mBusyEndNanos = endNanos;
+            }
+        }
+
+        if (mRoundCompletions >= mLimit)
+            evaluateRound();
+    }
+
+    /**
+     * Adjust the limit according to the outcome of the current round
+     * and start the next one.
+     */
+    private void evaluateRound() {
+        double throughput =
+            mRoundBytes * 1e9 / Math.max(1, mRoundBusyNanos);
+        double perRequestThroughput =
+            mRoundBytes * 1e9 / Math.max(1, mRoundElapsedNanos);
+        double congestion =
+            (double) mRoundCongested / mRoundCompletions;
+
+        int oldLimit = mLimit;
+        if (congestion > CONGESTION_THRESHOLD
+            || (mRoundSamples > 0
+                && throughput < mLastThroughput * (1 - THROUGHPUT_TOLERANCE)))
+            mLimit = Math.max(mMinLimit,
+                              (int) (mLimit * DECREASE_FACTOR));
+        else if (mRoundSamples > 0)
+            mLimit = Math.min(mMaxLimit, mLimit + 1);
+
+        Log.d(TAG,
+              "limit "
+              + oldLimit
+              + " -> "
+              + mLimit
+              + " (throughput="
+              + (long) throughput
+              + " B/s, per request="
+              + (long) perRequestThroughput
+              + " B/s, samples="
+              + mRoundSamples
+              + ", congestion="
+              + mRoundCongested
+              + "/"
+              + mRoundCompletions
+              + ")");
+
+        mHistory[mRounds % HISTORY_SIZE] = mLimit;
+        ++mRounds;
+        if (mRoundSamples > 0)
+            mLastThroughput = throughput;
+        mRoundCompletions = 0;
+        mRoundCongested = 0;
+        mRoundSamples = 0;
+        mRoundBytes = 0;
+        mRoundElapsedNanos = 0;
+        mRoundBusyNanos = 0;
+    }
+}
@@ -0,0 +1,93 @@
+package vandy.mooc.download;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the SHA-256 hash of a downloaded image's contents to the
+ * manifest Entry of the one file in a directory that stores those
+ * contents.  A URL whose contents are already stored (e.g., a CDN
+ * mirror or the same image with a tracking query string) then just
+ * references the existing file instead of decoding and storing
+ * another copy.  The index of each directory is seeded from its
+ * download manifest the first time it's used, so it survives the
+ * Service being restarted.
+ */
+public class ContentIndex {
+    /**
+     * Maps a directory pathname to the index of its contents.
+     */
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, DownloadManifest.Entry>> sIndexes =
+        new ConcurrentHashMap<String, ConcurrentHashMap<String, DownloadManifest.Entry>>();
+
+    /**
+     * Returns the Entry of the file in the @a directoryPathname that
+     * stores contents with the @a contentHash, or null if there's no
+     * such file.
+     */
+    public static DownloadManifest.Entry lookup(String directoryPathname,
+                                                byte[] contentHash) {
+        ConcurrentHashMap<String, DownloadManifest.Entry> index =
+            getIndex(directoryPathname);
+        String key = toKey(contentHash);
+        DownloadManifest.Entry entry = index.get(key);
+
+        // Forget files that have been deleted since they were indexed.
+        if (entry != null
+            && !new File(entry.getImagePathname()).exists()) {
+            index.remove(key, entry);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Record that the file of the @a entry stores the contents with
+     * its content hash, unless another file already does.
+     */
+    public static void put(String directoryPathname,
+                           DownloadManifest.Entry entry) {
+        if (entry.succeeded() && entry.getContentHash().length > 0)
+            getIndex(directoryPathname).putIfAbsent
+                (toKey(entry.getContentHash()), entry);
+    }
+
+    /**
+     * Returns the index of the @a directoryPathname, seeding it from
+     * the directory's manifest the first time it's used.
+     */
+    private static ConcurrentHashMap<String, DownloadManifest.Entry> getIndex(String directoryPathname) {
+        ConcurrentHashMap<String, DownloadManifest.Entry> index =
+            sIndexes.get(directoryPathname);
+        if (index != null)
+            return index;
+
+        synchronized (sIndexes) {
+            index = sIndexes.get(directoryPathname);
+            if (index == null) {
+                index = new ConcurrentHashMap<String, DownloadManifest.Entry>();
+                for (DownloadManifest.Entry entry :
+                         DownloadManifest.readSucceeded(directoryPathname))
+                    if (entry.getContentHash().length > 0)
+                        index.putIfAbsent(toKey(entry.getContentHash()),
+                                          entry);
+                sIndexes.put(directoryPathname, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Convert the @a contentHash into a key.
+     */
+    private static String toKey(byte[] contentHash) {
+        return DownloadManifest.toHexString(contentHash);
+    }
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private ContentIndex() {
+        throw new AssertionError();
+    }
+}
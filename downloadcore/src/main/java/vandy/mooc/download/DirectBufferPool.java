@@ -0,0 +1,90 @@
+package vandy.mooc.download;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct ByteBuffers of the same size.  Direct buffers are
+ * expensive to allocate and are only freed by the garbage collector,
+ * so they're recycled rather than allocated per download.  At most a
+ * given number of idle buffers are kept; buffers released beyond
+ * that are left to the garbage collector.
+ */
+public class DirectBufferPool {
+    /**
+     * Size of each buffer in bytes.
+     */
+    private final int mBufferSize;
+
+    /**
+     * Maximum number of idle buffers kept in the pool.
+     */
+    private final int mMaxIdle;
+
+    /**
+     * The idle buffers.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> mIdle =
+        new ConcurrentLinkedQueue<ByteBuffer>();
+
+    /**
+     * Number of idle buffers, which is tracked separately since
+     * ConcurrentLinkedQueue.size() is O(n).
+     */
+    private final AtomicInteger mIdleCount = new AtomicInteger();
+
+    /**
+     * Number of buffers allocated thus far.
+     */
+    private final AtomicInteger mAllocated = new AtomicInteger();
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public DirectBufferPool(int bufferSize,
+                            int maxIdle) {
+        mBufferSize = bufferSize;
+        mMaxIdle = maxIdle;
+    }
+
+    /**
+     * Returns a cleared buffer from the pool, allocating one if the
+     * pool is empty.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = mIdle.poll();
+        if (buffer == null) {
+            mAllocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(mBufferSize);
+        }
+        mIdleCount.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return the @a buffer to the pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (mIdleCount.incrementAndGet() <= mMaxIdle)
+            mIdle.offer(buffer);
+        else
+            mIdleCount.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of buffers allocated thus far, which bounds
+     * the direct memory used by the pool.
+     */
+    public int getAllocatedCount() {
+        return mAllocated.get();
+    }
+
+    /**
+     * Returns the size of each buffer in bytes.
+     */
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+}
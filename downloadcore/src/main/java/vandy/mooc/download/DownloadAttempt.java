@@ -0,0 +1,81 @@
+package vandy.mooc.download;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * One attempt to download an image.  When several attempts are made
+ * for the same request (e.g., a hedged attempt races the original
+ * one) they share a winner, and only the attempt that claims it
+ * first may store the image, so the file is written once.  An
+ * attempt can be cancelled at any time, which disconnects its
+ * response.
+ */
+public class DownloadAttempt {
+    /**
+     * The attempt that won the race, shared by all attempts for the
+     * same request.
+     */
+    private final AtomicReference<DownloadAttempt> mWinner;
+
+    /**
+     * True once this attempt has been cancelled.
+     */
+    private boolean mCancelled;
+
+    /**
+     * Called when this attempt is cancelled.
+     */
+    private Runnable mOnCancel;
+
+    /**
+     * Constructor initializes the shared @a winner.
+     */
+    public DownloadAttempt(AtomicReference<DownloadAttempt> winner) {
+        mWinner = winner;
+    }
+
+    /**
+     * Claim the right to store the image, which succeeds for the
+     * first attempt that calls it (unless it's been cancelled).
+     *
+     * @return true if this attempt may store the image, else false.
+     */
+    public boolean claim() {
+        return !isCancelled()
+            && (mWinner.compareAndSet(null, this)
+                || mWinner.get() == this);
+    }
+
+    /**
+     * Cancel this attempt, which runs its cancel action (if any).
+     */
+    public void cancel() {
+        Runnable onCancel;
+        synchronized (this) {
+            if (mCancelled)
+                return;
+            mCancelled = true;
+            onCancel = mOnCancel;
+        }
+        if (onCancel != null)
+            onCancel.run();
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Set the @a onCancel action that's run when this attempt is
+     * cancelled, replacing the previous one.  The action is run right
+     * away if the attempt has already been cancelled.
+     */
+    public void setOnCancel(Runnable onCancel) {
+        synchronized (this) {
+            mOnCancel = onCancel;
+            if (!mCancelled)
+                return;
+        }
+        onCancel.run();
+    }
+}
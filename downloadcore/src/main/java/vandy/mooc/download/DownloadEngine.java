@@ -0,0 +1,41 @@
+package vandy.mooc.download;
+
+/**
+ * Downloads an image and stores it, reporting the outcome via a
+ * Callback.  An engine may complete a download on the thread that
+ * started it or later on another thread.
+ */
+public interface DownloadEngine {
+    /**
+     * Callback interface used to report the outcome of a download.
+     */
+    interface Callback {
+        /**
+         * Called back once with the manifest @a entry of the
+         * download.
+         */
+        void onComplete(DownloadManifest.Entry entry);
+    }
+
+    /**
+     * Download the image at the @a url into the @a
+     * directoryPathname as part of the @a attempt.
+     */
+    void download(String url,
+                  String directoryPathname,
+                  OutputFormat outputFormat,
+                  long maxImageBytes,
+                  DownloadAttempt attempt,
+                  Callback callback);
+
+    /**
+     * Returns the bounds on the number of downloads in flight at
+     * once that suit this engine, i.e., {min, max, initial}.
+     */
+    int[] getConcurrencyBounds();
+
+    /**
+     * Release the resources of the engine.
+     */
+    void shutdown();
+}
@@ -0,0 +1,469 @@
+package vandy.mooc.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * An append-only manifest of the downloads made into a directory.
+ * The Service appends an Entry for every download (whether it
+ * succeeded or not) and readers, such as the gallery and the code
+ * that deletes downloaded images, memory-map the manifest and read
+ * all the Entries in one sequential pass rather than listing the
+ * directory.
+ *
+ * Each record is laid out as follows (big-endian):
+ *
+ *   int    length of the rest of the record
+ *   byte   status (Status ordinal)
+ *   long   size of the image file in bytes
+ *   int    width
+ *   int    height
+ *   byte   length of the content hash, followed by the hash
+ *   short  length of the URL, followed by the URL in UTF-8
+ *   short  length of the pathname, followed by the pathname in UTF-8
+ *
+ * A record is written with a single write() call.  One that's only
+ * partly written because the write fails is truncated right away, and
+ * one torn by the process dying is truncated before the next process
+ * first appends, so the records after it aren't misread.  A reader
+ * therefore sees at most one torn record at the end of the file,
+ * which it ignores.
+ * The lengths of the URL and pathname fit in a short, so a longer
+ * URL is cut short at a character boundary, since it's only
+ * recorded for reference, and an Entry with a longer pathname is
+ * refused.
+ */
+public class DownloadManifest {
+    /**
+     * Debugging tag used by the logger.
+     */
+    private final static String TAG = "DownloadManifest";
+
+    /**
+     * Name of the manifest file stored in each download directory.
+     */
+    public static final String FILENAME = ".download_manifest";
+
+    /**
+     * Charset used to encode the URLs and pathnames.
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Most bytes of a URL or pathname in UTF-8 that a record holds.
+     */
+    static final int MAX_STRING_BYTES = 0xffff;
+
+    /**
+     * The directories whose manifests this process has checked for a
+     * torn record at the end before it first appended to them.
+     */
+    private static final Set<String> sCheckedDirectories =
+        new HashSet<String>();
+
+    /**
+     * Status of a download.
+     */
+    public enum Status {
+        /**
+         * The image was downloaded and stored successfully.
+         */
+        DONE,
+
+        /**
+         * The image couldn't be downloaded or stored.
+         */
+        FAILED
+    }
+
+    /**
+     * The record of a single download.
+     */
+    public static class Entry {
+        private final String mUrl;
+        private final String mImagePathname;
+        private final long mByteCount;
+        private final int mWidth;
+        private final int mHeight;
+        private final byte[] mContentHash;
+        private final Status mStatus;
+
+        /**
+         * True if a failed download may succeed if it's retried,
+         * which isn't recorded in the manifest.
+         */
+        private boolean mRetryable;
+
+        /**
+         * True if the download references the file of an earlier one
+         * with the same contents, which isn't recorded in the
+         * manifest.
+         */
+        private boolean mDuplicate;
+
+        /**
+         * Constructor initializes all the fields.
+         */
+        public Entry(String url,
+                     String imagePathname,
+                     long byteCount,
+                     int width,
+                     int height,
+                     byte[] contentHash,
+                     Status status) {
+            mUrl = url;
+            mImagePathname = imagePathname;
+            mByteCount = byteCount;
+            mWidth = width;
+            mHeight = height;
+            mContentHash = contentHash == null ? new byte[0] : contentHash;
+            mStatus = status;
+        }
+
+        /**
+         * Factory method that returns an Entry for a failed download
+         * of the @a url.
+         */
+        public static Entry failed(String url) {
+            return failed(url, false);
+        }
+
+        /**
+         * Factory method that returns an Entry for a failed download
+         * of the @a url, which may succeed if it's retried when @a
+         * retryable is true (e.g., it timed out).
+         */
+        public static Entry failed(String url,
+                                   boolean retryable) {
+            Entry entry =
+                new Entry(url, null, 0, 0, 0, null, Status.FAILED);
+            entry.mRetryable = retryable;
+            return entry;
+        }
+
+        /**
+         * Factory method that returns an Entry for a download of the
+         * @a url whose contents, hashed to @a contentHash, are the
+         * same as those of the @a original Entry, so it references
+         * the @a original file.
+         */
+        public static Entry duplicate(String url,
+                                      Entry original,
+                                      byte[] contentHash) {
+            Entry entry = new Entry(url,
+                                    original.getImagePathname(),
+                                    original.getByteCount(),
+                                    original.getWidth(),
+                                    original.getHeight(),
+                                    contentHash,
+                                    Status.DONE);
+            entry.mDuplicate = true;
+            return entry;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * Returns the pathname of the image file or null if the
+         * download failed.
+         */
+        public String getImagePathname() {
+            return mImagePathname;
+        }
+
+        public long getByteCount() {
+            return mByteCount;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        public byte[] getContentHash() {
+            return mContentHash;
+        }
+
+        /**
+         * Returns the content hash as a hex string.
+         */
+        public String getContentHashString() {
+            return toHexString(mContentHash);
+        }
+
+        public Status getStatus() {
+            return mStatus;
+        }
+
+        public boolean succeeded() {
+            return mStatus == Status.DONE;
+        }
+
+        public boolean isRetryable() {
+            return mRetryable;
+        }
+
+        public boolean isDuplicate() {
+            return mDuplicate;
+        }
+    }
+
+    /**
+     * Returns the @a bytes as a lowercase hex string.
+     */
+    public static String toHexString(byte[] bytes) {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; ++i) {
+            hex[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Returns the manifest file of the @a directoryPathname.
+     */
+    public static File getFile(String directoryPathname) {
+        return new File(directoryPathname, FILENAME);
+    }
+
+    /**
+     * Append the @a entry to the manifest of the @a
+     * directoryPathname, creating the directory and the manifest if
+     * they don't exist yet.
+     *
+     * @return true if the entry was appended, else false.
+     */
+    public static synchronized boolean append(String directoryPathname,
+                                              Entry entry) {
+        File directory = new File(directoryPathname);
+        if (!directory.exists())
+            directory.mkdirs();
+
+        ByteBuffer record;
+        try {
+            record = encode(entry);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG,
+                  "Exception encoding manifest entry in "
+                  + directoryPathname,
+                  e);
+            return false;
+        }
+
+        try (RandomAccessFile file =
+             new RandomAccessFile(getFile(directoryPathname), "rw")) {
+            FileChannel channel = file.getChannel();
+
+            // Cut off a record torn by a process that died while
+            // appending it, since the records appended after it would
+            // be misread.
+            if (sCheckedDirectories.add(directoryPathname)) {
+                long length = getIntactLength(channel);
+                if (length < channel.size()) {
+                    Log.d(TAG,
+                          "truncating a torn record in the manifest in "
+                          + directoryPathname);
+                    channel.truncate(length);
+                }
+            }
+
+            long start = channel.size();
+            channel.position(start);
+            try {
+                while (record.hasRemaining())
+                    channel.write(record);
+                return true;
+            } catch (IOException e) {
+                // Cut off the part of the record that was written,
+                // e.g., before the storage filled up.
+                channel.truncate(start);
+                throw e;
+            }
+        } catch (IOException e) {
+            // Check for a torn record again before the next append,
+            // in case it couldn't be truncated.
+            sCheckedDirectories.remove(directoryPathname);
+            Log.e(TAG,
+                  "Exception appending to manifest in "
+                  + directoryPathname,
+                  e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns the length of the intact records at the start of the
+     * manifest open on the @a channel, which is less than its size if
+     * it ends with a torn record.
+     */
+    private static long getIntactLength(FileChannel channel)
+        throws IOException {
+        MappedByteBuffer buffer =
+            channel.map(FileChannel.MapMode.READ_ONLY,
+                        0,
+                        channel.size());
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length < 0 || length > buffer.remaining())
+                return start;
+            buffer.position(buffer.position() + length);
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Returns all the Entries in the manifest of the @a
+     * directoryPathname in the order they were appended, which is
+     * empty if there's no manifest.
+     */
+    public static List<Entry> read(String directoryPathname) {
+        List<Entry> entries = new ArrayList<Entry>();
+        File file = getFile(directoryPathname);
+        if (!file.exists())
+            return entries;
+
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY,
+                            0,
+                            channel.size());
+
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                // Ignore a torn record at the end of the manifest.
+                if (length > buffer.remaining())
+                    break;
+                int end = buffer.position() + length;
+                entries.add(decode(buffer));
+                buffer.position(end);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG,
+                  "Exception reading manifest in "
+                  + directoryPathname,
+                  e);
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the Entries of the successful downloads in the manifest
+     * of the @a directoryPathname.
+     */
+    public static List<Entry> readSucceeded(String directoryPathname) {
+        List<Entry> succeeded = new ArrayList<Entry>();
+        for (Entry entry : read(directoryPathname))
+            if (entry.succeeded())
+                succeeded.add(entry);
+        return succeeded;
+    }
+
+    /**
+     * Encode the @a entry into a record.
+     *
+     * @throws IllegalArgumentException if its pathname is longer
+     *         than a record holds.
+     */
+    static ByteBuffer encode(Entry entry) {
+        byte[] url = truncate(entry.getUrl().getBytes(UTF_8));
+        byte[] pathname = entry.getImagePathname() == null
+            ? new byte[0]
+            : entry.getImagePathname().getBytes(UTF_8);
+        if (pathname.length > MAX_STRING_BYTES)
+            throw new IllegalArgumentException("pathname of "
+                                               + pathname.length
+                                               + " bytes is too long");
+        byte[] hash = entry.getContentHash();
+
+        int length = 1 + 8 + 4 + 4
+            + 1 + hash.length
+            + 2 + url.length
+            + 2 + pathname.length;
+
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length);
+        record.put((byte) entry.getStatus().ordinal());
+        record.putLong(entry.getByteCount());
+        record.putInt(entry.getWidth());
+        record.putInt(entry.getHeight());
+        record.put((byte) hash.length);
+        record.put(hash);
+        record.putShort((short) url.length);
+        record.put(url);
+        record.putShort((short) pathname.length);
+        record.put(pathname);
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Returns the @a utf8 bytes cut short at a character boundary if
+     * they're longer than MAX_STRING_BYTES.
+     */
+    private static byte[] truncate(byte[] utf8) {
+        if (utf8.length <= MAX_STRING_BYTES)
+            return utf8;
+
+        // Back up over the continuation bytes of the character that
+        // straddles the limit.
+        int length = MAX_STRING_BYTES;
+        while (length > 0 && (utf8[length] & 0xc0) == 0x80)
+            --length;
+        byte[] truncated = new byte[length];
+        System.arraycopy(utf8, 0, truncated, 0, length);
+        return truncated;
+    }
+
+    /**
+     * Decode the record at the current position of the @a buffer.
+     */
+    static Entry decode(ByteBuffer buffer) {
+        Status status = Status.values()[buffer.get()];
+        long byteCount = buffer.getLong();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+        byte[] hash = new byte[buffer.get() & 0xff];
+        buffer.get(hash);
+        byte[] url = new byte[buffer.getShort() & 0xffff];
+        buffer.get(url);
+        byte[] pathname = new byte[buffer.getShort() & 0xffff];
+        buffer.get(pathname);
+
+        return new Entry(new String(url, UTF_8),
+                         pathname.length == 0
+                         ? null
+                         : new String(pathname, UTF_8),
+                         byteCount,
+                         width,
+                         height,
+                         hash,
+                         status);
+    }
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private DownloadManifest() {
+        throw new AssertionError();
+    }
+}
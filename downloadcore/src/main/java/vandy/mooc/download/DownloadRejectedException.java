@@ -0,0 +1,34 @@
+package vandy.mooc.download;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a response is rejected before its body has been read
+ * in full, e.g., because it's not an image or it's too big.
+ */
+public class DownloadRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * True if the same request may succeed if it's retried later.
+     */
+    private final boolean mRetryable;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public DownloadRejectedException(String reason,
+                                     boolean retryable) {
+        super(reason);
+        mRetryable = retryable;
+    }
+
+    /**
+     * Returns true if the same request may succeed if it's retried
+     * later (e.g., the server was overloaded), else false (e.g., the
+     * URL doesn't reference an image).
+     */
+    public boolean isRetryable() {
+        return mRetryable;
+    }
+}
@@ -0,0 +1,418 @@
+package vandy.mooc.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A request to download one image, which makes as many attempts as
+ * its RetryPolicy allows.  A retryable failure is retried after a
+ * jittered exponential backoff, and if the policy hedges, a second
+ * attempt is started when an attempt takes longer than the running
+ * 95th percentile latency.  The first attempt that downloads the
+ * image wins, the others are cancelled, and the outcome is reported
+ * exactly once via the Callback.
+ */
+public class DownloadRequest {
+    /**
+     * Debugging tag used by the logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    /**
+     * Percentile of the recent latencies after which an attempt is
+     * hedged.
+     */
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    /**
+     * Callback interface used to report the outcome of the request.
+     */
+    public interface Callback {
+        /**
+         * Called back once with the manifest @a entry of the
+         * download.
+         */
+        void onComplete(DownloadManifest.Entry entry);
+    }
+
+    private final String mUrl;
+    private final String mDirectoryPathname;
+    private final OutputFormat mOutputFormat;
+    private final long mMaxImageBytes;
+    private final RetryPolicy mRetryPolicy;
+    private final DownloadEngine mEngine;
+    private final DownloadScheduler mScheduler;
+    private final ScheduledExecutorService mTimer;
+    private final LatencyTracker mLatencyTracker;
+    private final Callback mCallback;
+
+    /**
+     * The client whose queue the attempts are scheduled in, or null
+     * for the scheduler's default queue.
+     */
+    private Object mClient;
+
+    /**
+     * Number of attempts the client starts per turn in the scheduler.
+     */
+    private int mWeight = DownloadScheduler.DEFAULT_WEIGHT;
+
+    /**
+     * Priority of the attempts in the client's queue.
+     */
+    private volatile int mPriority = DownloadScheduler.PRIORITY_NORMAL;
+
+    /**
+     * Probes the size of the image before the first attempt, or null
+     * if it isn't probed.
+     */
+    private SizeProbe mSizeProbe;
+
+    /**
+     * Size of the image, which orders the attempts in the scheduler's
+     * shortest-job-first mode.
+     */
+    private volatile long mSizeBytes = DownloadScheduler.UNKNOWN_SIZE;
+
+    /**
+     * The attempt that won, which is shared by all attempts.
+     */
+    private final AtomicReference<DownloadAttempt> mWinner =
+        new AtomicReference<DownloadAttempt>();
+
+    /**
+     * Attempts that have been started but not completed.
+     */
+    private final List<DownloadAttempt> mOutstanding =
+        new ArrayList<DownloadAttempt>();
+
+    /**
+     * Number of attempts that have been made, including hedges.
+     */
+    private int mAttempts;
+
+    /**
+     * Number of attempts that have failed.
+     */
+    private int mFailures;
+
+    /**
+     * True once a hedged attempt has been started.
+     */
+    private boolean mHedged;
+
+    /**
+     * True once a retry has been scheduled but not yet submitted.
+     */
+    private boolean mRetryPending;
+
+    /**
+     * True once the Callback has been called.
+     */
+    private boolean mDone;
+
+    /**
+     * True once the request has been cancelled, after which its
+     * attempts aren't retried or hedged.
+     */
+    private boolean mCancelled;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public DownloadRequest(String url,
+                    String directoryPathname,
+                    OutputFormat outputFormat,
+                    long maxImageBytes,
+                    RetryPolicy retryPolicy,
+                    DownloadEngine engine,
+                    DownloadScheduler scheduler,
+                    ScheduledExecutorService timer,
+                    LatencyTracker latencyTracker,
+                    Callback callback) {
+        mUrl = url;
+        mDirectoryPathname = directoryPathname;
+        mOutputFormat = outputFormat;
+        mMaxImageBytes = maxImageBytes;
+        mRetryPolicy = retryPolicy;
+        mEngine = engine;
+        mScheduler = scheduler;
+        mTimer = timer;
+        mLatencyTracker = latencyTracker;
+        mCallback = callback;
+    }
+
+    /**
+     * Set the @a client whose queue the attempts are scheduled in,
+     * and its @a weight, which must be called before start().
+     */
+    public void setClient(Object client,
+                          int weight) {
+        mClient = client;
+        mWeight = weight;
+    }
+
+    /**
+     * Set the @a priority of the attempts that are queued or
+     * submitted later, e.g., to start the download sooner once its
+     * image is on screen.
+     */
+    public void setPriority(int priority) {
+        mPriority = priority;
+        mScheduler.setPriority(mClient, this, priority);
+    }
+
+    /**
+     * Set the @a sizeProbe that probes the size of the image before
+     * the first attempt if the scheduler starts the smallest first,
+     * which must be called before start().
+     */
+    public void setSizeProbe(SizeProbe sizeProbe) {
+        mSizeProbe = sizeProbe;
+    }
+
+    /**
+     * Start the first attempt, once the size of the image is known
+     * if it's probed.
+     */
+    public void start() {
+        if (mSizeProbe == null || !mScheduler.isShortestJobFirst()) {
+            submitAttempt();
+            return;
+        }
+
+        mSizeProbe.probe(mUrl, new SizeProbe.Callback() {
+                @Override
+                public void onSize(long sizeBytes) {
+                    mSizeBytes = sizeBytes;
+                    submitAttempt();
+                }
+            });
+    }
+
+    /**
+     * Cancel the request, e.g., because the timer that retries and
+     * hedges it is about to be shut down.  An attempt that's running
+     * still completes it, but isn't retried if it fails.  Otherwise
+     * the request fails right away, since a retry it's waiting for
+     * would never run.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (mDone)
+                return;
+            mCancelled = true;
+            mRetryPending = false;
+            if (!mOutstanding.isEmpty())
+                return;
+            mDone = true;
+        }
+
+        mCallback.onComplete(DownloadManifest.Entry.failed(mUrl));
+    }
+
+    /**
+     * Submit a new attempt to the scheduler.
+     */
+    private void submitAttempt() {
+        final DownloadAttempt attempt = new DownloadAttempt(mWinner);
+        synchronized (this) {
+            if (mDone)
+                return;
+            ++mAttempts;
+            mOutstanding.add(attempt);
+        }
+
+        mScheduler.submit(mClient,
+                          mWeight,
+                          this,
+                          mPriority,
+                          mSizeBytes,
+                          new DownloadScheduler.Job() {
+                /**
+                 * This method runs in a background Thread.
+                 */
+                @Override
+                public void start(final DownloadScheduler.Completion completion) {
+                    if (attempt.isCancelled()) {
+                        DownloadManifest.Entry entry =
+                            DownloadManifest.Entry.failed(mUrl);
+                        completion.complete(entry);
+                        onAttemptComplete(attempt, entry);
+                        return;
+                    }
+
+                    scheduleHedge(attempt);
+                    final long start = System.currentTimeMillis();
+                    final DownloadEngine.Callback callback =
+                        new DownloadEngine.Callback() {
+                            /**
+                             * True once the attempt has completed,
+                             * so an engine that throws after calling
+                             * back doesn't complete it twice.
+                             */
+                            private final AtomicBoolean mCompleted =
+                                new AtomicBoolean();
+
+                            /**
+                             * This method runs in the Thread that
+                             * completes the download.
+                             */
+                            @Override
+                            public void onComplete(DownloadManifest.Entry entry) {
+                                if (!mCompleted.compareAndSet(false, true))
+                                    return;
+                                if (entry.succeeded())
+                                    mLatencyTracker.record
+                                        (System.currentTimeMillis() - start);
+
+                                // Let the scheduler start the next
+                                // download.
+                                completion.complete(entry);
+                                onAttemptComplete(attempt, entry);
+                            }
+                        };
+
+                    try {
+                        mEngine.download(mUrl,
+                                         mDirectoryPathname,
+                                         mOutputFormat,
+                                         mMaxImageBytes,
+                                         attempt,
+                                         callback);
+                    } catch (Throwable t) {
+                        // Fail the attempt rather than leave the
+                        // request waiting for a Callback that never
+                        // comes.
+                        Log.e(TAG,
+                              "download of "
+                              + mUrl
+                              + " threw",
+                              t);
+                        callback.onComplete
+                            (DownloadManifest.Entry.failed(mUrl));
+                    }
+                }
+
+                /**
+                 * Fail the attempt, since the scheduler was shut down
+                 * before it started.
+                 */
+                @Override
+                public void cancel() {
+                    onAttemptComplete(attempt,
+                                      DownloadManifest.Entry.failed(mUrl));
+                }
+            });
+    }
+
+    /**
+     * Start a hedged attempt if the @a attempt is still running once
+     * the running 95th percentile latency has passed.
+     */
+    private void scheduleHedge(final DownloadAttempt attempt) {
+        if (!mRetryPolicy.isHedged())
+            return;
+        long delayMs = mLatencyTracker.getPercentile(HEDGE_PERCENTILE);
+        // Schedule the hedge while synchronized, so it isn't scheduled
+        // after cancel() and the timer is shut down.
+        synchronized (this) {
+            if (delayMs < 0 || mHedged || mDone || mCancelled)
+                return;
+
+            mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (DownloadRequest.this) {
+                            if (mHedged
+                                || mDone
+                                || mCancelled
+                                || !mOutstanding.contains(attempt)
+                                || mAttempts >= mRetryPolicy.getMaxAttempts())
+                                return;
+                            mHedged = true;
+                        }
+                        Log.d(TAG,
+                              "hedging slow download of "
+                              + mUrl);
+                        submitAttempt();
+                    }
+                },
+                delayMs,
+                TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Handle the @a entry of the completed @a attempt, which either
+     * completes the request, retries it, or waits for another
+     * outstanding attempt.
+     */
+    private void onAttemptComplete(DownloadAttempt attempt,
+                                   DownloadManifest.Entry entry) {
+        List<DownloadAttempt> losers;
+        synchronized (this) {
+            mOutstanding.remove(attempt);
+            if (mDone)
+                return;
+
+            if (!entry.succeeded()) {
+                ++mFailures;
+                if (entry.isRetryable()
+                    && !mCancelled
+                    && mAttempts < mRetryPolicy.getMaxAttempts()
+                    && !mRetryPending) {
+                    scheduleRetry();
+                    return;
+                }
+                // Wait for another attempt that may still succeed.
+                if (!mOutstanding.isEmpty() || mRetryPending)
+                    return;
+            }
+
+            mDone = true;
+            losers = new ArrayList<DownloadAttempt>(mOutstanding);
+        }
+
+        // Cancel the attempts that lost the race.
+        for (DownloadAttempt loser : losers)
+            loser.cancel();
+
+        mCallback.onComplete(entry);
+    }
+
+    /**
+     * Schedule a retry after the jittered backoff, which must be
+     * called while synchronized.
+     */
+    private void scheduleRetry() {
+        mRetryPending = true;
+        long delayMs = mRetryPolicy.getRetryDelayMs(mFailures);
+        Log.d(TAG,
+              "retrying "
+              + mUrl
+              + " in "
+              + delayMs
+              + " ms after "
+              + mFailures
+              + " failure(s)");
+
+        mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (DownloadRequest.this) {
+                        if (!mRetryPending)
+                            return;
+                        mRetryPending = false;
+                    }
+                    submitAttempt();
+                }
+            },
+            delayMs,
+            TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,635 @@
+package vandy.mooc.download;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Queues downloads and starts them on an Executor as long as fewer
+ * downloads are in flight than the AdaptiveLimiter allows.  Each
+ * download reports its outcome via a Completion, which may be called
+ * from any thread once the download is done, so the limiter learns
+ * about every download and the next queued one can start.
+ *
+ * Each client (e.g., the binder of an Activity's reply Messenger)
+ * has its own FIFO queue, and the clients with queued downloads are
+ * served by weighted round-robin: a client of weight w starts up to
+ * w downloads in turn before the next client's turn, so one client
+ * queuing thousands of downloads can't starve the others.  A client's
+ * weight is the one its latest Job was submitted with, so a client
+ * is only known while it has Jobs queued or in flight.  A client
+ * whose downloads in flight reach the per-client cap is passed over
+ * while another client can start one, but not otherwise, so a lone
+ * client still gets the whole limit.
+ *
+ * Within a client's queue the Jobs start in order of priority, and
+ * in FIFO order within a priority.  The priority of the queued Jobs
+ * submitted with a key can be changed later, e.g., to start the
+ * downloads of the images on screen first.
+ *
+ * In shortest-job-first mode the Jobs of a priority whose size is
+ * known start smallest first, which minimizes the mean completion
+ * time when the sizes vary widely.  Each Job is ranked by the time
+ * it was submitted plus a delay proportional to its size, so a large
+ * Job only yields to Jobs submitted up to that delay after it and
+ * can't be starved by a stream of small ones.
+ *
+ * Once the scheduler is shut down, the Jobs that are queued or
+ * submitted later are cancelled rather than started, so each of
+ * them still reports its outcome.
+ */
+public class DownloadScheduler {
+    /**
+     * Debugging tag used by the logger.
+     */
+    private final static String TAG = "DownloadScheduler";
+
+    /**
+     * A download that's started by the scheduler.
+     */
+    public interface Job {
+        /**
+         * Start the download, which must eventually call back the
+         * @a completion exactly once.  A Job that throws has its
+         * exception logged and its slot freed, but must report its
+         * own outcome, so it should catch the failures of what it
+         * runs.
+         */
+        void start(Completion completion);
+
+        /**
+         * Called instead of start() if the scheduler is shut down
+         * before the Job starts, so it must report its outcome some
+         * other way, e.g., as a failure.
+         */
+        void cancel();
+    }
+
+    /**
+     * Callback used by a Job to report its outcome.
+     */
+    public interface Completion {
+        /**
+         * Called back with the manifest @a entry of the download.
+         */
+        void complete(DownloadManifest.Entry entry);
+    }
+
+    /**
+     * Priority of Jobs the user is waiting for, e.g., those on
+     * screen.
+     */
+    public static final int PRIORITY_HIGH = 1;
+
+    /**
+     * Priority of Jobs submitted without one.
+     */
+    public static final int PRIORITY_NORMAL = 0;
+
+    /**
+     * Priority of Jobs the user has moved away from.
+     */
+    public static final int PRIORITY_LOW = -1;
+
+    /**
+     * Bytes of a Job's size that delay it by a second in
+     * shortest-job-first mode by default, so a 1 MB image yields to
+     * smaller ones submitted up to a second after it.
+     */
+    public static final long DEFAULT_AGING_BYTES_PER_SECOND = 1024 * 1024;
+
+    /**
+     * Size of a Job whose size isn't known.
+     */
+    public static final long UNKNOWN_SIZE = -1;
+
+    /**
+     * Weight of the clients whose Jobs are submitted without one.
+     */
+    public static final int DEFAULT_WEIGHT = 1;
+
+    /**
+     * The client of Jobs submitted without one.
+     */
+    private static final Object DEFAULT_CLIENT = new Object();
+
+    /**
+     * A Job waiting to start.
+     */
+    private static class QueuedJob {
+        final Job mJob;
+        final Object mKey;
+        final long mRank;
+        final long mSequence;
+        int mPriority;
+
+        QueuedJob(Job job,
+                  Object key,
+                  int priority,
+                  long rank,
+                  long sequence) {
+            mJob = job;
+            mKey = key;
+            mPriority = priority;
+            mRank = rank;
+            mSequence = sequence;
+        }
+    }
+
+    /**
+     * Orders the QueuedJobs by descending priority, then by rank,
+     * then in the order they were submitted.
+     */
+    private static final Comparator<QueuedJob> PRIORITY_ORDER =
+        new Comparator<QueuedJob>() {
+            @Override
+            public int compare(QueuedJob lhs,
+                               QueuedJob rhs) {
+                if (lhs.mPriority != rhs.mPriority)
+                    return lhs.mPriority > rhs.mPriority ? -1 : 1;
+                if (lhs.mRank != rhs.mRank)
+                    return lhs.mRank < rhs.mRank ? -1 : 1;
+                return lhs.mSequence < rhs.mSequence
+                    ? -1
+                    : lhs.mSequence == rhs.mSequence ? 0 : 1;
+            }
+        };
+
+    /**
+     * The queue and counters of a client.
+     */
+    private static class ClientQueue {
+        /**
+         * The client whose Jobs are queued.
+         */
+        final Object mClient;
+
+        /**
+         * Jobs of the client waiting to start, in priority order.
+         */
+        final TreeSet<QueuedJob> mJobs =
+            new TreeSet<QueuedJob>(PRIORITY_ORDER);
+
+        /**
+         * Maps the key of each queued Job that has one to the Jobs
+         * with that key.
+         */
+        final Map<Object, List<QueuedJob>> mKeyedJobs =
+            new HashMap<Object, List<QueuedJob>>();
+
+        /**
+         * Number of the client's Jobs that have started but not
+         * completed.
+         */
+        int mInFlight;
+
+        /**
+         * Number of Jobs the client starts per turn.
+         */
+        int mWeight = DEFAULT_WEIGHT;
+
+        /**
+         * Number of Jobs the client may still start this turn.
+         */
+        int mCredits;
+
+        /**
+         * Number of the client's Jobs that have started.
+         */
+        long mStarted;
+
+        /**
+         * Constructor initializes the field.
+         */
+        ClientQueue(Object client) {
+            mClient = client;
+        }
+    }
+
+    /**
+     * Executor that runs the Jobs.
+     */
+    private final Executor mExecutor;
+
+    /**
+     * Determines how many Jobs may be in flight at once.
+     */
+    private final AdaptiveLimiter mLimiter;
+
+    /**
+     * Maps each client with Jobs queued or in flight to its queue.
+     */
+    private final Map<Object, ClientQueue> mClients =
+        new LinkedHashMap<Object, ClientQueue>();
+
+    /**
+     * The clients with Jobs waiting to start, in round-robin order,
+     * whose head has the current turn.
+     */
+    private final ArrayDeque<ClientQueue> mReady =
+        new ArrayDeque<ClientQueue>();
+
+    /**
+     * Number of Jobs waiting to start.
+     */
+    private int mQueueDepth;
+
+    /**
+     * Sequence number of the next Job submitted.
+     */
+    private long mNextSequence;
+
+    /**
+     * Most Jobs of one client in flight at once while other clients
+     * are waiting.
+     */
+    private int mMaxInFlightPerClient = Integer.MAX_VALUE;
+
+    /**
+     * Bytes of a Job's size that delay it by a second in
+     * shortest-job-first mode, or 0 if the Jobs start in FIFO order.
+     */
+    private long mAgingBytesPerSecond;
+
+    /**
+     * Number of Jobs that have started but not completed.
+     */
+    private int mInFlight;
+
+    /**
+     * True once shutdown() has been called.
+     */
+    private boolean mShutdown;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public DownloadScheduler(Executor executor,
+                             AdaptiveLimiter limiter) {
+        mExecutor = executor;
+        mLimiter = limiter;
+    }
+
+    /**
+     * Returns the limiter that determines how many Jobs may be in
+     * flight at once.
+     */
+    public AdaptiveLimiter getLimiter() {
+        return mLimiter;
+    }
+
+    /**
+     * Queue the @a job and start it as soon as the limit allows.
+     */
+    public void submit(Job job) {
+        submit(DEFAULT_CLIENT, job);
+    }
+
+    /**
+     * Queue the @a job of the @a client and start it as soon as the
+     * limit and the client's turn allow.  A null @a client is the
+     * default client.
+     */
+    public void submit(Object client,
+                       Job job) {
+        submit(client, null, PRIORITY_NORMAL, job);
+    }
+
+    /**
+     * Queue the @a job of the @a client with the @a priority and
+     * start it as soon as the limit, the client's turn and its
+     * priority allow.  Its priority can be changed via its @a key
+     * (if it's not null) until it starts.
+     */
+    public void submit(Object client,
+                       Object key,
+                       int priority,
+                       Job job) {
+        submit(client, key, priority, UNKNOWN_SIZE, job);
+    }
+
+    /**
+     * Queue the @a job of the @a client with the @a priority, as
+     * above, where @a sizeBytes is the size of the Job (or
+     * UNKNOWN_SIZE), which orders it in shortest-job-first mode.
+     */
+    public void submit(Object client,
+                       Object key,
+                       int priority,
+                       long sizeBytes,
+                       Job job) {
+        submit(client, DEFAULT_WEIGHT, key, priority, sizeBytes, job);
+    }
+
+    /**
+     * Queue the @a job of the @a client, as above, where @a weight is
+     * the number of Jobs the client starts per turn from now on.
+     */
+    public void submit(Object client,
+                       int weight,
+                       Object key,
+                       int priority,
+                       long sizeBytes,
+                       Job job) {
+        if (client == null)
+            client = DEFAULT_CLIENT;
+        boolean shutdown;
+        synchronized (this) {
+            shutdown = mShutdown;
+            if (!shutdown) {
+                ClientQueue queue = getClientQueue(client);
+                queue.mWeight = Math.max(1, weight);
+                if (queue.mJobs.isEmpty()) {
+                    queue.mCredits = queue.mWeight;
+                    mReady.add(queue);
+                }
+                // A Job of unknown size is ranked as if it were empty.
+                long rank = System.nanoTime();
+                if (mAgingBytesPerSecond > 0 && sizeBytes > 0)
+                    rank += sizeBytes * 1000000000L / mAgingBytesPerSecond;
+                QueuedJob queuedJob =
+                    new QueuedJob(job, key, priority, rank, mNextSequence++);
+                queue.mJobs.add(queuedJob);
+                if (key != null) {
+                    List<QueuedJob> keyedJobs = queue.mKeyedJobs.get(key);
+                    if (keyedJobs == null) {
+                        keyedJobs = new ArrayList<QueuedJob>(1);
+                        queue.mKeyedJobs.put(key, keyedJobs);
+                    }
+                    keyedJobs.add(queuedJob);
+                }
+                ++mQueueDepth;
+            }
+        }
+
+        // A Job submitted after shutdown() is cancelled right away.
+        if (shutdown)
+            job.cancel();
+        else
+            dispatch();
+    }
+
+    /**
+     * Move the queued Jobs of the @a client submitted with the @a key
+     * to the @a priority.
+     */
+    public synchronized void setPriority(Object client,
+                                         Object key,
+                                         int priority) {
+        ClientQueue queue =
+            mClients.get(client == null ? DEFAULT_CLIENT : client);
+        if (queue == null)
+            return;
+        List<QueuedJob> keyedJobs = queue.mKeyedJobs.get(key);
+        if (keyedJobs == null)
+            return;
+
+        // A TreeSet doesn't reorder an element whose ordering
+        // changes, so each Job is removed and added back.
+        for (QueuedJob queuedJob : keyedJobs) {
+            queue.mJobs.remove(queuedJob);
+            queuedJob.mPriority = priority;
+            queue.mJobs.add(queuedJob);
+        }
+    }
+
+    /**
+     * Set the most Jobs of one client in flight at once while other
+     * clients are waiting to @a maxInFlightPerClient, which is
+     * unlimited by default.
+     */
+    public synchronized void setMaxInFlightPerClient(int maxInFlightPerClient) {
+        mMaxInFlightPerClient = Math.max(1, maxInFlightPerClient);
+    }
+
+    /**
+     * Start the Jobs submitted later smallest first, delaying each by
+     * a second per @a agingBytesPerSecond bytes of its size, or in
+     * FIFO order if it's 0, which is the default.
+     */
+    public synchronized void setShortestJobFirst(long agingBytesPerSecond) {
+        mAgingBytesPerSecond = Math.max(0, agingBytesPerSecond);
+    }
+
+    /**
+     * Returns true if the Jobs start smallest first.
+     */
+    public synchronized boolean isShortestJobFirst() {
+        return mAgingBytesPerSecond > 0;
+    }
+
+    /**
+     * Returns the number of Jobs that have started but not completed.
+     */
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * Returns the number of Jobs waiting to start.
+     */
+    public synchronized int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * Returns the number of Jobs of each client waiting to start.
+     */
+    public synchronized Map<Object, Integer> getQueueDepths() {
+        Map<Object, Integer> depths = new LinkedHashMap<Object, Integer>();
+        for (Map.Entry<Object, ClientQueue> entry : mClients.entrySet())
+            depths.put(entry.getKey(), entry.getValue().mJobs.size());
+        return depths;
+    }
+
+    /**
+     * Returns a one-line summary of the queue depth, the Jobs in
+     * flight and the Jobs started of each client for logging.
+     */
+    public synchronized String getClientSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<Object, ClientQueue> entry : mClients.entrySet()) {
+            ClientQueue queue = entry.getValue();
+            summary.append(summary.length() == 0 ? "" : " ")
+                .append(Integer.toHexString(System.identityHashCode(entry.getKey())))
+                .append("[queued=").append(queue.mJobs.size())
+                .append(" inFlight=").append(queue.mInFlight)
+                .append(" started=").append(queue.mStarted)
+                .append(" weight=").append(queue.mWeight)
+                .append(']');
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Don't start any more Jobs, and cancel the queued ones, which
+     * report their outcomes via Job.cancel().  The Jobs in flight
+     * complete as usual.
+     */
+    public void shutdown() {
+        List<Job> cancelled = new ArrayList<Job>();
+        synchronized (this) {
+            mShutdown = true;
+            for (ClientQueue queue : mReady) {
+                for (QueuedJob queuedJob : queue.mJobs)
+                    cancelled.add(queuedJob.mJob);
+                queue.mJobs.clear();
+                queue.mKeyedJobs.clear();
+            }
+            mReady.clear();
+            mQueueDepth = 0;
+        }
+
+        // Cancel the Jobs outside the lock, since they may submit
+        // others, e.g., retries.
+        for (Job job : cancelled)
+            job.cancel();
+    }
+
+    /**
+     * Returns the queue of the @a client, creating it if need be.
+     */
+    private ClientQueue getClientQueue(Object client) {
+        ClientQueue queue = mClients.get(client);
+        if (queue == null) {
+            queue = new ClientQueue(client);
+            mClients.put(client, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * Returns the client whose queued Job starts next, which is the
+     * first in round-robin order that's under the per-client cap, or
+     * the first of all if they're all at the cap.  The turns are
+     * advanced past the clients that are passed over.
+     */
+    private ClientQueue nextClient() {
+        for (int i = 0; i < mReady.size(); ++i) {
+            ClientQueue queue = mReady.peek();
+            if (queue.mInFlight < mMaxInFlightPerClient)
+                return queue;
+            mReady.add(mReady.poll());
+        }
+        return mReady.peek();
+    }
+
+    /**
+     * Take the next Job of the @a queue, and pass the turn to the
+     * next client if the @a queue has used its credits or is empty.
+     */
+    private Job take(ClientQueue queue) {
+        QueuedJob queuedJob = queue.mJobs.pollFirst();
+        if (queuedJob.mKey != null) {
+            List<QueuedJob> keyedJobs = queue.mKeyedJobs.get(queuedJob.mKey);
+            keyedJobs.remove(queuedJob);
+            if (keyedJobs.isEmpty())
+                queue.mKeyedJobs.remove(queuedJob.mKey);
+        }
+        --mQueueDepth;
+        ++queue.mInFlight;
+        ++queue.mStarted;
+
+        mReady.poll();
+        if (!queue.mJobs.isEmpty()) {
+            if (--queue.mCredits > 0)
+                mReady.addFirst(queue);
+            else {
+                queue.mCredits = queue.mWeight;
+                mReady.add(queue);
+            }
+        }
+        return queuedJob.mJob;
+    }
+
+    /**
+     * Record that a Job of the client of the @a queue completed,
+     * forgetting the client once it has no Jobs left.
+     */
+    private void onJobComplete(ClientQueue queue) {
+        if (--queue.mInFlight == 0
+            && queue.mJobs.isEmpty()
+            && mClients.get(queue.mClient) == queue)
+            mClients.remove(queue.mClient);
+    }
+
+    /**
+     * Free the slot of the completed Job of the client of the @a
+     * queue and start the next queued Jobs.
+     */
+    private void release(ClientQueue queue) {
+        synchronized (this) {
+            --mInFlight;
+            onJobComplete(queue);
+        }
+        dispatch();
+    }
+
+    /**
+     * Start as many queued Jobs as the limit allows.
+     */
+    private void dispatch() {
+        while (true) {
+            final Job job;
+            final ClientQueue queue;
+            synchronized (this) {
+                if (mShutdown
+                    || mReady.isEmpty()
+                    || mInFlight >= mLimiter.getLimit())
+                    return;
+                queue = nextClient();
+                job = take(queue);
+                ++mInFlight;
+            }
+
+            final long start = System.nanoTime();
+            final AtomicBoolean completed = new AtomicBoolean();
+            final Completion completion = new Completion() {
+                    @Override
+                    public void complete(DownloadManifest.Entry entry) {
+                        // Ignore all but the first call.
+                        if (!completed.compareAndSet(false, true))
+                            return;
+                        // Only an image stored by this Job counts
+                        // toward the throughput.
+                        mLimiter.onComplete(System.nanoTime() - start,
+                                            entry.succeeded()
+                                            && !entry.isDuplicate()
+                                            ? entry.getByteCount()
+                                            : 0,
+                                            !entry.succeeded()
+                                            && entry.isRetryable());
+                        release(queue);
+                    }
+                };
+
+            mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            job.start(completion);
+                        } catch (RuntimeException e) {
+                            // Don't let a failed Job hold its slot,
+                            // or its exception kill the process and
+                            // every other download with it.  The Job
+                            // reports its own outcome, and there's no
+                            // download for the limiter to learn from.
+                            Log.e(TAG,
+                                  "Exception starting a Job",
+                                  e);
+                            if (completed.compareAndSet(false, true))
+                                release(queue);
+                        }
+                    }
+                });
+        }
+    }
+}
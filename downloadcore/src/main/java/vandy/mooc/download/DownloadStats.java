@@ -0,0 +1,336 @@
+package vandy.mooc.download;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters that describe the work done by the download Service in
+ * this process.  All counters are atomic, so they can be updated by
+ * the threads that download images and read from any thread.
+ */
+public class DownloadStats {
+    /**
+     * The one instance of DownloadStats in this process.
+     */
+    private static final DownloadStats sInstance = new DownloadStats();
+
+    /**
+     * Number of images that were downloaded successfully.
+     */
+    private final AtomicLong mDownloads = new AtomicLong();
+
+    /**
+     * Number of downloads that failed.
+     */
+    private final AtomicLong mFailures = new AtomicLong();
+
+    /**
+     * Number of bytes read from the network.
+     */
+    private final AtomicLong mBytesDownloaded = new AtomicLong();
+
+    /**
+     * Number of bytes written to image files.
+     */
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    /**
+     * Number of responses that were rejected before being read in
+     * full.
+     */
+    private final AtomicLong mRejections = new AtomicLong();
+
+    /**
+     * Number of downloads whose body was taken from the
+     * PrefetchCache.
+     */
+    private final AtomicLong mPrefetchHits = new AtomicLong();
+
+    /**
+     * Number of images that were decoded.
+     */
+    private final AtomicLong mDecodes = new AtomicLong();
+
+    /**
+     * Number of downloads whose contents were already stored, so
+     * they reference the existing file.
+     */
+    private final AtomicLong mDuplicates = new AtomicLong();
+
+    /**
+     * Number of bytes that weren't written because their contents
+     * were already stored.
+     */
+    private final AtomicLong mBytesSaved = new AtomicLong();
+
+    /**
+     * Number of encodes made in each OutputFormat.Mode, indexed by
+     * its ordinal.
+     */
+    private final AtomicLongArray mEncodes =
+        new AtomicLongArray(OutputFormat.Mode.values().length);
+
+    /**
+     * Total time spent encoding in each OutputFormat.Mode.
+     */
+    private final AtomicLongArray mEncodeNanos =
+        new AtomicLongArray(OutputFormat.Mode.values().length);
+
+    /**
+     * Total bytes produced by encoding in each OutputFormat.Mode.
+     */
+    private final AtomicLongArray mEncodedBytes =
+        new AtomicLongArray(OutputFormat.Mode.values().length);
+
+    /**
+     * Number of images stored in each OutputFormat.Mode.
+     */
+    private final AtomicLongArray mStoredFormats =
+        new AtomicLongArray(OutputFormat.Mode.values().length);
+
+    /**
+     * Number of times the written image files were forced to the
+     * storage device.
+     */
+    private final AtomicLong mSyncs = new AtomicLong();
+
+    /**
+     * Number of image files forced to the storage device.
+     */
+    private final AtomicLong mSyncedFiles = new AtomicLong();
+
+    /**
+     * Total time spent forcing image files to the storage device.
+     */
+    private final AtomicLong mSyncNanos = new AtomicLong();
+
+    /**
+     * Constructor is private to ensure the getInstance() factory
+     * method is used.
+     */
+    private DownloadStats() {
+    }
+
+    /**
+     * Returns the one instance of DownloadStats in this process.
+     */
+    public static DownloadStats getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Record that @a byteCount bytes were read from the network.
+     */
+    public void recordDownload(long byteCount) {
+        mBytesDownloaded.addAndGet(byteCount);
+    }
+
+    /**
+     * Record that a downloaded image was decoded.
+     */
+    public void recordDecode() {
+        mDecodes.incrementAndGet();
+    }
+
+    /**
+     * Record that @a byteCount bytes were written to the file of a
+     * downloaded image.
+     */
+    public void recordStored(long byteCount) {
+        mDownloads.incrementAndGet();
+        mBytesWritten.addAndGet(byteCount);
+    }
+
+    /**
+     * Record that a downloaded image references an existing file of
+     * @a byteCount bytes with the same contents.
+     */
+    public void recordDuplicate(long byteCount) {
+        mDownloads.incrementAndGet();
+        mDuplicates.incrementAndGet();
+        mBytesSaved.addAndGet(byteCount);
+    }
+
+    /**
+     * Record that encoding an image in the @a mode took @a nanos and
+     * produced @a byteCount bytes.
+     */
+    public void recordEncode(OutputFormat.Mode mode,
+                             long nanos,
+                             long byteCount) {
+        mEncodes.incrementAndGet(mode.ordinal());
+        mEncodeNanos.addAndGet(mode.ordinal(), nanos);
+        mEncodedBytes.addAndGet(mode.ordinal(), byteCount);
+    }
+
+    /**
+     * Record that an image was stored in the @a mode.
+     */
+    public void recordStoredFormat(OutputFormat.Mode mode) {
+        mStoredFormats.incrementAndGet(mode.ordinal());
+    }
+
+    /**
+     * Record that a response was rejected before being read in full.
+     */
+    public void recordRejection() {
+        mRejections.incrementAndGet();
+    }
+
+    /**
+     * Record that a download's body was taken from the PrefetchCache.
+     */
+    public void recordPrefetchHit() {
+        mPrefetchHits.incrementAndGet();
+    }
+
+    /**
+     * Record that @a fileCount image files were forced to the storage
+     * device together, which took @a nanos.
+     */
+    public void recordSync(int fileCount,
+                           long nanos) {
+        mSyncs.incrementAndGet();
+        mSyncedFiles.addAndGet(fileCount);
+        mSyncNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Record that a download failed.
+     */
+    public void recordFailure() {
+        mFailures.incrementAndGet();
+    }
+
+    public long getDownloads() {
+        return mDownloads.get();
+    }
+
+    public long getFailures() {
+        return mFailures.get();
+    }
+
+    public long getRejections() {
+        return mRejections.get();
+    }
+
+    public long getPrefetchHits() {
+        return mPrefetchHits.get();
+    }
+
+    public long getBytesDownloaded() {
+        return mBytesDownloaded.get();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    public long getDecodes() {
+        return mDecodes.get();
+    }
+
+    public long getDuplicates() {
+        return mDuplicates.get();
+    }
+
+    public long getBytesSaved() {
+        return mBytesSaved.get();
+    }
+
+    public long getSyncs() {
+        return mSyncs.get();
+    }
+
+    public long getSyncedFiles() {
+        return mSyncedFiles.get();
+    }
+
+    /**
+     * Returns the average time in microseconds of forcing a group of
+     * image files, or 0 if there weren't any.
+     */
+    public long getAverageSyncMicros() {
+        long syncs = getSyncs();
+        return syncs == 0
+            ? 0
+            : mSyncNanos.get() / syncs / 1000;
+    }
+
+    /**
+     * Returns the number of encodes made in the @a mode.
+     */
+    public long getEncodes(OutputFormat.Mode mode) {
+        return mEncodes.get(mode.ordinal());
+    }
+
+    /**
+     * Returns the average time in microseconds of an encode in the
+     * @a mode, or 0 if there weren't any.
+     */
+    public long getAverageEncodeMicros(OutputFormat.Mode mode) {
+        long encodes = getEncodes(mode);
+        return encodes == 0
+            ? 0
+            : mEncodeNanos.get(mode.ordinal()) / encodes / 1000;
+    }
+
+    /**
+     * Returns the average number of bytes produced by an encode in
+     * the @a mode, or 0 if there weren't any.
+     */
+    public long getAverageEncodedBytes(OutputFormat.Mode mode) {
+        long encodes = getEncodes(mode);
+        return encodes == 0
+            ? 0
+            : mEncodedBytes.get(mode.ordinal()) / encodes;
+    }
+
+    /**
+     * Returns the number of images stored in the @a mode.
+     */
+    public long getStoredFormats(OutputFormat.Mode mode) {
+        return mStoredFormats.get(mode.ordinal());
+    }
+
+    /**
+     * Returns a one-line summary of the encodes made in each mode,
+     * which benchmarks their cost against the size of their output.
+     */
+    public String getEncodeSummary() {
+        StringBuilder summary = new StringBuilder();
+        for (OutputFormat.Mode mode : OutputFormat.Mode.values()) {
+            if (getEncodes(mode) == 0 && getStoredFormats(mode) == 0)
+                continue;
+            summary.append(' ')
+                .append(mode)
+                .append("[encodes=").append(getEncodes(mode))
+                .append(" avgMicros=").append(getAverageEncodeMicros(mode))
+                .append(" avgBytes=").append(getAverageEncodedBytes(mode))
+                .append(" stored=").append(getStoredFormats(mode))
+                .append(']');
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Returns a one-line summary of the counters for logging.
+     */
+    @Override
+    public String toString() {
+        return "downloads=" + getDownloads()
+            + " failures=" + getFailures()
+            + " rejections=" + getRejections()
+            + " prefetchHits=" + getPrefetchHits()
+            + " bytesDownloaded=" + getBytesDownloaded()
+            + " bytesWritten=" + getBytesWritten()
+            + " decodes=" + getDecodes()
+            + " duplicates=" + getDuplicates()
+            + " bytesSaved=" + getBytesSaved()
+            + " decodesSaved=" + getDuplicates()
+            + " syncs=" + getSyncs()
+            + " syncedFiles=" + getSyncedFiles()
+            + " avgSyncMicros=" + getAverageSyncMicros()
+            + getEncodeSummary();
+    }
+}
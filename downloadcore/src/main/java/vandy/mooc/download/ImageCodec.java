@@ -0,0 +1,62 @@
+package vandy.mooc.download;
+
+import java.io.File;
+
+/**
+ * Decodes downloaded images and encodes them as an OutputFormat
+ * requires before they're stored.  Each platform provides its own
+ * ImageCodec, e.g., one based on Bitmap on Android.
+ */
+public interface ImageCodec {
+    /**
+     * An encoded image and its dimensions.
+     */
+    class EncodedImage {
+        /**
+         * The encoded bytes to store, or null if the downloaded
+         * bytes are stored unchanged.
+         */
+        private final byte[] mBytes;
+
+        /**
+         * The dimensions of the image.
+         */
+        private final int mWidth;
+        private final int mHeight;
+
+        /**
+         * Constructor initializes the fields.
+         */
+        public EncodedImage(byte[] bytes,
+                            int width,
+                            int height) {
+            mBytes = bytes;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public byte[] getBytes() {
+            return mBytes;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+    }
+
+    /**
+     * Check that the contents of the @a file are an image and encode
+     * it as the @a outputFormat requires, without reading more of
+     * the file into memory than decoding it takes.
+     *
+     * @return the encoded image, whose bytes are null if the @a file
+     *         should be stored unchanged, or null if the @a file
+     *         can't be decoded or encoded.
+     */
+    EncodedImage encode(File file,
+                        OutputFormat outputFormat);
+}
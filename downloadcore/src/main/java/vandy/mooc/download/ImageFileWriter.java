@@ -0,0 +1,437 @@
+package vandy.mooc.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes image files so that readers never see a partly written
+ * file, even after the device loses power.  Each image is written
+ * through a FileChannel from a pooled direct buffer into a temporary
+ * file that's preallocated to its size.  The temporary file is forced
+ * to the storage device before it's renamed over the image file, and
+ * the directory is forced after the rename, so the image file is
+ * either absent or complete.
+ *
+ * Rather than forcing each file on its own, which costs a full
+ * device flush per image, the files written at about the same time
+ * are committed together.  The first writer of a commit waits up to
+ * the flush window for others to join it, forces all of their files,
+ * renames them, and then forces their directories once each, while
+ * the writers that joined wait for it to finish.
+ */
+public class ImageFileWriter {
+    /**
+     * Debugging tag used by the logger.
+     */
+    private final static String TAG = "ImageFileWriter";
+
+    /**
+     * Size of each pooled direct buffer.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Maximum number of idle direct buffers kept in the pool.
+     */
+    private static final int MAX_IDLE_BUFFERS = 4;
+
+    /**
+     * How long a commit waits for more files by default, which is
+     * short since each writer waits for its commit.
+     */
+    private static final long DEFAULT_FLUSH_WINDOW_MS = 5;
+
+    /**
+     * Maximum number of files in a commit, which bounds the file
+     * descriptors held open.
+     */
+    private static final int MAX_PENDING = 64;
+
+    /**
+     * The one ImageFileWriter used by default in this process.
+     */
+    private static final ImageFileWriter sInstance =
+        new ImageFileWriter(new DirectBufferPool(BUFFER_SIZE,
+                                                 MAX_IDLE_BUFFERS),
+                            DEFAULT_FLUSH_WINDOW_MS);
+
+    /**
+     * Used to name the temporary files uniquely.
+     */
+    private static final AtomicLong sNextTemporaryFile = new AtomicLong();
+
+    /**
+     * Opens a directory so it can be forced, or null if the platform
+     * can't, e.g., Android before java.nio.file existed.
+     */
+    private static final DirectoryOpener sDirectoryOpener =
+        DirectoryOpener.make();
+
+    /**
+     * A file that waits to be committed.
+     */
+    private static class Pending {
+        /**
+         * The channel the temporary file was written through.
+         */
+        final FileChannel mChannel;
+
+        /**
+         * The temporary file that's renamed once it's forced.
+         */
+        final File mTemporaryFile;
+
+        /**
+         * The image file it's renamed to.
+         */
+        final File mFile;
+
+        /**
+         * Why the file couldn't be committed, or null if it was.
+         */
+        IOException mFailure;
+
+        /**
+         * True once the commit that took the file has finished.
+         */
+        boolean mDone;
+
+        Pending(FileChannel channel,
+                File temporaryFile,
+                File file) {
+            mChannel = channel;
+            mTemporaryFile = temporaryFile;
+            mFile = file;
+        }
+    }
+
+    /**
+     * The direct buffers the files are written from.
+     */
+    private final DirectBufferPool mBufferPool;
+
+    /**
+     * How long a commit waits for more files, in nanoseconds.
+     */
+    private final long mFlushWindowNanos;
+
+    /**
+     * The files that wait for the next commit.
+     */
+    private List<Pending> mPending = new ArrayList<Pending>();
+
+    /**
+     * True while a writer is gathering or committing files.
+     */
+    private boolean mCommitting;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public ImageFileWriter(DirectBufferPool bufferPool,
+                           long flushWindowMs) {
+        mBufferPool = bufferPool;
+        mFlushWindowNanos = TimeUnit.MILLISECONDS.toNanos(flushWindowMs);
+    }
+
+    /**
+     * Returns the one ImageFileWriter used by default in this
+     * process.
+     */
+    public static ImageFileWriter getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Write the @a bytes into the @a file, replacing it atomically if
+     * it exists, and return once it's on the storage device.
+     */
+    public void write(File file,
+                      byte[] bytes) throws IOException {
+        File temporaryFile = makeTemporaryFile(file);
+        RandomAccessFile randomAccessFile =
+            new RandomAccessFile(temporaryFile, "rw");
+        FileChannel channel = randomAccessFile.getChannel();
+        ByteBuffer buffer = null;
+        try {
+            buffer = mBufferPool.acquire();
+
+            // Reserve the file's size up front, so it's not extended
+            // write by write.
+            randomAccessFile.setLength(bytes.length);
+
+            for (int offset = 0; offset < bytes.length; ) {
+                buffer.clear();
+                int length = Math.min(buffer.remaining(),
+                                      bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                offset += length;
+            }
+            commit(new Pending(channel, temporaryFile, file));
+        } catch (Throwable t) {
+            // Don't leave the channel open or the temporary file
+            // behind, whatever went wrong.
+            closeQuietly(channel);
+            temporaryFile.delete();
+            throw t;
+        } finally {
+            if (buffer != null)
+                mBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * Move the already written @a source file over the @a file
+     * atomically, which stores its contents without copying them,
+     * and return once it's on the storage device.  Both files must be
+     * on the same file system, and the @a source is left in place if
+     * it can't be moved.
+     */
+    public void move(File source,
+                     File file) throws IOException {
+        FileChannel channel =
+            new RandomAccessFile(source, "r").getChannel();
+        try {
+            commit(new Pending(channel, source, file));
+        } catch (Throwable t) {
+            closeQuietly(channel);
+            throw t;
+        }
+    }
+
+    /**
+     * Commit the @a pending file together with the others written at
+     * about the same time, and throw if it couldn't be committed.
+     */
+    private void commit(Pending pending) throws IOException {
+        List<Pending> batch = null;
+        boolean interrupted = false;
+        synchronized (this) {
+            mPending.add(pending);
+            if (mPending.size() >= MAX_PENDING)
+                // Don't keep the writer that's gathering waiting.
+                notifyAll();
+
+            while (!pending.mDone && batch == null) {
+                if (mCommitting) {
+                    // Wait for the commit in progress, which takes
+                    // this file if it's still gathering.
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // The file is committed regardless, so keep
+                        // waiting and restore the interrupt after.
+                        interrupted = true;
+                    }
+                    continue;
+                }
+
+                // Gather the files written within the flush window
+                // into this writer's commit.
+                mCommitting = true;
+                long deadline = System.nanoTime() + mFlushWindowNanos;
+                for (long remaining = mFlushWindowNanos;
+                     remaining > 0 && mPending.size() < MAX_PENDING;
+                     remaining = deadline - System.nanoTime())
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                        break;
+                    }
+                batch = mPending;
+                mPending = new ArrayList<Pending>();
+            }
+        }
+
+        if (batch != null)
+            try {
+                commit(batch);
+            } catch (Throwable t) {
+                // Fail the files whose writers would otherwise take
+                // them to be committed.
+                for (Pending failed : batch)
+                    if (failed.mFailure == null)
+                        failed.mFailure = new IOException(t);
+                throw t;
+            } finally {
+                synchronized (this) {
+                    for (Pending committed : batch)
+                        committed.mDone = true;
+                    mCommitting = false;
+                    notifyAll();
+                }
+            }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        if (pending.mFailure != null)
+            throw pending.mFailure;
+    }
+
+    /**
+     * Force the files of the @a batch, rename each one that was
+     * forced over its image file, and then force the directories they
+     * were renamed in, recording the failure of each file that
+     * couldn't be committed.
+     */
+    private static void commit(List<Pending> batch) {
+        long start = System.nanoTime();
+        for (Pending pending : batch)
+            try {
+                pending.mChannel.force(false);
+            } catch (IOException e) {
+                pending.mFailure = e;
+            } finally {
+                closeQuietly(pending.mChannel);
+            }
+
+        Set<File> directories = new LinkedHashSet<File>();
+        for (Pending pending : batch)
+            if (pending.mFailure == null)
+                try {
+                    rename(pending.mTemporaryFile, pending.mFile);
+                    directories.add(pending.mFile.getParentFile());
+                } catch (IOException e) {
+                    pending.mFailure = e;
+                }
+
+        // The renames are only durable once their directories are.
+        for (File directory : directories)
+            forceDirectory(directory);
+
+        DownloadStats.getInstance().recordSync(batch.size(),
+                                               System.nanoTime() - start);
+    }
+
+    /**
+     * Returns a temporary file in the directory of the @a file.
+     */
+    private static File makeTemporaryFile(File file) {
+        return new File(file.getParentFile(),
+                        "."
+                        + sNextTemporaryFile.incrementAndGet()
+                        + ".tmp");
+    }
+
+    /**
+     * Rename the @a source to the @a destination, replacing it.
+     */
+    private static void rename(File source,
+                               File destination) throws IOException {
+        if (!source.renameTo(destination))
+            throw new IOException("can't rename "
+                                  + source
+                                  + " to "
+                                  + destination);
+    }
+
+    /**
+     * Force the entries of the @a directory to the storage device if
+     * the platform can.  A failure is only logged, since the files in
+     * it are already complete.
+     */
+    private static void forceDirectory(File directory) {
+        if (sDirectoryOpener == null)
+            return;
+        FileChannel channel = null;
+        try {
+            channel = sDirectoryOpener.open(directory);
+            channel.force(true);
+        } catch (IOException e) {
+            Log.e(TAG,
+                  "Exception forcing directory "
+                  + directory,
+                  e);
+        } finally {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Close the @a channel (if it's not null), ignoring failures.
+     */
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null)
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+    }
+
+    /**
+     * Opens a directory for reading via FileChannel.open(), which is
+     * looked up reflectively since java.nio.file isn't available on
+     * older Android releases.
+     */
+    private static class DirectoryOpener {
+        private final Method mToPath;
+        private final Method mOpen;
+        private final Object mOptions;
+
+        private DirectoryOpener(Method toPath,
+                                Method open,
+                                Object options) {
+            mToPath = toPath;
+            mOpen = open;
+            mOptions = options;
+        }
+
+        /**
+         * Factory method that returns a DirectoryOpener, or null if
+         * java.nio.file doesn't exist.
+         */
+        static DirectoryOpener make() {
+            try {
+                Class<?> optionClass =
+                    Class.forName("java.nio.file.OpenOption");
+                Object options = Array.newInstance(optionClass, 1);
+                Array.set(options,
+                          0,
+                          Class.forName("java.nio.file.StandardOpenOption")
+                          .getField("READ")
+                          .get(null));
+                return new DirectoryOpener
+                    (File.class.getMethod("toPath"),
+                     FileChannel.class.getMethod
+                         ("open",
+                          Class.forName("java.nio.file.Path"),
+                          options.getClass()),
+                     options);
+            } catch (Exception e) {
+                // ReflectiveOperationException isn't available on
+                // Android API 18.
+                return null;
+            }
+        }
+
+        /**
+         * Returns a channel that reads the @a directory.
+         */
+        FileChannel open(File directory) throws IOException {
+            try {
+                return (FileChannel)
+                    mOpen.invoke(null, mToPath.invoke(directory), mOptions);
+            } catch (Exception e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e);
+            }
+        }
+    }
+}
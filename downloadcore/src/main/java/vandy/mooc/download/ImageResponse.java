@@ -0,0 +1,312 @@
+package vandy.mooc.download;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Locale;
+
+/**
+ * Opens the response to an image request and rejects it as early as
+ * possible if it can't be an image the Service wants to store.  The
+ * status, Content-Type and Content-Length headers are checked before
+ * any of the body is read, the first bytes of the body are sniffed
+ * for the magic number of a known image format, and reading stops as
+ * soon as the body exceeds the configured ceiling.  A bad response is
+ * thus aborted within a few KB rather than after it's been read and
+ * handed to the decoder.
+ */
+public class ImageResponse {
+    /**
+     * Ceiling on the size of an image used when a request doesn't
+     * specify one.
+     */
+    public static final long DEFAULT_MAX_IMAGE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Timeout in milliseconds for connecting and for each read.
+     */
+    private static final int TIMEOUT_MS = 15 * 1000;
+
+    /**
+     * Number of bytes sniffed for the magic number.
+     */
+    public static final int SNIFF_LENGTH = 12;
+
+    /**
+     * Open the response to the @a url, check its headers and sniff
+     * its first bytes, and return a stream of its body that throws a
+     * DownloadRejectedException if it exceeds @a maxImageBytes.  The
+     * response is disconnected if the @a attempt is cancelled.
+     */
+    public static InputStream open(URL url,
+                                   long maxImageBytes,
+                                   DownloadAttempt attempt) throws IOException {
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MS);
+        connection.setReadTimeout(TIMEOUT_MS);
+
+        if (connection instanceof HttpURLConnection) {
+            final HttpURLConnection httpConnection =
+                (HttpURLConnection) connection;
+
+            // Disconnect the response if the attempt is cancelled,
+            // which unblocks any read in progress.
+            attempt.setOnCancel(new Runnable() {
+                    @Override
+                    public void run() {
+                        httpConnection.disconnect();
+                    }
+                });
+            if (attempt.isCancelled())
+                throw new IOException("attempt was cancelled");
+            try {
+                checkHeaders(httpConnection, maxImageBytes);
+            } catch (IOException e) {
+                // Close the connection rather than draining the body.
+                httpConnection.disconnect();
+                throw e;
+            }
+        }
+
+        return check(connection.getInputStream(), maxImageBytes);
+    }
+
+    /**
+     * Returns the Content-Length of the image at the @a url from the
+     * headers of a HEAD request, or -1 if it's unknown, waiting at
+     * most @a timeoutMs milliseconds to connect and to read them.
+     */
+    public static long probeContentLength(URL url,
+                                          int timeoutMs) throws IOException {
+        URLConnection connection = url.openConnection();
+        if (!(connection instanceof HttpURLConnection))
+            return -1;
+
+        HttpURLConnection httpConnection = (HttpURLConnection) connection;
+        httpConnection.setRequestMethod("HEAD");
+        httpConnection.setConnectTimeout(timeoutMs);
+        httpConnection.setReadTimeout(timeoutMs);
+        try {
+            // A HEAD response has no body, so the connection goes
+            // back to the keep-alive pool once its headers are read.
+            int status = httpConnection.getResponseCode();
+            return status < 200 || status > 299
+                ? -1
+                : getContentLength(httpConnection);
+        } catch (IOException e) {
+            httpConnection.disconnect();
+            throw e;
+        }
+    }
+
+    /**
+     * Sniff the first bytes of the @a inputStream and return a stream
+     * of its contents that throws a DownloadRejectedException if they
+     * exceed @a maxImageBytes.
+     */
+    public static InputStream check(InputStream inputStream,
+                                    long maxImageBytes) throws IOException {
+        BufferedInputStream bufferedInputStream =
+            new BufferedInputStream(inputStream);
+        try {
+            sniff(bufferedInputStream);
+        } catch (IOException e) {
+            bufferedInputStream.close();
+            throw e;
+        }
+        return new BoundedInputStream(bufferedInputStream, maxImageBytes);
+    }
+
+    /**
+     * Check the status, Content-Type and Content-Length headers of
+     * the response to the @a connection.
+     */
+    private static void checkHeaders(HttpURLConnection connection,
+                                     long maxImageBytes) throws IOException {
+        int status = connection.getResponseCode();
+        if (status < 200 || status > 299)
+            throw new DownloadRejectedException
+                ("HTTP status " + status,
+                 isRetryableStatus(status));
+
+        String contentType = connection.getContentType();
+        if (!isImageContentType(contentType))
+            throw new DownloadRejectedException
+                ("Content-Type " + contentType,
+                 false);
+
+        long contentLength = getContentLength(connection);
+        if (contentLength > maxImageBytes)
+            throw new DownloadRejectedException
+                ("Content-Length "
+                 + contentLength
+                 + " exceeds "
+                 + maxImageBytes,
+                 false);
+    }
+
+    /**
+     * Returns true if a request that failed with the HTTP @a status
+     * may succeed if it's retried, i.e., for timeouts, throttling and
+     * server errors, which are transient.
+     */
+    public static boolean isRetryableStatus(int status) {
+        return status == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+            || status == 429
+            || status >= 500;
+    }
+
+    /**
+     * Returns true if the @a contentType may be that of an image,
+     * which includes a missing Content-Type.
+     */
+    public static boolean isImageContentType(String contentType) {
+        if (contentType == null)
+            return true;
+        contentType = contentType.trim().toLowerCase(Locale.US);
+        return contentType.startsWith("image/")
+            || contentType.startsWith("application/octet-stream");
+    }
+
+    /**
+     * Returns the Content-Length of the response to the @a
+     * connection, or -1 if it's unknown.
+     */
+    private static long getContentLength(HttpURLConnection connection) {
+        String contentLength =
+            connection.getHeaderField("Content-Length");
+        if (contentLength == null)
+            return -1;
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Peek at the first bytes of the @a inputStream and throw a
+     * DownloadRejectedException unless they're the magic number of
+     * an image format BitmapFactory can decode.
+     */
+    private static void sniff(BufferedInputStream inputStream) throws IOException {
+        byte[] head = new byte[SNIFF_LENGTH];
+        inputStream.mark(SNIFF_LENGTH);
+        int length = 0;
+        for (int n;
+             length < head.length
+                 && (n = inputStream.read(head,
+                                          length,
+                                          head.length - length)) != -1;
+             length += n)
+            continue;
+        inputStream.reset();
+
+        if (!isImage(head, length))
+            throw new DownloadRejectedException
+                ("response is not an image",
+                 false);
+    }
+
+    /**
+     * Returns true if the first @a length bytes of @a head are the
+     * magic number of a JPEG, PNG, GIF, WEBP or BMP image.
+     */
+    public static boolean isImage(byte[] head,
+                           int length) {
+        return startsWith(head, length, 0xff, 0xd8, 0xff)
+            || startsWith(head, length, 0x89, 'P', 'N', 'G')
+            || startsWith(head, length, 'G', 'I', 'F', '8')
+            || startsWith(head, length, 'B', 'M')
+            || (startsWith(head, length, 'R', 'I', 'F', 'F')
+                && length >= 12
+                && head[8] == 'W'
+                && head[9] == 'E'
+                && head[10] == 'B'
+                && head[11] == 'P');
+    }
+
+    /**
+     * Returns true if the first @a length bytes of @a head start with
+     * the @a magic bytes.
+     */
+    private static boolean startsWith(byte[] head,
+                                      int length,
+                                      int... magic) {
+        if (length < magic.length)
+            return false;
+        for (int i = 0; i < magic.length; ++i)
+            if ((head[i] & 0xff) != magic[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * An InputStream that throws a DownloadRejectedException as soon
+     * as more than a given number of bytes have been read from it.
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        /**
+         * Number of bytes that may still be read.
+         */
+        private long mRemaining;
+
+        /**
+         * Constructor initializes the fields.
+         */
+        BoundedInputStream(InputStream inputStream,
+                           long maxBytes) {
+            super(inputStream);
+            mRemaining = maxBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                consumed(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer,
+                        int offset,
+                        int length) throws IOException {
+            // Read at most one byte more than allowed to detect an
+            // oversized stream without reading it any further.
+            int n = super.read(buffer,
+                               offset,
+                               (int) Math.min(length, mRemaining + 1));
+            if (n > 0)
+                consumed(n);
+            return n;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Account for @a count bytes that were read.
+         */
+        private void consumed(long count) throws IOException {
+            mRemaining -= count;
+            if (mRemaining < 0)
+                throw new DownloadRejectedException
+                    ("image exceeds the size ceiling",
+                     false);
+        }
+    }
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private ImageResponse() {
+        throw new AssertionError();
+    }
+}
@@ -0,0 +1,529 @@
+package vandy.mooc.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads images and stores them in files, encoded by the
+ * ImageCodec and announced to the MediaIndex.  An image whose
+ * contents are already stored in the directory references the
+ * existing file rather than being stored again.  If a
+ * StorageManager is given, the files are sharded into its
+ * subdirectories and counted against its quota.  Each body is
+ * streamed to disk and hashed a chunk at a time, so the memory used
+ * doesn't grow with the size of the image.
+ */
+public class ImageStore {
+    /**
+     * Debugging tag used by the logger.
+     */
+    private final static String TAG = "ImageStore";
+
+    /**
+     * The characters used to encode filenames in Base64, with '_' in
+     * place of '/', which can't appear in a filename.
+     */
+    private static final char[] BASE64 =
+        ("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+_")
+        .toCharArray();
+
+    /**
+     * Size of the chunks the bodies are streamed in.
+     */
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * Used to name the spool files uniquely.
+     */
+    private static final AtomicLong sNextSpoolFile = new AtomicLong();
+
+    /**
+     * Decodes and encodes the images.
+     */
+    private final ImageCodec mCodec;
+
+    /**
+     * Makes the stored images visible to other apps.
+     */
+    private final MediaIndex mMediaIndex;
+
+    /**
+     * Writes the image files atomically.
+     */
+    private final ImageFileWriter mFileWriter;
+
+    /**
+     * Tracks the bytes stored against the quota and shards the
+     * files, or null if the files are stored flat and unmanaged.
+     */
+    private final StorageManager mStorageManager;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public ImageStore(ImageCodec codec,
+                      MediaIndex mediaIndex) {
+        this(codec,
+             mediaIndex,
+             ImageFileWriter.getInstance(),
+             null);
+    }
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public ImageStore(ImageCodec codec,
+                      MediaIndex mediaIndex,
+                      ImageFileWriter fileWriter,
+                      StorageManager storageManager) {
+        mCodec = codec;
+        mMediaIndex = mediaIndex;
+        mFileWriter = fileWriter;
+        mStorageManager = storageManager;
+    }
+
+    /**
+     * Download the image located at the @a url and store it in a
+     * file in the @a directoryPathname.
+     *
+     * @param url       the web url.
+     * @param outputFormat how the image is encoded before it's stored.
+     * @param maxImageBytes the ceiling on the size of the image.
+     * @param attempt   the attempt this download is part of.
+     *
+     * @return          the manifest entry of the download, which holds
+     *                  the absolute path to the downloaded image file on
+     *                  the file system if the download succeeded.  If
+     *                  an image with the same contents is already
+     *                  stored in the directory this is the path to
+     *                  that file.
+     */
+    public DownloadManifest.Entry download(String url,
+                                           String directoryPathname,
+                                           OutputFormat outputFormat,
+                                           long maxImageBytes,
+                                           DownloadAttempt attempt) {
+        // Download the contents at the URL, which should reference
+        // an image, rejecting the response as soon as it's clear it
+        // doesn't.
+        try (InputStream inputStream =
+             openImage(url, maxImageBytes, attempt)) {
+            // Create an output file and save the image into it.
+            return store(inputStream,
+                         url,
+                         url,
+                         directoryPathname,
+                         outputFormat,
+                         attempt);
+        } catch (DownloadRejectedException e) {
+            Log.d(TAG,
+                  "rejected "
+                  + url
+                  + ": "
+                  + e.getMessage()
+                  + (e.isRetryable() ? " (retryable)" : ""));
+            DownloadStats.getInstance().recordRejection();
+            return DownloadManifest.Entry.failed(url,
+                                                 e.isRetryable());
+        } catch (IOException e) {
+            Log.e(TAG,
+                  "Exception while downloading -- returning failure."
+                  + e.toString());
+            // Network errors, such as timeouts, are transient, unless
+            // the attempt was cancelled.
+            return DownloadManifest.Entry.failed
+                (url,
+                 !(e instanceof MalformedURLException)
+                 && !attempt.isCancelled());
+        } catch (Exception e) {
+            Log.e(TAG,
+                  "Exception while downloading -- returning failure."
+                  + e.toString());
+            return DownloadManifest.Entry.failed(url);
+        }
+    }
+
+    /**
+     * Store the image whose body was downloaded into the @a
+     * bodyFile, which is deleted afterwards.  The body is checked and
+     * stored just as download() does for a body it downloads, except
+     * that an image stored as downloaded is moved into place rather
+     * than copied.
+     *
+     * @param bodyFile  the file holding the downloaded body.
+     * @param url       the web url.
+     * @param outputFormat how the image is encoded before it's stored.
+     * @param maxImageBytes the ceiling on the size of the image.
+     * @param attempt   the attempt this download is part of.
+     *
+     * @return          the manifest entry of the download.
+     */
+    public DownloadManifest.Entry storeFile(File bodyFile,
+                                            String url,
+                                            String directoryPathname,
+                                            OutputFormat outputFormat,
+                                            long maxImageBytes,
+                                            DownloadAttempt attempt) {
+        try (InputStream inputStream =
+             ImageResponse.check(new FileInputStream(bodyFile),
+                                 maxImageBytes)) {
+            // Create an output file and save the image into it.
+            return store(inputStream,
+                         bodyFile,
+                         url,
+                         url,
+                         directoryPathname,
+                         outputFormat,
+                         attempt);
+        } catch (Exception e) {
+            Log.e(TAG,
+                  "Exception while storing -- returning failure."
+                  + e.toString());
+            return DownloadManifest.Entry.failed(url);
+        } finally {
+            bodyFile.delete();
+        }
+    }
+
+    /**
+     * Returns a stream of the body of the image at the @a url, which
+     * is taken from the PrefetchCache if the image was prefetched and
+     * is otherwise downloaded.
+     */
+    private static InputStream openImage(String url,
+                                         long maxImageBytes,
+                                         DownloadAttempt attempt)
+        throws IOException {
+        byte[] prefetched = PrefetchCache.remove(url);
+        if (prefetched != null) {
+            DownloadStats.getInstance().recordPrefetchHit();
+            return ImageResponse.check(new ByteArrayInputStream(prefetched),
+                                       maxImageBytes);
+        }
+        return ImageResponse.open(new URL(url),
+                                  maxImageBytes,
+                                  attempt);
+    }
+
+    /**
+     * Stream the image from the @a inputStream into a spool file in
+     * the directory, updating the SHA-256 hash of its contents with
+     * each chunk written.  If an image with the same contents is
+     * already stored in the directory, return a manifest entry that
+     * references that file, which saves decoding and storing the
+     * image again.  Otherwise, encode the image according to the @a
+     * outputFormat and store it in a file, which is the spool file
+     * moved into place if it's stored as downloaded.
+     *
+     * @param inputStream  the Input Stream.
+     * @param url          the web url.
+     * @param fileName     name of the file.
+     * @param outputFormat how the image is encoded before it's stored.
+     * @param attempt      the attempt this download is part of, which
+     *                     must claim the right to store the image.
+     *
+     * @return          the manifest entry of the image file.
+     */
+    public DownloadManifest.Entry store(InputStream inputStream,
+                                        String url,
+                                        String fileName,
+                                        String directoryPathname,
+                                        OutputFormat outputFormat,
+                                        DownloadAttempt attempt)
+        throws IOException, NoSuchAlgorithmException {
+        return store(inputStream,
+                     null,
+                     url,
+                     fileName,
+                     directoryPathname,
+                     outputFormat,
+                     attempt);
+    }
+
+    /**
+     * Store the image read from the @a inputStream as store() does.
+     * If the @a bodyFile isn't null it holds the same contents, in
+     * the directory, so they're only hashed rather than spooled, and
+     * it's moved into place if the image is stored as downloaded.
+     */
+    private DownloadManifest.Entry store(InputStream inputStream,
+                                         File bodyFile,
+                                         String url,
+                                         String fileName,
+                                         String directoryPathname,
+                                         OutputFormat outputFormat,
+                                         DownloadAttempt attempt)
+        throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        if (bodyFile != null) {
+            // The contents are already on disk, so just hash them.
+            DownloadStats.getInstance().recordDownload
+                (copy(inputStream, null, digest));
+            return store(bodyFile,
+                         digest.digest(),
+                         url,
+                         fileName,
+                         directoryPathname,
+                         outputFormat,
+                         attempt);
+        }
+
+        // Stream the contents into the spool file, hashing them on
+        // the way, and delete it unless it's moved into place.
+        File spoolFile = makeSpoolFile(directoryPathname);
+        try {
+            try (OutputStream outputStream =
+                 new FileOutputStream(spoolFile)) {
+                DownloadStats.getInstance().recordDownload
+                    (copy(inputStream, outputStream, digest));
+            }
+            return store(spoolFile,
+                         digest.digest(),
+                         url,
+                         fileName,
+                         directoryPathname,
+                         outputFormat,
+                         attempt);
+        } finally {
+            spoolFile.delete();
+        }
+    }
+
+    /**
+     * Store the image whose contents are in the @a bodyFile, which
+     * is in the directory, and whose hash is @a contentHash, as
+     * store() does.
+     */
+    private DownloadManifest.Entry store(File bodyFile,
+                                         byte[] contentHash,
+                                         String url,
+                                         String fileName,
+                                         String directoryPathname,
+                                         OutputFormat outputFormat,
+                                         DownloadAttempt attempt) {
+        DownloadStats stats = DownloadStats.getInstance();
+
+        // Only the first attempt to finish reading stores the image.
+        if (!attempt.claim()) {
+            Log.d(TAG,
+                  "another attempt already downloaded "
+                  + url);
+            return DownloadManifest.Entry.failed(url);
+        }
+
+        // Reference the file that already stores these contents (if
+        // any).
+        DownloadManifest.Entry original =
+            ContentIndex.lookup(directoryPathname, contentHash);
+        if (original != null) {
+            Log.d(TAG,
+                  url
+                  + " has the same contents as "
+                  + original.getImagePathname());
+            stats.recordDuplicate(original.getByteCount());
+            return DownloadManifest.Entry.duplicate(url,
+                                                    original,
+                                                    contentHash);
+        }
+
+        // Check that the contents are an image and encode it.
+        ImageCodec.EncodedImage image =
+            mCodec.encode(bodyFile, outputFormat);
+        if (image == null)
+            return DownloadManifest.Entry.failed(url);
+
+        // Store the encoded image, moving the body file into place if
+        // the codec kept the downloaded bytes.
+        DownloadManifest.Entry entry =
+            save(image.getBytes(),
+                 image.getBytes() == null ? bodyFile : null,
+                 image.getWidth(),
+                 image.getHeight(),
+                 url,
+                 fileName,
+                 directoryPathname,
+                 contentHash);
+        if (entry.succeeded()) {
+            stats.recordStored(entry.getByteCount());
+            ContentIndex.put(directoryPathname, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Store an encoded image in a file.
+     *
+     * @param imageToSave  the encoded image to store.
+     * @param width        the width of the image.
+     * @param height       the height of the image.
+     * @param url          the web url.
+     * @param fileName     name of the file.
+     * @param contentHash  the hash of the image's contents, or null to
+     *                     use the SHA-256 hash of the file written.
+     *
+     * @return          the manifest entry of the image file, which holds
+     *                  its absolute path on the file system, its size,
+     *                  dimensions and content hash.
+     */
+    public DownloadManifest.Entry save(byte[] imageToSave,
+                                       int width,
+                                       int height,
+                                       String url,
+                                       String fileName,
+                                       String directoryPathname,
+                                       byte[] contentHash) {
+        return save(imageToSave,
+                    null,
+                    width,
+                    height,
+                    url,
+                    fileName,
+                    directoryPathname,
+                    contentHash);
+    }
+
+    /**
+     * Store an encoded image in a file as save() does.  If the @a
+     * sourceFile isn't null it holds the image, in the directory,
+     * and is moved into place rather than the @a imageToSave being
+     * written, in which case the @a contentHash must be given.
+     */
+    private DownloadManifest.Entry save(byte[] imageToSave,
+                                        File sourceFile,
+                                        int width,
+                                        int height,
+                                        String url,
+                                        String fileName,
+                                        String directoryPathname,
+                                        byte[] contentHash) {
+        // Bail out of we get an invalid image.
+        if (imageToSave == null && sourceFile == null)
+            return DownloadManifest.Entry.failed(url);
+
+        // Try to open a directory, which is the file's shard of the
+        // session if the storage is managed.
+        String storedFileName = getTemporaryFilename(fileName);
+        File directory = mStorageManager != null
+            ? mStorageManager.getDirectory(directoryPathname, storedFileName)
+            : new File(directoryPathname);
+
+        // If the directory doesn't exist already then create it.
+        if (!directory.exists())
+            directory.mkdirs();
+
+        File file = new File(directory,
+                             storedFileName);
+        long replacedBytes = file.length();
+
+        // Save the image to the output file, replacing any existing
+        // file atomically so readers never see it partly written, and
+        // hash its contents if no content hash was given.
+        try {
+            if (sourceFile != null)
+                mFileWriter.move(sourceFile, file);
+            else
+                mFileWriter.write(file, imageToSave);
+            if (contentHash == null)
+                contentHash = MessageDigest.getInstance("SHA-256")
+                    .digest(imageToSave);
+        } catch (Exception e) {
+            // Indicate a failure.
+            return DownloadManifest.Entry.failed(url);
+        }
+
+        // Count the bytes stored against the quota.
+        if (mStorageManager != null)
+            mStorageManager.recordStored(directoryPathname,
+                                         file.length() - replacedBytes);
+
+        // Make the image visible to other apps.
+        mMediaIndex.add(file, fileName);
+
+        Log.d(TAG,
+              "absolute path to image file is "
+              + file.getAbsolutePath());
+
+        return new DownloadManifest.Entry(url,
+                                          file.getAbsolutePath(),
+                                          file.length(),
+                                          width,
+                                          height,
+                                          contentHash,
+                                          DownloadManifest.Status.DONE);
+    }
+
+    /**
+     * Copy the @a inputStream to the @a outputStream (if it's not
+     * null) a chunk at a time, updating the @a digest with each
+     * chunk, and return the number of bytes copied.
+     */
+    private static long copy(InputStream inputStream,
+                             OutputStream outputStream,
+                             MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long byteCount = 0;
+        for (int n; (n = inputStream.read(buffer)) != -1; ) {
+            digest.update(buffer, 0, n);
+            if (outputStream != null)
+                outputStream.write(buffer, 0, n);
+            byteCount += n;
+        }
+        return byteCount;
+    }
+
+    /**
+     * Returns a new spool file in the @a directoryPathname, creating
+     * the directory if it doesn't exist yet.  It's in the same file
+     * system as the image files, so it can be moved into place.
+     */
+    private static File makeSpoolFile(String directoryPathname) {
+        File directory = new File(directoryPathname);
+        if (!directory.exists())
+            directory.mkdirs();
+        return new File(directory,
+                        ".store-"
+                        + sNextSpoolFile.incrementAndGet()
+                        + ".part");
+    }
+
+    /**
+     * Create a temporary filename to store the result of a download,
+     * which is the Base64 encoding of the @a url.
+     *
+     * @param url Name of the URL.
+     * @return String containing the temporary filename.
+     */
+    static String getTemporaryFilename(final String url) {
+        // This is what you'd normally call to get a unique temporary
+        // filename, but for testing purposes we always name the file
+        // the same to avoid filling up student phones with numerous
+        // files!
+        byte[] bytes = url.getBytes(Charset.forName("UTF-8"));
+        StringBuilder filename =
+            new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int n = Math.min(3, bytes.length - i);
+            int group = (bytes[i] & 0xff) << 16;
+            if (n > 1)
+                group |= (bytes[i + 1] & 0xff) << 8;
+            if (n > 2)
+                group |= bytes[i + 2] & 0xff;
+            for (int j = 0; j < 4; ++j)
+                filename.append(j <= n
+                                ? BASE64[(group >> (18 - 6 * j)) & 0x3f]
+                                : '=');
+        }
+        return filename.toString();
+    }
+}
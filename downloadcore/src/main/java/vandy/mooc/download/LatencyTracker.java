@@ -0,0 +1,53 @@
+package vandy.mooc.download;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent successful downloads and
+ * returns percentiles of them, e.g., the running 95th percentile
+ * used to decide when to hedge a slow download.
+ */
+public class LatencyTracker {
+    /**
+     * Number of latencies kept.
+     */
+    private static final int WINDOW_SIZE = 256;
+
+    /**
+     * Number of latencies needed before percentiles are reported.
+     */
+    private static final int MIN_SAMPLES = 10;
+
+    /**
+     * Ring buffer of the most recent latencies in milliseconds.
+     */
+    private final long[] mLatenciesMs = new long[WINDOW_SIZE];
+
+    /**
+     * Number of latencies recorded thus far.
+     */
+    private int mCount;
+
+    /**
+     * Record the @a latencyMs of a successful download.
+     */
+    public synchronized void record(long latencyMs) {
+        mLatenciesMs[mCount % WINDOW_SIZE] = latencyMs;
+        ++mCount;
+    }
+
+    /**
+     * Returns the @a percentile (between 0 and 1) of the recent
+     * latencies in milliseconds, or -1 if too few have been recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        int size = Math.min(mCount, WINDOW_SIZE);
+        if (size < MIN_SAMPLES)
+            return -1;
+
+        long[] sorted = Arrays.copyOf(mLatenciesMs, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+}
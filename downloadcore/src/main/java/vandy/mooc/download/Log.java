@@ -0,0 +1,75 @@
+package vandy.mooc.download;
+
+/**
+ * The logger used by the download core, which mirrors the methods of
+ * android.util.Log it needs.  Messages go to the installed Logger,
+ * which writes them to standard error until an app installs its own.
+ */
+public class Log {
+    /**
+     * Logger that writes messages to standard error, which is used on
+     * a plain JVM.
+     */
+    private static final Logger STANDARD_ERROR = new Logger() {
+            @Override
+            public void d(String tag,
+                          String message) {
+                System.err.println("D/" + tag + ": " + message);
+            }
+
+            @Override
+            public void e(String tag,
+                          String message,
+                          Throwable throwable) {
+                System.err.println("E/" + tag + ": " + message);
+                if (throwable != null)
+                    throwable.printStackTrace();
+            }
+        };
+
+    /**
+     * The installed Logger.
+     */
+    private static volatile Logger sLogger = STANDARD_ERROR;
+
+    /**
+     * Install the @a logger that receives the messages, or restore
+     * the default one if it's null.
+     */
+    public static void setLogger(Logger logger) {
+        sLogger = logger == null ? STANDARD_ERROR : logger;
+    }
+
+    /**
+     * Log a debug @a message with the given @a tag.
+     */
+    public static void d(String tag,
+                         String message) {
+        sLogger.d(tag, message);
+    }
+
+    /**
+     * Log an error @a message with the given @a tag.
+     */
+    public static void e(String tag,
+                         String message) {
+        sLogger.e(tag, message, null);
+    }
+
+    /**
+     * Log an error @a message with the given @a tag and the @a
+     * throwable that caused it.
+     */
+    public static void e(String tag,
+                         String message,
+                         Throwable throwable) {
+        sLogger.e(tag, message, throwable);
+    }
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private Log() {
+        throw new AssertionError();
+    }
+}
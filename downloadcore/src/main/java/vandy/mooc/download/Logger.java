@@ -0,0 +1,22 @@
+package vandy.mooc.download;
+
+/**
+ * Receives the log messages of the download core.  Each app installs
+ * a Logger that forwards them to its platform's logger via
+ * Log.setLogger().
+ */
+public interface Logger {
+    /**
+     * Log a debug @a message with the given @a tag.
+     */
+    void d(String tag,
+           String message);
+
+    /**
+     * Log an error @a message with the given @a tag and the @a
+     * throwable that caused it, which may be null.
+     */
+    void e(String tag,
+           String message,
+           Throwable throwable);
+}
@@ -0,0 +1,37 @@
+package vandy.mooc.download;
+
+import java.io.File;
+
+/**
+ * Makes stored images visible to other apps, e.g., via the
+ * MediaStore on Android, so they can be viewed in the Gallery.
+ */
+public interface MediaIndex {
+    /**
+     * A MediaIndex that doesn't index anything, which is used on a
+     * plain JVM.
+     */
+    MediaIndex NONE = new MediaIndex() {
+            @Override
+            public void add(File file,
+                            String title) {
+            }
+
+            @Override
+            public void removeDirectory(File directory) {
+            }
+        };
+
+    /**
+     * Add the image stored in the @a file with the given @a title to
+     * the index.
+     */
+    void add(File file,
+             String title);
+
+    /**
+     * Remove the images stored in the @a directory and its
+     * subdirectories from the index.
+     */
+    void removeDirectory(File directory);
+}
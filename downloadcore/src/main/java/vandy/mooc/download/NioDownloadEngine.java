@@ -0,0 +1,199 @@
+package vandy.mooc.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A DownloadEngine that downloads the bodies of images with the
+ * non-blocking NioHttpClient, so many downloads can be in flight on
+ * a handful of threads.  Each body is written into a temporary file
+ * in the download directory, and once it's complete the image is
+ * stored from that file on the Executor.  URLs the NioHttpClient
+ * doesn't support (e.g., "https" or redirects) fall back to a
+ * blocking download on the Executor.
+ */
+public class NioDownloadEngine implements DownloadEngine {
+    /**
+     * Debugging tag used by the logger.
+     */
+    private final String TAG = getClass().getSimpleName();
+
+    /**
+     * Number of event-loop threads.
+     */
+    private static final int EVENT_LOOPS = 2;
+
+    /**
+     * Size of each pooled direct buffer.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Used to name the temporary files uniquely.
+     */
+    private static final AtomicLong sNextTemporaryFile = new AtomicLong();
+
+    /**
+     * Stores the downloaded images.
+     */
+    private final ImageStore mImageStore;
+
+    /**
+     * Executor that stores the downloaded images and runs the
+     * fallback downloads.
+     */
+    private final Executor mExecutor;
+
+    /**
+     * The client that downloads the bodies.
+     */
+    private final NioHttpClient mClient;
+
+    /**
+     * Constructor starts the NioHttpClient.
+     */
+    public NioDownloadEngine(ImageStore imageStore,
+                             Executor executor) throws IOException {
+        mImageStore = imageStore;
+        mExecutor = executor;
+        mClient =
+            new NioHttpClient(EVENT_LOOPS,
+                              new DirectBufferPool(BUFFER_SIZE,
+                                                   EVENT_LOOPS * 2));
+    }
+
+    @Override
+    public void download(final String url,
+                         final String directoryPathname,
+                         final OutputFormat outputFormat,
+                         final long maxImageBytes,
+                         final DownloadAttempt attempt,
+                         final Callback callback) {
+        // Prefetched images are taken from the PrefetchCache by the
+        // blocking download, which doesn't touch the network.
+        if (PrefetchCache.contains(url)) {
+            downloadBlocking(url,
+                             directoryPathname,
+                             outputFormat,
+                             maxImageBytes,
+                             attempt,
+                             callback);
+            return;
+        }
+
+        URL javaUrl;
+        try {
+            javaUrl = new URL(url);
+        } catch (MalformedURLException e) {
+            callback.onComplete(DownloadManifest.Entry.failed(url));
+            return;
+        }
+
+        File directory = new File(directoryPathname);
+        if (!directory.exists())
+            directory.mkdirs();
+        final File body =
+            new File(directory,
+                     ".nio-" + sNextTemporaryFile.incrementAndGet() + ".part");
+
+        final NioHttpClient.Download download =
+            mClient.download(javaUrl,
+                             body,
+                             maxImageBytes,
+                             new NioHttpClient.Callback() {
+                /**
+                 * This method runs on an event-loop thread.
+                 */
+                @Override
+                public void onComplete(NioHttpClient.Status status,
+                                       long byteCount,
+                                       String error,
+                                       boolean retryable) {
+                    switch (status) {
+                    case DONE:
+                        mExecutor.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onComplete
+                                        (mImageStore.storeFile(body,
+                                                               url,
+                                                               directoryPathname,
+                                                               outputFormat,
+                                                               maxImageBytes,
+                                                               attempt));
+                                }
+                            });
+                        break;
+                    case UNSUPPORTED:
+                        downloadBlocking(url,
+                                         directoryPathname,
+                                         outputFormat,
+                                         maxImageBytes,
+                                         attempt,
+                                         callback);
+                        break;
+                    default:
+                        Log.d(TAG,
+                              "download of "
+                              + url
+                              + " failed: "
+                              + error);
+                        // Only a response rejected before its body was
+                        // read counts as a rejection, not a timeout or
+                        // a connection that failed.
+                        if (status == NioHttpClient.Status.REJECTED)
+                            DownloadStats.getInstance().recordRejection();
+                        callback.onComplete
+                            (DownloadManifest.Entry.failed(url,
+                                                           retryable
+                                                           && !attempt.isCancelled()));
+                        break;
+                    }
+                }
+            });
+
+        // Cancel the download if the attempt is cancelled.
+        attempt.setOnCancel(new Runnable() {
+                @Override
+                public void run() {
+                    download.cancel();
+                }
+            });
+    }
+
+    /**
+     * Download the image at the @a url with blocking I/O on the
+     * Executor.
+     */
+    private void downloadBlocking(final String url,
+                                  final String directoryPathname,
+                                  final OutputFormat outputFormat,
+                                  final long maxImageBytes,
+                                  final DownloadAttempt attempt,
+                                  final Callback callback) {
+        mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onComplete(mImageStore.download(url,
+                                                             directoryPathname,
+                                                             outputFormat,
+                                                             maxImageBytes,
+                                                             attempt));
+                }
+            });
+    }
+
+    @Override
+    public int[] getConcurrencyBounds() {
+        return new int[] { 1, 1024, 32 };
+    }
+
+    @Override
+    public void shutdown() {
+        mClient.shutdown();
+    }
+}
@@ -0,0 +1,740 @@
+package vandy.mooc.download;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking HTTP/1.1 client that downloads the bodies of images
+ * into files.  A handful of event-loop threads each multiplex many
+ * connections over a Selector, so thousands of downloads can be in
+ * flight without a thread per download.  Each loop reads into direct
+ * buffers from a shared DirectBufferPool and writes the body straight
+ * to the file's FileChannel, holding a buffer only while a read is
+ * processed, so an idle connection costs a few hundred bytes of
+ * state.  The response is checked like ImageResponse does (status,
+ * Content-Type, Content-Length, magic number and size ceiling).
+ *
+ * Only plain "http" URLs without redirects are supported; the
+ * Callback reports UNSUPPORTED for anything else so the caller can
+ * fall back to a blocking download.  The Callback is called on an
+ * event-loop thread, so it must hand off any lengthy work.
+ */
+public class NioHttpClient {
+    /**
+     * Outcome of a download.
+     */
+    public enum Status {
+        /**
+         * The body was written to the file.
+         */
+        DONE,
+
+        /**
+         * The download failed and the file was deleted.
+         */
+        FAILED,
+
+        /**
+         * The response was rejected before its body was read in full,
+         * because it isn't an image or is too large, and the file was
+         * deleted.
+         */
+        REJECTED,
+
+        /**
+         * The URL or response needs features this client doesn't
+         * have (e.g., TLS or redirects).
+         */
+        UNSUPPORTED
+    }
+
+    /**
+     * Callback interface used to report the outcome of a download.
+     */
+    public interface Callback {
+        /**
+         * Called back once when the download of @a byteCount bytes
+         * completes with the @a status, and an @a error message and
+         * whether a retry may succeed if it failed.
+         */
+        void onComplete(Status status,
+                        long byteCount,
+                        String error,
+                        boolean retryable);
+    }
+
+    /**
+     * Handle used to cancel a download.
+     */
+    public interface Download {
+        /**
+         * Cancel the download, which then completes as FAILED.
+         */
+        void cancel();
+    }
+
+    /**
+     * Time in milliseconds a connection may be idle before it times
+     * out.
+     */
+    private static final int TIMEOUT_MS = 15 * 1000;
+
+    /**
+     * Time in milliseconds the loops wait in select() before they
+     * check for timeouts and cancellations.
+     */
+    private static final int SELECT_TIMEOUT_MS = 250;
+
+    /**
+     * Ceiling on the size of the response headers.
+     */
+    private static final int MAX_HEADER_BYTES = 16 * 1024;
+
+    /**
+     * Ceiling on the length of a chunk-size line.
+     */
+    private static final int MAX_CHUNK_LINE = 1024;
+
+    /**
+     * Charset of the request and response headers.
+     */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /**
+     * Handle of a download that's already complete.
+     */
+    private static final Download COMPLETED = new Download() {
+            @Override
+            public void cancel() {
+            }
+        };
+
+    /**
+     * The event loops, which are assigned downloads round-robin.
+     */
+    private final EventLoop[] mLoops;
+
+    /**
+     * Index of the loop the next download is assigned to.
+     */
+    private final AtomicInteger mNextLoop = new AtomicInteger();
+
+    /**
+     * Buffers the loops read into.
+     */
+    private final DirectBufferPool mBufferPool;
+
+    /**
+     * Constructor starts @a eventLoops threads that read into buffers
+     * from the @a bufferPool.
+     */
+    public NioHttpClient(int eventLoops,
+                         DirectBufferPool bufferPool) throws IOException {
+        mBufferPool = bufferPool;
+        mLoops = new EventLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < mLoops.length; ++i) {
+            mLoops[i] = new EventLoop("NioHttpClient-" + i);
+            mLoops[i].start();
+        }
+    }
+
+    /**
+     * Download the body of the image at the @a url into the @a
+     * outputFile, failing if it exceeds @a maxBytes.  This method
+     * resolves the host name, so it may block.
+     *
+     * @return a handle that cancels the download.
+     */
+    public Download download(URL url,
+                             File outputFile,
+                             long maxBytes,
+                             Callback callback) {
+        if (!"http".equalsIgnoreCase(url.getProtocol())) {
+            callback.onComplete(Status.UNSUPPORTED,
+                                0,
+                                "protocol " + url.getProtocol(),
+                                false);
+            return COMPLETED;
+        }
+
+        InetSocketAddress address =
+            new InetSocketAddress(url.getHost(),
+                                  url.getPort() == -1 ? 80 : url.getPort());
+        if (address.isUnresolved()) {
+            callback.onComplete(Status.FAILED,
+                                0,
+                                "unknown host " + url.getHost(),
+                                true);
+            return COMPLETED;
+        }
+
+        Connection connection =
+            new Connection(url, address, outputFile, maxBytes, callback);
+        mLoops[(mNextLoop.getAndIncrement() & Integer.MAX_VALUE)
+               % mLoops.length].register(connection);
+        return connection;
+    }
+
+    /**
+     * Stop the event loops, failing all downloads in flight.
+     */
+    public void shutdown() {
+        for (EventLoop loop : mLoops)
+            loop.shutdown();
+    }
+
+    /**
+     * A thread that multiplexes connections over a Selector.
+     */
+    private class EventLoop extends Thread {
+        /**
+         * Selector of the connections handled by this loop.
+         */
+        private final Selector mSelector;
+
+        /**
+         * Connections waiting to be started by this loop.
+         */
+        private final ConcurrentLinkedQueue<Connection> mPending =
+            new ConcurrentLinkedQueue<Connection>();
+
+        /**
+         * False once shutdown() has been called.
+         */
+        private volatile boolean mRunning = true;
+
+        /**
+         * Constructor opens the Selector.
+         */
+        EventLoop(String name) throws IOException {
+            super(name);
+            setDaemon(true);
+            mSelector = Selector.open();
+        }
+
+        /**
+         * Hand the @a connection to this loop.
+         */
+        void register(Connection connection) {
+            connection.mLoop = this;
+            mPending.add(connection);
+            mSelector.wakeup();
+        }
+
+        /**
+         * Wake this loop up, e.g., to notice a cancellation.
+         */
+        void wakeup() {
+            mSelector.wakeup();
+        }
+
+        /**
+         * Stop this loop.
+         */
+        void shutdown() {
+            mRunning = false;
+            mSelector.wakeup();
+        }
+
+        /**
+         * Hook method that runs the loop.
+         */
+        @Override
+        public void run() {
+            while (mRunning) {
+                try {
+                    mSelector.select(SELECT_TIMEOUT_MS);
+                } catch (IOException e) {
+                    break;
+                }
+
+                for (Connection connection;
+                     (connection = mPending.poll()) != null; )
+                    connection.start(mSelector);
+
+                Iterator<SelectionKey> iterator =
+                    mSelector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    ((Connection) key.attachment()).handle(key);
+                }
+
+                // Fail the connections that were cancelled or have
+                // been idle for too long.
+                long now = System.currentTimeMillis();
+                for (SelectionKey key : mSelector.keys()) {
+                    Connection connection = (Connection) key.attachment();
+                    if (connection.mCancelled)
+                        connection.fail("cancelled", false);
+                    else if (now > connection.mDeadline)
+                        connection.fail("timed out", true);
+                }
+            }
+
+            for (Connection connection;
+                 (connection = mPending.poll()) != null; )
+                connection.fail("shut down", false);
+            for (SelectionKey key : mSelector.keys())
+                ((Connection) key.attachment()).fail("shut down", false);
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * The state of one download, which is only touched by its loop
+     * (except for mCancelled).
+     */
+    private class Connection implements Download {
+        private final URL mUrl;
+        private final InetSocketAddress mAddress;
+        private final File mOutputFile;
+        private final long mMaxBytes;
+        private final Callback mCallback;
+
+        private volatile EventLoop mLoop;
+        private SocketChannel mChannel;
+        private SelectionKey mKey;
+        private ByteBuffer mRequest;
+        private FileChannel mOutput;
+        private ByteArrayOutputStream mHeader = new ByteArrayOutputStream();
+        private int mHeaderTail;
+        private long mContentLength = -1;
+        private boolean mChunked;
+        private ChunkState mChunkState = ChunkState.SIZE;
+        private StringBuilder mChunkLine = new StringBuilder();
+        private long mChunkRemaining;
+        private int mChunkCrlfRemaining;
+        private long mBodyBytes;
+        private final byte[] mSniff = new byte[ImageResponse.SNIFF_LENGTH];
+        private int mSniffed;
+        private boolean mSniffChecked;
+        private long mDeadline;
+        private boolean mFinished;
+
+        /**
+         * True once cancel() has been called, which may happen on any
+         * thread.
+         */
+        private volatile boolean mCancelled;
+
+        Connection(URL url,
+                   InetSocketAddress address,
+                   File outputFile,
+                   long maxBytes,
+                   Callback callback) {
+            mUrl = url;
+            mAddress = address;
+            mOutputFile = outputFile;
+            mMaxBytes = maxBytes;
+            mCallback = callback;
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            EventLoop loop = mLoop;
+            if (loop != null)
+                loop.wakeup();
+        }
+
+        /**
+         * Open the channel and start connecting.
+         */
+        void start(Selector selector) {
+            if (mCancelled) {
+                fail("cancelled", false);
+                return;
+            }
+            mRequest = makeRequest();
+            touch();
+            try {
+                mChannel = SocketChannel.open();
+                mChannel.configureBlocking(false);
+                boolean connected = mChannel.connect(mAddress);
+                mKey = mChannel.register(selector,
+                                         connected
+                                         ? SelectionKey.OP_WRITE
+                                         : SelectionKey.OP_CONNECT,
+                                         this);
+            } catch (IOException e) {
+                fail(e.toString(), true);
+            }
+        }
+
+        /**
+         * Handle the readiness of the @a key.
+         */
+        void handle(SelectionKey key) {
+            try {
+                if (!key.isValid())
+                    return;
+                if (key.isConnectable() && mChannel.finishConnect())
+                    key.interestOps(SelectionKey.OP_WRITE);
+                else if (key.isWritable()) {
+                    mChannel.write(mRequest);
+                    if (!mRequest.hasRemaining()) {
+                        mRequest = null;
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable())
+                    read();
+                touch();
+            } catch (IOException e) {
+                fail(e.toString(), true);
+            }
+        }
+
+        /**
+         * Read what's available into a pooled buffer and process it.
+         */
+        private void read() throws IOException {
+            ByteBuffer buffer = mBufferPool.acquire();
+            try {
+                int n = mChannel.read(buffer);
+                if (n == -1) {
+                    onEndOfStream();
+                    return;
+                }
+                buffer.flip();
+                if (mHeader != null)
+                    readHeaders(buffer);
+                if (!mFinished && mHeader == null && buffer.hasRemaining())
+                    readBody(buffer);
+            } finally {
+                mBufferPool.release(buffer);
+            }
+        }
+
+        /**
+         * Accumulate the response headers from the @a buffer and parse
+         * them once they're complete.
+         */
+        private void readHeaders(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                mHeader.write(b);
+                mHeaderTail = (mHeaderTail << 8) | (b & 0xff);
+                if (mHeader.size() > MAX_HEADER_BYTES) {
+                    fail("response headers are too large", false);
+                    return;
+                }
+                // The headers end with a blank line, i.e., CRLF CRLF.
+                if (mHeaderTail == 0x0d0a0d0a) {
+                    String header =
+                        new String(mHeader.toByteArray(), ISO_8859_1);
+                    mHeader = null;
+                    parseHeaders(header);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Check the status line and the headers of the response.
+         */
+        private void parseHeaders(String header) throws IOException {
+            String[] lines = header.split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            int status;
+            try {
+                status = Integer.parseInt(statusLine[1]);
+            } catch (RuntimeException e) {
+                fail("malformed status line " + lines[0], false);
+                return;
+            }
+
+            String contentType = null;
+            for (int i = 1; i < lines.length; ++i) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0)
+                    continue;
+                String name =
+                    lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equals("content-type"))
+                    contentType = value;
+                else if (name.equals("content-length"))
+                    try {
+                        mContentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        mContentLength = -1;
+                    }
+                else if (name.equals("transfer-encoding"))
+                    mChunked = value.toLowerCase(Locale.US).contains("chunked");
+            }
+
+            if (status >= 300 && status <= 399)
+                finish(Status.UNSUPPORTED, "redirect " + status, false);
+            else if (status < 200 || status > 299)
+                fail("HTTP status " + status,
+                     ImageResponse.isRetryableStatus(status));
+            else if (!ImageResponse.isImageContentType(contentType))
+                reject("Content-Type " + contentType);
+            else if (mContentLength > mMaxBytes)
+                reject("Content-Length "
+                       + mContentLength
+                       + " exceeds "
+                       + mMaxBytes);
+            else if (!mChunked && mContentLength == 0)
+                complete();
+        }
+
+        /**
+         * Handle the body bytes in the @a buffer.
+         */
+        private void readBody(ByteBuffer buffer) throws IOException {
+            if (mChunked) {
+                readChunks(buffer);
+                return;
+            }
+
+            // Ignore anything beyond the Content-Length.
+            if (mContentLength >= 0
+                && buffer.remaining() > mContentLength - mBodyBytes)
+                buffer.limit(buffer.position()
+                             + (int) (mContentLength - mBodyBytes));
+            writeBody(buffer);
+            if (!mFinished
+                && mContentLength >= 0
+                && mBodyBytes == mContentLength)
+                complete();
+        }
+
+        /**
+         * Decode the chunked body bytes in the @a buffer.
+         */
+        private void readChunks(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining() && !mFinished)
+                switch (mChunkState) {
+                case SIZE:
+                    char c = (char) buffer.get();
+                    if (c != '\n') {
+                        mChunkLine.append(c);
+                        if (mChunkLine.length() > MAX_CHUNK_LINE)
+                            fail("malformed chunk", false);
+                        break;
+                    }
+                    String size = mChunkLine.toString();
+                    mChunkLine.setLength(0);
+                    int extension = size.indexOf(';');
+                    if (extension >= 0)
+                        size = size.substring(0, extension);
+                    try {
+                        mChunkRemaining = Long.parseLong(size.trim(), 16);
+                    } catch (NumberFormatException e) {
+                        fail("malformed chunk size " + size, false);
+                        break;
+                    }
+                    if (mChunkRemaining == 0)
+                        // Ignore any trailers.
+                        complete();
+                    else
+                        mChunkState = ChunkState.DATA;
+                    break;
+                case DATA:
+                    int n = (int) Math.min(mChunkRemaining,
+                                           buffer.remaining());
+                    int limit = buffer.limit();
+                    buffer.limit(buffer.position() + n);
+                    writeBody(buffer);
+                    buffer.limit(limit);
+                    mChunkRemaining -= n;
+                    if (mChunkRemaining == 0) {
+                        mChunkState = ChunkState.CRLF;
+                        mChunkCrlfRemaining = 2;
+                    }
+                    break;
+                case CRLF:
+                    buffer.get();
+                    if (--mChunkCrlfRemaining == 0)
+                        mChunkState = ChunkState.SIZE;
+                    break;
+                }
+        }
+
+        /**
+         * Write the remaining bytes of the @a buffer to the file,
+         * sniffing the first ones for the magic number of an image.
+         */
+        private void writeBody(ByteBuffer buffer) throws IOException {
+            if (mFinished)
+                return;
+
+            int remaining = buffer.remaining();
+            if (mSniffed < mSniff.length) {
+                int n = Math.min(mSniff.length - mSniffed, remaining);
+                ByteBuffer head = buffer.duplicate();
+                head.get(mSniff, mSniffed, n);
+                mSniffed += n;
+                if (mSniffed == mSniff.length && !checkSniff())
+                    return;
+            }
+
+            mBodyBytes += remaining;
+            if (mBodyBytes > mMaxBytes) {
+                reject("image exceeds the size ceiling");
+                return;
+            }
+
+            if (mOutput == null)
+                mOutput = openOutput();
+            while (buffer.hasRemaining())
+                mOutput.write(buffer);
+        }
+
+        /**
+         * Returns a channel that writes the output file, which is
+         * preallocated to the Content-Length (if any) so it isn't
+         * extended write by write.  Without one the file is
+         * truncated, since a file of the same name left by a process
+         * that died would otherwise keep its tail after the body.
+         */
+        private FileChannel openOutput() throws IOException {
+            RandomAccessFile output =
+                new RandomAccessFile(mOutputFile, "rw");
+            output.setLength(mContentLength > 0 ? mContentLength : 0);
+            return output.getChannel();
+        }
+
+        /**
+         * Check the sniffed bytes, failing the download unless they're
+         * the magic number of an image.
+         *
+         * @return true if they are, else false.
+         */
+        private boolean checkSniff() {
+            mSniffChecked = true;
+            if (ImageResponse.isImage(mSniff, mSniffed))
+                return true;
+            reject("response is not an image");
+            return false;
+        }
+
+        /**
+         * Handle the end of the stream.
+         */
+        private void onEndOfStream() {
+            if (mHeader != null)
+                fail("connection closed before the headers", true);
+            else if (mChunked
+                     || (mContentLength >= 0 && mBodyBytes < mContentLength))
+                fail("connection closed before the end of the body", true);
+            else
+                complete();
+        }
+
+        /**
+         * Complete the download successfully if the body is an image.
+         */
+        private void complete() {
+            if (!mSniffChecked && !checkSniff())
+                return;
+            finish(Status.DONE, null, false);
+        }
+
+        /**
+         * Fail the download with the @a error.
+         */
+        void fail(String error,
+                  boolean retryable) {
+            finish(Status.FAILED, error, retryable);
+        }
+
+        /**
+         * Reject the response with the @a error, which isn't
+         * retryable.
+         */
+        private void reject(String error) {
+            finish(Status.REJECTED, error, false);
+        }
+
+        /**
+         * Release the resources of the download and report its
+         * outcome, which only happens once.
+         */
+        private void finish(Status status,
+                            String error,
+                            boolean retryable) {
+            if (mFinished)
+                return;
+            mFinished = true;
+
+            if (mKey != null)
+                mKey.cancel();
+            closeQuietly(mChannel);
+            closeQuietly(mOutput);
+            if (status != Status.DONE)
+                mOutputFile.delete();
+
+            mCallback.onComplete(status, mBodyBytes, error, retryable);
+        }
+
+        /**
+         * Refresh the deadline after activity on the connection.
+         */
+        private void touch() {
+            mDeadline = System.currentTimeMillis() + TIMEOUT_MS;
+        }
+
+        /**
+         * Returns the GET request for the URL.
+         */
+        private ByteBuffer makeRequest() {
+            String path = mUrl.getFile();
+            if (path.isEmpty())
+                path = "/";
+            String host = mUrl.getPort() == -1
+                ? mUrl.getHost()
+                : mUrl.getHost() + ":" + mUrl.getPort();
+            String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + "\r\n"
+                + "Accept: image/*\r\n"
+                + "Accept-Encoding: identity\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+            return ByteBuffer.wrap(request.getBytes(ISO_8859_1));
+        }
+    }
+
+    /**
+     * State of the decoder of a chunked body.
+     */
+    private enum ChunkState {
+        SIZE,
+        DATA,
+        CRLF
+    }
+
+    /**
+     * Close the @a closeable, ignoring any exception.
+     */
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Ignore.
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package vandy.mooc.download;
+
+/**
+ * The policy that determines how a downloaded image is encoded
+ * before it's stored.  The Activity chooses a policy for each
+ * request and it travels to the Service in the RequestMessage, and
+ * the ImageCodec encodes the image accordingly.
+ */
+public class OutputFormat {
+    /**
+     * How the image is encoded.
+     */
+    public enum Mode {
+        /**
+         * Store the downloaded bytes unchanged, which avoids decoding
+         * and encoding the image altogether.
+         */
+        ORIGINAL,
+
+        /**
+         * Encode the image as JPEG at the given quality.
+         */
+        JPEG,
+
+        /**
+         * Encode the image as WEBP at the given quality.
+         */
+        WEBP,
+
+        /**
+         * Store whichever of the original bytes, JPEG and WEBP at the
+         * given quality is the smallest.
+         */
+        ADAPTIVE
+    }
+
+    /**
+     * The policy used when a request doesn't specify one, which is
+     * how images have always been stored.
+     */
+    public static final OutputFormat DEFAULT =
+        new OutputFormat(Mode.JPEG, 100);
+
+    /**
+     * How the image is encoded.
+     */
+    private final Mode mMode;
+
+    /**
+     * Quality (0-100) of the lossy encodings.
+     */
+    private final int mQuality;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public OutputFormat(Mode mode,
+                        int quality) {
+        mMode = mode;
+        mQuality = Math.max(0, Math.min(100, quality));
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Returns true if the image must be decoded to store it, else
+     * false.
+     */
+    public boolean needsDecode() {
+        return mMode != Mode.ORIGINAL;
+    }
+
+    @Override
+    public String toString() {
+        return mMode + "(" + mQuality + ")";
+    }
+}
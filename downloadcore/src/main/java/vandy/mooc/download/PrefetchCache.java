@@ -0,0 +1,77 @@
+package vandy.mooc.download;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An LRU cache of the bodies of prefetched images, keyed by their
+ * URL and bounded by their total size.  A download of a prefetched
+ * URL takes its body out of the cache instead of fetching it again.
+ */
+public class PrefetchCache {
+    /**
+     * Ceiling on the total size of the cached bodies.
+     */
+    private static final long MAX_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Maps a URL to its body, in least recently used order.
+     */
+    private static final LinkedHashMap<String, byte[]> sBodies =
+        new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    /**
+     * Total size of the cached bodies.
+     */
+    private static long sByteCount;
+
+    /**
+     * Cache the @a body of the @a url, evicting the least recently
+     * used bodies if it doesn't fit otherwise.
+     *
+     * @return true if the body was cached, else false.
+     */
+    public static synchronized boolean put(String url,
+                                           byte[] body) {
+        if (body.length > MAX_BYTES)
+            return false;
+
+        remove(url);
+        Iterator<Map.Entry<String, byte[]>> iterator =
+            sBodies.entrySet().iterator();
+        while (sByteCount + body.length > MAX_BYTES && iterator.hasNext()) {
+            sByteCount -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+
+        sBodies.put(url, body);
+        sByteCount += body.length;
+        return true;
+    }
+
+    /**
+     * Remove the body of the @a url from the cache and return it, or
+     * return null if it's not cached.
+     */
+    public static synchronized byte[] remove(String url) {
+        byte[] body = sBodies.remove(url);
+        if (body != null)
+            sByteCount -= body.length;
+        return body;
+    }
+
+    /**
+     * Returns true if the body of the @a url is cached, else false.
+     */
+    public static synchronized boolean contains(String url) {
+        return sBodies.containsKey(url);
+    }
+
+    /**
+     * Ensure this class is only used as a utility.
+     */
+    private PrefetchCache() {
+        throw new AssertionError();
+    }
+}
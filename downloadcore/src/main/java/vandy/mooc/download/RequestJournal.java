@@ -0,0 +1,664 @@
+package vandy.mooc.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A durable, append-only journal of the download requests the
+ * Service has accepted, so they survive its process being killed.
+ * Each Request is journaled when it's enqueued, again when its
+ * download completes, and once more when its result is delivered to
+ * a client.  When the journal is opened it's replayed, which yields
+ * the requests that never completed, so they can be restarted, and
+ * those whose results were never delivered, so they can be sent to
+ * the next client that asks for them.
+ *
+ * Appends don't wait for the disk.  They're queued and a background
+ * thread writes all the records queued since its last write with
+ * one write() and one force(), i.e., a group commit, so a burst of
+ * requests costs a few syncs rather than one each.  A request that's
+ * still queued when the process dies is lost, just as it would be
+ * without the journal, as is a batch whose write fails, which is
+ * truncated away so the records after it can still be replayed.  A
+ * request whose URL or directory pathname is too long for its record
+ * isn't journaled at all.
+ *
+ * Each record is laid out as follows (big-endian):
+ *
+ *   int    length of the rest of the record
+ *   byte   type (Type ordinal)
+ *   long   id of the Request
+ *
+ * followed, for ENQUEUED, by
+ *
+ *   int    request code
+ *   short  length of the URL, followed by the URL in UTF-8
+ *   short  length of the directory pathname, followed by it in UTF-8
+ *   byte   OutputFormat.Mode ordinal
+ *   int    quality
+ *   long   ceiling on the size of the image
+ *   int    most attempts, long base delay, long most delay and byte
+ *          hedged of the RetryPolicy
+ *
+ * and, for COMPLETED, by the DownloadManifest record of the Entry.
+ * A torn record at the end of the journal is ignored.
+ */
+public class RequestJournal {
+    /**
+     * Debugging tag used by the logger.
+     */
+    private final static String TAG = "RequestJournal";
+
+    /**
+     * Charset used to encode the URLs and pathnames.
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Type of a record.
+     */
+    private enum Type {
+        /**
+         * The Request was accepted.
+         */
+        ENQUEUED,
+
+        /**
+         * The download of the Request completed.
+         */
+        COMPLETED,
+
+        /**
+         * The result of the Request was delivered to a client, so
+         * it's forgotten.
+         */
+        DELIVERED
+    }
+
+    /**
+     * A download request recorded in the journal.
+     */
+    public static class Request {
+        private final long mId;
+        private final int mRequestCode;
+        private final String mUrl;
+        private final String mDirectoryPathname;
+        private final OutputFormat mOutputFormat;
+        private final long mMaxImageBytes;
+        private final RetryPolicy mRetryPolicy;
+
+        /**
+         * The result of the download, or null until it completes.
+         */
+        private volatile DownloadManifest.Entry mEntry;
+
+        /**
+         * Constructor initializes all the fields.  Requests are
+         * normally made by enqueue(), which journals them.
+         */
+        public Request(long id,
+                int requestCode,
+                String url,
+                String directoryPathname,
+                OutputFormat outputFormat,
+                long maxImageBytes,
+                RetryPolicy retryPolicy) {
+            mId = id;
+            mRequestCode = requestCode;
+            mUrl = url;
+            mDirectoryPathname = directoryPathname;
+            mOutputFormat = outputFormat;
+            mMaxImageBytes = maxImageBytes;
+            mRetryPolicy = retryPolicy;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public int getRequestCode() {
+            return mRequestCode;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public String getDirectoryPathname() {
+            return mDirectoryPathname;
+        }
+
+        public OutputFormat getOutputFormat() {
+            return mOutputFormat;
+        }
+
+        public long getMaxImageBytes() {
+            return mMaxImageBytes;
+        }
+
+        public RetryPolicy getRetryPolicy() {
+            return mRetryPolicy;
+        }
+
+        /**
+         * Returns the result of the download, or null if it hasn't
+         * completed.
+         */
+        public DownloadManifest.Entry getEntry() {
+            return mEntry;
+        }
+    }
+
+    /**
+     * The journal file.
+     */
+    private final File mFile;
+
+    /**
+     * Channel that appends to the journal file.
+     */
+    private final FileChannel mChannel;
+
+    /**
+     * Writes the queued records in the background.
+     */
+    private final ExecutorService mWriter =
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * The records queued since the last write.
+     */
+    private List<ByteBuffer> mPending = new ArrayList<ByteBuffer>();
+
+    /**
+     * True if a write has been scheduled.
+     */
+    private boolean mWriteScheduled;
+
+    /**
+     * True once the journal has been closed, after which records are
+     * no longer written.
+     */
+    private boolean mClosed;
+
+    /**
+     * The id of the next Request.
+     */
+    private long mNextId;
+
+    /**
+     * The Requests whose download hadn't completed when the journal
+     * was opened.
+     */
+    private final List<Request> mUnfinished = new ArrayList<Request>();
+
+    /**
+     * The Requests whose result hadn't been delivered when the
+     * journal was opened.
+     */
+    private final List<Request> mUndelivered = new ArrayList<Request>();
+
+    /**
+     * Number of group commits made.
+     */
+    private long mCommits;
+
+    /**
+     * Number of records written by the group commits.
+     */
+    private long mCommittedRecords;
+
+    /**
+     * Constructor replays the journal in the @a file, if any, and
+     * rewrites it with just the Requests that are still outstanding.
+     */
+    public RequestJournal(File file) throws IOException {
+        mFile = file;
+
+        Map<Long, Request> outstanding = replay(file);
+        for (Request request : outstanding.values()) {
+            mNextId = Math.max(mNextId, request.getId() + 1);
+            if (request.getEntry() == null)
+                mUnfinished.add(request);
+            else
+                mUndelivered.add(request);
+        }
+        compact(outstanding);
+
+        mChannel = new FileOutputStream(file, true).getChannel();
+        Log.d(TAG,
+              "replayed "
+              + mUnfinished.size()
+              + " unfinished and "
+              + mUndelivered.size()
+              + " undelivered requests");
+    }
+
+    /**
+     * Returns the Requests whose download hadn't completed when the
+     * journal was opened, which should be restarted.
+     */
+    public List<Request> getUnfinished() {
+        return mUnfinished;
+    }
+
+    /**
+     * Returns the Requests whose download completed but whose result
+     * hadn't been delivered when the journal was opened.
+     */
+    public List<Request> getUndelivered() {
+        return mUndelivered;
+    }
+
+    /**
+     * Journal a new Request and return it.
+     */
+    public Request enqueue(int requestCode,
+                           String url,
+                           String directoryPathname,
+                           OutputFormat outputFormat,
+                           long maxImageBytes,
+                           RetryPolicy retryPolicy) {
+        Request request;
+        synchronized (this) {
+            request = new Request(mNextId++,
+                                  requestCode,
+                                  url,
+                                  directoryPathname,
+                                  outputFormat,
+                                  maxImageBytes,
+                                  retryPolicy);
+        }
+        try {
+            append(encodeEnqueued(request));
+        } catch (IllegalArgumentException e) {
+            // The download still runs, it just won't survive a
+            // restart.
+            Log.e(TAG,
+                  "Exception journaling " + url,
+                  e);
+        }
+        return request;
+    }
+
+    /**
+     * Journal that the download of the @a request completed with the
+     * @a entry.
+     */
+    public void complete(Request request,
+                         DownloadManifest.Entry entry) {
+        request.mEntry = entry;
+        try {
+            append(encodeCompleted(request));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG,
+                  "Exception journaling " + request.getUrl(),
+                  e);
+        }
+    }
+
+    /**
+     * Journal that the result of the @a request was delivered to a
+     * client.
+     */
+    public void deliver(Request request) {
+        append(finishRecord(startRecord(Type.DELIVERED,
+                                        request.getId(),
+                                        0)));
+    }
+
+    /**
+     * Write the queued records and close the journal.  Records
+     * appended afterwards, e.g., by a download that was still running
+     * when the Service shut down, are dropped, so its Request is
+     * replayed as unfinished.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        mWriter.shutdown();
+        writePending();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG,
+                  "Exception closing " + mFile,
+                  e);
+        }
+    }
+
+    /**
+     * Returns a one-line summary for logging.
+     */
+    @Override
+    public synchronized String toString() {
+        return "commits=" + mCommits
+            + " records=" + mCommittedRecords;
+    }
+
+    /**
+     * Queue the @a record to be written by the next group commit.
+     */
+    private void append(ByteBuffer record) {
+        synchronized (this) {
+            if (mClosed) {
+                Log.d(TAG,
+                      "dropping a record appended after " + mFile
+                      + " was closed");
+                return;
+            }
+            mPending.add(record);
+            if (mWriteScheduled)
+                return;
+            mWriteScheduled = true;
+        }
+
+        try {
+            mWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        writePending();
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            // close() was called after the record was queued, and
+            // writes it itself.
+        }
+    }
+
+    /**
+     * Write and force all the queued records, including any queued
+     * while the previous batch was being forced.  A batch that can't
+     * be written is logged and dropped, so the journal keeps
+     * recording the batches after it.
+     */
+    private void writePending() {
+        boolean drained = false;
+        try {
+            for (;;) {
+                List<ByteBuffer> pending;
+                synchronized (this) {
+                    if (mPending.isEmpty()) {
+                        mWriteScheduled = false;
+                        drained = true;
+                        return;
+                    }
+                    pending = mPending;
+                    mPending = new ArrayList<ByteBuffer>();
+                }
+
+                ByteBuffer[] records =
+                    pending.toArray(new ByteBuffer[pending.size()]);
+                if (write(records))
+                    synchronized (this) {
+                        ++mCommits;
+                        mCommittedRecords += records.length;
+                    }
+            }
+        } finally {
+            // Let the next append schedule a write even if this one
+            // ended abnormally.
+            if (!drained)
+                synchronized (this) {
+                    mWriteScheduled = false;
+                }
+        }
+    }
+
+    /**
+     * Write and force the @a records, or truncate the journal back to
+     * where they started if that fails, since a torn record followed
+     * by others would keep them from being replayed.
+     *
+     * @return true if the records were written, else false.
+     */
+    private boolean write(ByteBuffer[] records) {
+        synchronized (mChannel) {
+            long start = -1;
+            try {
+                start = mChannel.size();
+                while (records[records.length - 1].hasRemaining())
+                    mChannel.write(records);
+                mChannel.force(false);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG,
+                      "Exception writing "
+                      + records.length
+                      + " records to "
+                      + mFile
+                      + ", which are lost",
+                      e);
+                if (start >= 0)
+                    try {
+                        mChannel.truncate(start);
+                    } catch (IOException truncateException) {
+                        Log.e(TAG,
+                              "Exception truncating " + mFile,
+                              truncateException);
+                    }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns a record of the @a type for the Request with the @a id
+     * with room for @a bodyLength more bytes.
+     */
+    private static ByteBuffer startRecord(Type type,
+                                          long id,
+                                          int bodyLength) {
+        int length = 1 + 8 + bodyLength;
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length);
+        record.put((byte) type.ordinal());
+        record.putLong(id);
+        return record;
+    }
+
+    /**
+     * Returns the @a record ready to be written.
+     */
+    private static ByteBuffer finishRecord(ByteBuffer record) {
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Encode the ENQUEUED record of the @a request.
+     *
+     * @throws IllegalArgumentException if its URL or directory
+     *         pathname is longer than a record holds.
+     */
+    private static ByteBuffer encodeEnqueued(Request request) {
+        byte[] url = checkLength(request.getUrl().getBytes(UTF_8));
+        byte[] directoryPathname =
+            checkLength(request.getDirectoryPathname().getBytes(UTF_8));
+        RetryPolicy retryPolicy = request.getRetryPolicy();
+
+        ByteBuffer record =
+            startRecord(Type.ENQUEUED,
+                        request.getId(),
+                        4
+                        + 2 + url.length
+                        + 2 + directoryPathname.length
+                        + 1 + 4 + 8
+                        + 4 + 8 + 8 + 1);
+        record.putInt(request.getRequestCode());
+        record.putShort((short) url.length);
+        record.put(url);
+        record.putShort((short) directoryPathname.length);
+        record.put(directoryPathname);
+        record.put((byte) request.getOutputFormat().getMode().ordinal());
+        record.putInt(request.getOutputFormat().getQuality());
+        record.putLong(request.getMaxImageBytes());
+        record.putInt(retryPolicy.getMaxAttempts());
+        record.putLong(retryPolicy.getBaseDelayMs());
+        record.putLong(retryPolicy.getMaxDelayMs());
+        record.put((byte) (retryPolicy.isHedged() ? 1 : 0));
+        return finishRecord(record);
+    }
+
+    /**
+     * Returns the @a utf8 bytes of a string if they fit in a record.
+     *
+     * @throws IllegalArgumentException if they don't.
+     */
+    private static byte[] checkLength(byte[] utf8) {
+        if (utf8.length > DownloadManifest.MAX_STRING_BYTES)
+            throw new IllegalArgumentException("string of "
+                                               + utf8.length
+                                               + " bytes is too long");
+        return utf8;
+    }
+
+    /**
+     * Encode the COMPLETED record of the @a request, whose body is
+     * the DownloadManifest record of its Entry.
+     *
+     * @throws IllegalArgumentException if the pathname of its Entry
+     *         is longer than a record holds.
+     */
+    private static ByteBuffer encodeCompleted(Request request) {
+        ByteBuffer manifestRecord =
+            DownloadManifest.encode(request.getEntry());
+        ByteBuffer record = startRecord(Type.COMPLETED,
+                                        request.getId(),
+                                        manifestRecord.remaining());
+        record.put(manifestRecord);
+        return finishRecord(record);
+    }
+
+    /**
+     * Decode the body of the ENQUEUED record of the Request with the
+     * @a id at the current position of the @a buffer.
+     */
+    private static Request decodeEnqueued(long id,
+                                          ByteBuffer buffer) {
+        int requestCode = buffer.getInt();
+        byte[] url = new byte[buffer.getShort() & 0xffff];
+        buffer.get(url);
+        byte[] directoryPathname = new byte[buffer.getShort() & 0xffff];
+        buffer.get(directoryPathname);
+        OutputFormat outputFormat =
+            new OutputFormat(OutputFormat.Mode.values()[buffer.get()],
+                             buffer.getInt());
+        long maxImageBytes = buffer.getLong();
+        RetryPolicy retryPolicy = new RetryPolicy(buffer.getInt(),
+                                                  buffer.getLong(),
+                                                  buffer.getLong(),
+                                                  buffer.get() != 0);
+        return new Request(id,
+                           requestCode,
+                           new String(url, UTF_8),
+                           new String(directoryPathname, UTF_8),
+                           outputFormat,
+                           maxImageBytes,
+                           retryPolicy);
+    }
+
+    /**
+     * Returns the Requests in the journal @a file that haven't been
+     * delivered, in the order they were enqueued.
+     */
+    private static Map<Long, Request> replay(File file) {
+        Map<Long, Request> outstanding = new LinkedHashMap<Long, Request>();
+        if (!file.exists())
+            return outstanding;
+
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            MappedByteBuffer buffer =
+                channel.map(FileChannel.MapMode.READ_ONLY,
+                            0,
+                            channel.size());
+
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt();
+                // Ignore a torn record at the end of the journal.
+                if (length > buffer.remaining())
+                    break;
+                int end = buffer.position() + length;
+                Type type = Type.values()[buffer.get()];
+                long id = buffer.getLong();
+                switch (type) {
+                case ENQUEUED:
+                    outstanding.put(id, decodeEnqueued(id, buffer));
+                    break;
+                case COMPLETED:
+                    Request request = outstanding.get(id);
+                    // Skip the length of the manifest record.
+                    buffer.getInt();
+                    if (request != null)
+                        request.mEntry = DownloadManifest.decode(buffer);
+                    break;
+                case DELIVERED:
+                    outstanding.remove(id);
+                    break;
+                }
+                buffer.position(end);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG,
+                  "Exception replaying " + file,
+                  e);
+        }
+        return outstanding;
+    }
+
+    /**
+     * Rewrite the journal @a file with the records of just the @a
+     * outstanding Requests, replacing it atomically.
+     */
+    private void compact(Map<Long, Request> outstanding)
+        throws IOException {
+        File directory = mFile.getAbsoluteFile().getParentFile();
+        if (!directory.exists())
+            directory.mkdirs();
+
+        File compacted = new File(directory, mFile.getName() + ".tmp");
+        try (FileOutputStream outputStream =
+             new FileOutputStream(compacted)) {
+            FileChannel channel = outputStream.getChannel();
+            for (Request request : outstanding.values()) {
+                ByteBuffer record = encodeEnqueued(request);
+                while (record.hasRemaining())
+                    channel.write(record);
+                if (request.getEntry() != null) {
+                    record = encodeCompleted(request);
+                    while (record.hasRemaining())
+                        channel.write(record);
+                }
+            }
+            channel.force(false);
+        }
+        if (!compacted.renameTo(mFile))
+            throw new IOException("can't rename "
+                                  + compacted
+                                  + " to "
+                                  + mFile);
+    }
+}
@@ -0,0 +1,100 @@
+package vandy.mooc.download;
+
+import java.util.Random;
+
+/**
+ * The policy that determines how the Service retries a download that
+ * failed in a retryable way (e.g., it timed out) and whether it
+ * hedges a slow download by starting a second attempt.  The Activity
+ * chooses a policy for each request and it travels to the Service in
+ * the RequestMessage.
+ */
+public class RetryPolicy {
+    /**
+     * The policy used when a request doesn't specify one, which makes
+     * a single attempt without hedging.
+     */
+    public static final RetryPolicy DEFAULT =
+        new RetryPolicy(1, 0, 0, false);
+
+    /**
+     * Used to jitter the backoff delays.
+     */
+    private static final Random sRandom = new Random();
+
+    /**
+     * Maximum number of attempts, including the first one.
+     */
+    private final int mMaxAttempts;
+
+    /**
+     * Delay before the first retry, which doubles for each retry
+     * after that.
+     */
+    private final long mBaseDelayMs;
+
+    /**
+     * Ceiling on the delay before a retry.
+     */
+    private final long mMaxDelayMs;
+
+    /**
+     * True if a second attempt is started when the first one is
+     * slower than the running 95th percentile latency.  The hedged
+     * attempt counts towards the maximum number of attempts.
+     */
+    private final boolean mHedge;
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public RetryPolicy(int maxAttempts,
+                       long baseDelayMs,
+                       long maxDelayMs,
+                       boolean hedge) {
+        mMaxAttempts = Math.max(1, maxAttempts);
+        mBaseDelayMs = Math.max(0, baseDelayMs);
+        mMaxDelayMs = Math.max(mBaseDelayMs, maxDelayMs);
+        mHedge = hedge;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    public long getBaseDelayMs() {
+        return mBaseDelayMs;
+    }
+
+    public long getMaxDelayMs() {
+        return mMaxDelayMs;
+    }
+
+    public boolean isHedged() {
+        return mHedge;
+    }
+
+    /**
+     * Returns the delay before retrying after @a failedAttempts
+     * attempts have failed, which is chosen uniformly at random
+     * between 0 and the exponential backoff ("full jitter") so
+     * retries of a batch that failed together don't stampede the
+     * server together.
+     */
+    public long getRetryDelayMs(int failedAttempts) {
+        long backoff = mBaseDelayMs;
+        for (int i = 1; i < failedAttempts && backoff < mMaxDelayMs; ++i)
+            backoff *= 2;
+        backoff = Math.min(backoff, mMaxDelayMs);
+        return backoff == 0
+            ? 0
+            : (long) (sRandom.nextDouble() * backoff);
+    }
+
+    @Override
+    public String toString() {
+        return "attempts=" + mMaxAttempts
+            + " backoff=" + mBaseDelayMs + ".." + mMaxDelayMs + "ms"
+            + (mHedge ? " hedged" : "");
+    }
+}
@@ -0,0 +1,119 @@
+package vandy.mooc.download;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Learns the sizes of images before they're downloaded, so the
+ * DownloadScheduler can start the smallest first.  Each probe is a
+ * HEAD request, which costs a round trip but no body, and a bounded
+ * number of probes run at once over kept-alive connections.  A probe
+ * that fails reports an unknown size, so its download is still
+ * scheduled, just not by size.
+ */
+public class SizeProbe {
+    /**
+     * Debugging tag used by the logger.
+     */
+    private final static String TAG = "SizeProbe";
+
+    /**
+     * Number of probes in flight at once by default.
+     */
+    public static final int DEFAULT_MAX_PROBES = 8;
+
+    /**
+     * Timeout in milliseconds for connecting and for reading the
+     * headers, which is short since a probe only delays a download.
+     */
+    private static final int TIMEOUT_MS = 3 * 1000;
+
+    /**
+     * Callback interface used to report the size of an image.
+     */
+    public interface Callback {
+        /**
+         * Called back once with the @a sizeBytes of the image, or
+         * DownloadScheduler.UNKNOWN_SIZE if it's unknown.
+         */
+        void onSize(long sizeBytes);
+    }
+
+    /**
+     * Runs the probes.
+     */
+    private final ExecutorService mExecutorService;
+
+    /**
+     * Constructor runs up to DEFAULT_MAX_PROBES probes at once.
+     */
+    public SizeProbe() {
+        this(DEFAULT_MAX_PROBES);
+    }
+
+    /**
+     * Constructor runs up to @a maxProbes probes at once.
+     */
+    public SizeProbe(int maxProbes) {
+        mExecutorService =
+            Executors.newFixedThreadPool(maxProbes, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, TAG);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * Probe the size of the image at the @a url in the background
+     * and report it via the @a callback.
+     */
+    public void probe(final String url,
+                      final Callback callback) {
+        try {
+            mExecutorService.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSize(probe(url));
+                    }
+                });
+        } catch (RejectedExecutionException e) {
+            // The probe has been shut down.
+            callback.onSize(DownloadScheduler.UNKNOWN_SIZE);
+        }
+    }
+
+    /**
+     * Returns the size of the image at the @a url, or
+     * DownloadScheduler.UNKNOWN_SIZE if it's unknown.
+     */
+    private static long probe(String url) {
+        try {
+            long sizeBytes =
+                ImageResponse.probeContentLength(new URL(url), TIMEOUT_MS);
+            return sizeBytes < 0
+                ? DownloadScheduler.UNKNOWN_SIZE
+                : sizeBytes;
+        } catch (IOException e) {
+            Log.d(TAG,
+                  "can't probe "
+                  + url
+                  + ": "
+                  + e);
+            return DownloadScheduler.UNKNOWN_SIZE;
+        }
+    }
+
+    /**
+     * Stop probing, reporting the sizes of later probes as unknown.
+     */
+    public void shutdown() {
+        mExecutorService.shutdownNow();
+    }
+}
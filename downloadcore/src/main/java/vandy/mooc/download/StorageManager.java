@@ -0,0 +1,393 @@
+package vandy.mooc.download;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the images stored in the session directories under a root
+ * directory (e.g., DCIM) within a byte quota.  A running total of
+ * the bytes stored lets each download be admitted or refused in
+ * O(1), and once the total passes the quota the oldest sessions are
+ * evicted in the background until it's back under a low watermark.
+ * The files of a session are sharded into subdirectories named by a
+ * hash prefix of the filename, so no one directory grows large
+ * enough to be slow to list.
+ *
+ * Only directories that hold a download manifest are sessions, so
+ * nothing else under the root is ever evicted.  The total is
+ * recomputed from the files on each eviction, which corrects any
+ * drift, e.g., from images the user deleted.
+ */
+public class StorageManager {
+    /**
+     * Debugging tag used by the logger.
+     */
+    private final static String TAG = "StorageManager";
+
+    /**
+     * Default quota of the bytes stored in all sessions.
+     */
+    public static final long DEFAULT_QUOTA_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Eviction stops once the total is this percent of the quota.
+     */
+    private static final int LOW_WATERMARK_PERCENT = 90;
+
+    /**
+     * A session that's been admitted to within this long is in use,
+     * so it's never evicted.
+     */
+    private static final long ACTIVE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    /**
+     * Least time between the end of one scan and the start of the
+     * next, so a quota that can't be met isn't rescanned on every
+     * download.
+     */
+    private static final long SCAN_INTERVAL_NANOS =
+        TimeUnit.SECONDS.toNanos(5);
+
+    /**
+     * The bytes stored in a session directory.
+     */
+    private static class Session {
+        /**
+         * Number of bytes stored in the session.
+         */
+        final AtomicLong mBytes = new AtomicLong();
+
+        /**
+         * When a download to the session was last admitted, or 0 if
+         * none has been.
+         */
+        volatile long mLastAdmittedNanos;
+    }
+
+    /**
+     * The directory that holds the session directories.
+     */
+    private final File mRoot;
+
+    /**
+     * Most bytes the sessions may store together.
+     */
+    private final long mQuotaBytes;
+
+    /**
+     * Removes the images of evicted sessions from the index.
+     */
+    private final MediaIndex mMediaIndex;
+
+    /**
+     * Runs the scans and evictions in the background.
+     */
+    private final Executor mExecutor;
+
+    /**
+     * Number of bytes stored in all sessions.
+     */
+    private final AtomicLong mUsedBytes = new AtomicLong();
+
+    /**
+     * Maps the absolute pathname of a session directory to its
+     * Session.
+     */
+    private final ConcurrentHashMap<String, Session> mSessions =
+        new ConcurrentHashMap<String, Session>();
+
+    /**
+     * True while a scan or eviction is scheduled or running.
+     */
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+
+    /**
+     * When the last scan finished, or 0 if none has.
+     */
+    private volatile long mLastScanNanos;
+
+    /**
+     * Number of sessions evicted.
+     */
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    /**
+     * Constructor initializes the fields and computes the running
+     * total from the sessions under the @a root in the background.
+     */
+    public StorageManager(File root,
+                          long quotaBytes,
+                          MediaIndex mediaIndex,
+                          Executor executor) {
+        mRoot = root;
+        mQuotaBytes = quotaBytes;
+        mMediaIndex = mediaIndex;
+        mExecutor = executor;
+
+        schedule(false);
+    }
+
+    /**
+     * Returns true if a download to the @a directoryPathname session
+     * may start, else false.  The download is refused only if the
+     * quota is used up and evicting every other session couldn't
+     * make room for it.
+     */
+    public boolean admit(String directoryPathname) {
+        Session session = getSession(directoryPathname);
+        session.mLastAdmittedNanos = System.nanoTime();
+
+        long usedBytes = mUsedBytes.get();
+        if (usedBytes < mQuotaBytes)
+            return true;
+
+        schedule(true);
+        return usedBytes - session.mBytes.get() > 0;
+    }
+
+    /**
+     * Record that the files of the @a directoryPathname session grew
+     * by @a byteCount bytes, which is negative if they shrank.
+     */
+    public void recordStored(String directoryPathname,
+                             long byteCount) {
+        getSession(directoryPathname).mBytes.addAndGet(byteCount);
+        if (mUsedBytes.addAndGet(byteCount) >= mQuotaBytes)
+            schedule(true);
+    }
+
+    /**
+     * Returns the directory of the @a directoryPathname session that
+     * stores the file named @a fileName, which is the shard named by
+     * the first two hex digits of a hash of the name.
+     */
+    public File getDirectory(String directoryPathname,
+                             String fileName) {
+        return new File(directoryPathname,
+                        Integer.toHexString(0x100
+                                            | (fileName.hashCode() & 0xff))
+                        .substring(1));
+    }
+
+    /**
+     * Returns the number of bytes stored in all sessions.
+     */
+    public long getUsedBytes() {
+        return mUsedBytes.get();
+    }
+
+    /**
+     * Returns the number of sessions evicted.
+     */
+    public long getEvictions() {
+        return mEvictions.get();
+    }
+
+    /**
+     * Returns the Session of the @a directoryPathname, creating it if
+     * need be.
+     */
+    private Session getSession(String directoryPathname) {
+        String key = new File(directoryPathname).getAbsolutePath();
+        Session session = mSessions.get(key);
+        if (session == null) {
+            Session newSession = new Session();
+            session = mSessions.putIfAbsent(key, newSession);
+            if (session == null)
+                session = newSession;
+        }
+        return session;
+    }
+
+    /**
+     * Scan the sessions in the background, then @a evict the oldest
+     * ones if they're over the low watermark, unless that's already
+     * scheduled.  They're evicted regardless if the scan finds them
+     * over the quota.
+     */
+    private void schedule(final boolean evict) {
+        if (mLastScanNanos != 0
+            && System.nanoTime() - mLastScanNanos < SCAN_INTERVAL_NANOS)
+            return;
+        if (!mBusy.compareAndSet(false, true))
+            return;
+
+        mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        scan();
+                        if (evict || mUsedBytes.get() >= mQuotaBytes)
+                            evict();
+                    } catch (Exception e) {
+                        Log.e(TAG,
+                              "Exception managing " + mRoot,
+                              e);
+                    } finally {
+                        mLastScanNanos = System.nanoTime();
+                        mBusy.set(false);
+                    }
+                }
+            });
+    }
+
+    /**
+     * Returns the session directories under the root.
+     */
+    private List<File> findSessions() {
+        List<File> sessions = new ArrayList<File>();
+        File[] directories = mRoot.listFiles();
+        if (directories != null)
+            for (File directory : directories)
+                if (DownloadManifest.getFile(directory.getPath()).exists())
+                    sessions.add(directory);
+        return sessions;
+    }
+
+    /**
+     * Recompute the bytes stored in each session and the running
+     * total from the files.
+     */
+    private void scan() {
+        long usedBytes = 0;
+        for (File directory : findSessions()) {
+            long bytes = sizeOf(directory);
+            getSession(directory.getPath()).mBytes.set(bytes);
+            usedBytes += bytes;
+        }
+        mUsedBytes.set(usedBytes);
+        Log.d(TAG,
+              mRoot
+              + " stores "
+              + usedBytes
+              + " of "
+              + mQuotaBytes
+              + " bytes");
+    }
+
+    /**
+     * Delete the oldest sessions that aren't in use until the total
+     * is under the low watermark.
+     */
+    private void evict() {
+        long lowWatermark = mQuotaBytes / 100 * LOW_WATERMARK_PERCENT;
+        if (mUsedBytes.get() <= lowWatermark)
+            return;
+
+        List<File> sessions = findSessions();
+        Collections.sort(sessions, new Comparator<File>() {
+                @Override
+                public int compare(File lhs,
+                                   File rhs) {
+                    long lhsModified = lhs.lastModified();
+                    long rhsModified = rhs.lastModified();
+                    return lhsModified < rhsModified
+                        ? -1
+                        : lhsModified == rhsModified ? 0 : 1;
+                }
+            });
+
+        long now = System.nanoTime();
+        for (File directory : sessions) {
+            if (mUsedBytes.get() <= lowWatermark)
+                break;
+
+            Session session = getSession(directory.getPath());
+            if (session.mLastAdmittedNanos != 0
+                && now - session.mLastAdmittedNanos < ACTIVE_NANOS)
+                continue;
+
+            long freedBytes = deleteSession(directory);
+            session.mBytes.addAndGet(-freedBytes);
+            mUsedBytes.addAndGet(-freedBytes);
+            mSessions.remove(directory.getAbsolutePath(), session);
+            mEvictions.incrementAndGet();
+            Log.d(TAG,
+                  "evicted "
+                  + directory
+                  + ", freeing "
+                  + freedBytes
+                  + " bytes");
+        }
+    }
+
+    /**
+     * Delete the files and directories of the session in the @a
+     * directory, remove its images from the index, and return the
+     * number of bytes freed.
+     */
+    private long deleteSession(File directory) {
+        // Delete the manifest first, so the directory is no longer a
+        // session even if the rest can't be deleted.
+        DownloadManifest.getFile(directory.getPath()).delete();
+
+        long freedBytes = 0;
+        List<File> directories = new ArrayList<File>();
+        ArrayDeque<File> pending = new ArrayDeque<File>();
+        pending.add(directory);
+        while (!pending.isEmpty()) {
+            File current = pending.poll();
+            directories.add(current);
+            File[] children = current.listFiles();
+            if (children == null)
+                continue;
+            for (File child : children)
+                if (child.isDirectory())
+                    pending.add(child);
+                else {
+                    long length = child.length();
+                    if (child.delete())
+                        freedBytes += length;
+                }
+        }
+
+        // Delete the directories deepest first.
+        Collections.reverse(directories);
+        for (File current : directories)
+            current.delete();
+
+        mMediaIndex.removeDirectory(directory);
+        return freedBytes;
+    }
+
+    /**
+     * Returns the number of bytes in the files under the @a
+     * directory.
+     */
+    private static long sizeOf(File directory) {
+        long bytes = 0;
+        ArrayDeque<File> pending = new ArrayDeque<File>();
+        pending.add(directory);
+        while (!pending.isEmpty()) {
+            File[] children = pending.poll().listFiles();
+            if (children == null)
+                continue;
+            for (File child : children)
+                if (child.isDirectory())
+                    pending.add(child);
+                else
+                    bytes += child.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns a one-line summary for logging.
+     */
+    @Override
+    public String toString() {
+        return "usedBytes=" + getUsedBytes()
+            + " quotaBytes=" + mQuotaBytes
+            + " sessions=" + mSessions.size()
+            + " evictions=" + getEvictions();
+    }
+}
@@ -0,0 +1,64 @@
+package vandy.mooc.download;
+
+/**
+ * A DownloadEngine that downloads each image with blocking I/O on
+ * the thread that starts it, i.e., one thread per download in
+ * flight.
+ */
+public class ThreadPoolDownloadEngine implements DownloadEngine {
+    /**
+     * Number of downloads in flight at once by default, which suits
+     * a phone.
+     */
+    public static final int DEFAULT_MAX_DOWNLOADS = 16;
+
+    /**
+     * Stores the downloaded images.
+     */
+    private final ImageStore mImageStore;
+
+    /**
+     * The most downloads that should be in flight at once, i.e., the
+     * most threads that should be blocked in downloads.
+     */
+    private final int mMaxDownloads;
+
+    /**
+     * Constructor initializes the field.
+     */
+    public ThreadPoolDownloadEngine(ImageStore imageStore) {
+        this(imageStore, DEFAULT_MAX_DOWNLOADS);
+    }
+
+    /**
+     * Constructor initializes the fields.
+     */
+    public ThreadPoolDownloadEngine(ImageStore imageStore,
+                                    int maxDownloads) {
+        mImageStore = imageStore;
+        mMaxDownloads = maxDownloads;
+    }
+
+    @Override
+    public void download(String url,
+                         String directoryPathname,
+                         OutputFormat outputFormat,
+                         long maxImageBytes,
+                         DownloadAttempt attempt,
+                         Callback callback) {
+        callback.onComplete(mImageStore.download(url,
+                                                 directoryPathname,
+                                                 outputFormat,
+                                                 maxImageBytes,
+                                                 attempt));
+    }
+
+    @Override
+    public int[] getConcurrencyBounds() {
+        return new int[] { 1, mMaxDownloads, Math.min(4, mMaxDownloads) };
+    }
+
+    @Override
+    public void shutdown() {
+    }
+}
@@ -0,0 +1,134 @@
+package vandy.mooc.download;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A DownloadEngine that downloads each image with blocking I/O on
+ * its own virtual thread, which costs a few KB rather than the
+ * megabyte stack of a platform thread, so the blocking style of the
+ * ThreadPoolDownloadEngine scales to thousands of downloads in
+ * flight.  A Semaphore bounds how many downloads run at once, which
+ * caps the sockets and buffers in use however many are started.
+ *
+ * Virtual threads need Java 21, so they're created via reflection
+ * and isAvailable() is false elsewhere, e.g., on Android.
+ */
+public class VirtualThreadDownloadEngine implements DownloadEngine {
+    /**
+     * Number of downloads that may run at once by default.
+     */
+    public static final int DEFAULT_MAX_DOWNLOADS = 1024;
+
+    /**
+     * Stores the downloaded images.
+     */
+    private final ImageStore mImageStore;
+
+    /**
+     * Starts a new virtual thread for each download.
+     */
+    private final ExecutorService mExecutorService;
+
+    /**
+     * Bounds the number of downloads that run at once.
+     */
+    private final Semaphore mPermits;
+
+    /**
+     * The number of permits of mPermits.
+     */
+    private final int mMaxDownloads;
+
+    /**
+     * Constructor initializes the fields.
+     *
+     * @throws UnsupportedOperationException if virtual threads aren't
+     *         available.
+     */
+    public VirtualThreadDownloadEngine(ImageStore imageStore,
+                                       int maxDownloads) {
+        mImageStore = imageStore;
+        mExecutorService = makeVirtualThreadExecutor();
+        if (mExecutorService == null)
+            throw new UnsupportedOperationException
+                ("virtual threads need Java 21");
+        mMaxDownloads = maxDownloads;
+        mPermits = new Semaphore(maxDownloads);
+    }
+
+    /**
+     * Returns true if virtual threads are available, else false.
+     */
+    public static boolean isAvailable() {
+        ExecutorService executorService = makeVirtualThreadExecutor();
+        if (executorService == null)
+            return false;
+        executorService.shutdown();
+        return true;
+    }
+
+    /**
+     * Factory method that returns the ExecutorService of
+     * Executors.newVirtualThreadPerTaskExecutor(), or null if it
+     * doesn't exist.
+     */
+    private static ExecutorService makeVirtualThreadExecutor() {
+        try {
+            Method method =
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (Exception e) {
+            // ReflectiveOperationException isn't available on
+            // Android API 18.
+            return null;
+        }
+    }
+
+    @Override
+    public void download(final String url,
+                         final String directoryPathname,
+                         final OutputFormat outputFormat,
+                         final long maxImageBytes,
+                         final DownloadAttempt attempt,
+                         final Callback callback) {
+        mExecutorService.execute(new Runnable() {
+                /**
+                 * This method runs in a virtual Thread, which is
+                 * cheap to block while it waits for a permit.
+                 */
+                @Override
+                public void run() {
+                    DownloadManifest.Entry entry;
+                    try {
+                        mPermits.acquire();
+                    } catch (InterruptedException e) {
+                        callback.onComplete(DownloadManifest.Entry.failed(url));
+                        return;
+                    }
+                    try {
+                        entry = mImageStore.download(url,
+                                                     directoryPathname,
+                                                     outputFormat,
+                                                     maxImageBytes,
+                                                     attempt);
+                    } finally {
+                        mPermits.release();
+                    }
+                    callback.onComplete(entry);
+                }
+            });
+    }
+
+    @Override
+    public int[] getConcurrencyBounds() {
+        return new int[] { 1, mMaxDownloads, Math.min(64, mMaxDownloads) };
+    }
+
+    @Override
+    public void shutdown() {
+        mExecutorService.shutdownNow();
+    }
+}
@@ -0,0 +1,119 @@
+package vandy.mooc.download;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests how the AdaptiveLimiter adjusts its limit after each round,
+ * feeding it completions at chosen times rather than running
+ * downloads.
+ */
+public class AdaptiveLimiterTest {
+    /**
+     * A millisecond in nanoseconds.
+     */
+    private static final long MS = 1000 * 1000;
+
+    /**
+     * Report @a count downloads of @a byteCount bytes to the @a
+     * limiter, each taking @a elapsedMs and running back to back from
+     * @a startMs.  Returns the time the last one ends.
+     */
+    private static long complete(AdaptiveLimiter limiter,
+                                 int count,
+                                 long byteCount,
+                                 long startMs,
+                                 long elapsedMs,
+                                 boolean congested) {
+        long endMs = startMs;
+        for (int i = 0; i < count; ++i) {
+            endMs += elapsedMs;
+            limiter.onComplete(endMs * MS,
+                               elapsedMs * MS,
+                               byteCount,
+                               congested);
+        }
+        return endMs;
+    }
+
+    @Test
+    public void increasesAfterAGoodRound() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 64, 6);
+        complete(limiter, 6, 10000, 0, 10, false);
+        assertEquals(7, limiter.getLimit());
+    }
+
+    @Test
+    public void decreasesWhenCongested() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 64, 6);
+        complete(limiter, 6, 0, 0, 10, true);
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void decreasesWhenThroughputDrops() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 64, 6);
+        long endMs = complete(limiter, 6, 10000, 0, 10, false);
+        assertEquals(7, limiter.getLimit());
+
+        // The same bytes take four times as long.
+        complete(limiter, 7, 10000, endMs, 40, false);
+        assertEquals(3, limiter.getLimit());
+    }
+
+    @Test
+    public void staysWithinItsBounds() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(2, 4, 4);
+        long endMs = complete(limiter, 4, 10000, 0, 10, false);
+        assertEquals(4, limiter.getLimit());
+
+        endMs = complete(limiter, 4, 0, endMs, 10, true);
+        assertEquals(2, limiter.getLimit());
+        complete(limiter, 2, 0, endMs, 10, true);
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void badUrlsDontShrinkTheLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 64, 6);
+
+        // Non-retryable failures transfer nothing and aren't
+        // congestion, so a round of them carries no information.
+        complete(limiter, 6, 0, 0, 1, false);
+        assertEquals(6, limiter.getLimit());
+
+        // Nor do they after a round that set the throughput.
+        long endMs = complete(limiter, 6, 10000, 100, 10, false);
+        assertEquals(7, limiter.getLimit());
+        complete(limiter, 7, 0, endMs, 1, false);
+        assertEquals(7, limiter.getLimit());
+    }
+
+    @Test
+    public void idleTimeDoesntShrinkTheLimit() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 64, 6);
+        complete(limiter, 6, 10000, 0, 10, false);
+        assertEquals(7, limiter.getLimit());
+
+        // The next batch starts a minute later at the same rate.
+        complete(limiter, 7, 10000, 60 * 1000, 10, false);
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void overlappingDownloadsCountTheirBusyTimeOnce() {
+        AdaptiveLimiter limiter = new AdaptiveLimiter(1, 64, 2);
+
+        // Two downloads that run side by side over the same 10 ms.
+        limiter.onComplete(10 * MS, 10 * MS, 10000, false);
+        limiter.onComplete(10 * MS, 10 * MS, 10000, false);
+        assertEquals(3, limiter.getLimit());
+
+        // Three downloads of the same size that run one after the
+        // other take three times as long for half again the bytes, so
+        // the throughput has halved.
+        complete(limiter, 3, 10000, 10, 10, false);
+        assertEquals(1, limiter.getLimit());
+    }
+}
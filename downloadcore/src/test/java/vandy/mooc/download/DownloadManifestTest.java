@@ -0,0 +1,178 @@
+package vandy.mooc.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that the manifest records round-trip, including the strings
+ * that are too long for their fields, and that a torn record at the
+ * end of a manifest is ignored, or truncated before the next append.
+ */
+public class DownloadManifestTest {
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Returns an Entry of a successful download of the @a url.
+     */
+    private static DownloadManifest.Entry makeEntry(String url) {
+        return new DownloadManifest.Entry(url,
+                                          "/sdcard/DCIM/session/a.png",
+                                          12345,
+                                          640,
+                                          480,
+                                          new byte[] { 1, 2, 3, 4 },
+                                          DownloadManifest.Status.DONE);
+    }
+
+    /**
+     * Returns the Entry decoded from the record the @a entry encodes
+     * to.
+     */
+    private static DownloadManifest.Entry roundTrip(DownloadManifest.Entry entry) {
+        ByteBuffer record = DownloadManifest.encode(entry);
+        int length = record.getInt();
+        assertEquals(record.remaining(), length);
+        return DownloadManifest.decode(record);
+    }
+
+    /**
+     * Returns a string of @a count copies of the @a c.
+     */
+    private static String repeat(char c,
+                                 int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void roundTripsASucceededEntry() {
+        DownloadManifest.Entry entry = makeEntry("http://example.com/a.png");
+        DownloadManifest.Entry decoded = roundTrip(entry);
+
+        assertEquals(entry.getUrl(), decoded.getUrl());
+        assertEquals(entry.getImagePathname(), decoded.getImagePathname());
+        assertEquals(entry.getByteCount(), decoded.getByteCount());
+        assertEquals(entry.getWidth(), decoded.getWidth());
+        assertEquals(entry.getHeight(), decoded.getHeight());
+        assertArrayEquals(entry.getContentHash(), decoded.getContentHash());
+        assertEquals(DownloadManifest.Status.DONE, decoded.getStatus());
+    }
+
+    @Test
+    public void roundTripsAFailedEntry() {
+        DownloadManifest.Entry decoded =
+            roundTrip(DownloadManifest.Entry.failed("http://example.com/b"));
+
+        assertEquals("http://example.com/b", decoded.getUrl());
+        assertNull(decoded.getImagePathname());
+        assertFalse(decoded.succeeded());
+    }
+
+    @Test
+    public void truncatesALongUrlAtACharacterBoundary() {
+        // Each '\u00e9' is two bytes in UTF-8, so the limit falls in the
+        // middle of one.
+        String url = repeat('\u00e9', DownloadManifest.MAX_STRING_BYTES);
+        DownloadManifest.Entry decoded = roundTrip(makeEntry(url));
+
+        assertEquals(url.substring(0, DownloadManifest.MAX_STRING_BYTES / 2),
+                     decoded.getUrl());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsALongPathname() {
+        DownloadManifest.encode
+            (new DownloadManifest.Entry("http://example.com/a.png",
+                                        repeat('a', DownloadManifest.MAX_STRING_BYTES + 1),
+                                        1,
+                                        1,
+                                        1,
+                                        null,
+                                        DownloadManifest.Status.DONE));
+    }
+
+    @Test
+    public void appendSkipsAnEntryWithALongPathname() throws IOException {
+        String directoryPathname = mFolder.newFolder().getPath();
+        assertFalse(DownloadManifest.append
+                    (directoryPathname,
+                     new DownloadManifest.Entry("http://example.com/a.png",
+                                                repeat('a', DownloadManifest.MAX_STRING_BYTES + 1),
+                                                1,
+                                                1,
+                                                1,
+                                                null,
+                                                DownloadManifest.Status.DONE)));
+        assertTrue(DownloadManifest.read(directoryPathname).isEmpty());
+    }
+
+    /**
+     * Append the first half of the record of the @a entry to the
+     * manifest of the @a directoryPathname, as if the process died
+     * while appending it.
+     */
+    private static void appendTornRecord(String directoryPathname,
+                                         DownloadManifest.Entry entry)
+        throws IOException {
+        ByteBuffer record = DownloadManifest.encode(entry);
+        try (FileOutputStream outputStream =
+             new FileOutputStream(DownloadManifest.getFile(directoryPathname),
+                                  true)) {
+            outputStream.write(record.array(), 0, record.remaining() / 2);
+        }
+    }
+
+    @Test
+    public void readIgnoresATornFinalRecord() throws IOException {
+        String directoryPathname = mFolder.newFolder().getPath();
+        assertTrue(DownloadManifest.append(directoryPathname,
+                                           makeEntry("http://example.com/a.png")));
+        assertTrue(DownloadManifest.append(directoryPathname,
+                                           DownloadManifest.Entry.failed("http://example.com/b")));
+
+        appendTornRecord(directoryPathname,
+                         makeEntry("http://example.com/c.png"));
+
+        List<DownloadManifest.Entry> entries =
+            DownloadManifest.read(directoryPathname);
+        assertEquals(2, entries.size());
+        assertEquals("http://example.com/a.png", entries.get(0).getUrl());
+        assertEquals("http://example.com/b", entries.get(1).getUrl());
+        assertEquals(1, DownloadManifest.readSucceeded(directoryPathname).size());
+    }
+
+    @Test
+    public void appendTruncatesATornRecordLeftByAnotherProcess()
+        throws IOException {
+        // The first append of this process to the manifest follows a
+        // torn record left by one that died.
+        String directoryPathname = mFolder.newFolder().getPath();
+        appendTornRecord(directoryPathname,
+                         makeEntry("http://example.com/a.png"));
+        assertTrue(DownloadManifest.append(directoryPathname,
+                                           makeEntry("http://example.com/b.png")));
+        assertTrue(DownloadManifest.append(directoryPathname,
+                                           makeEntry("http://example.com/c.png")));
+
+        List<DownloadManifest.Entry> entries =
+            DownloadManifest.read(directoryPathname);
+        assertEquals(2, entries.size());
+        assertEquals("http://example.com/b.png", entries.get(0).getUrl());
+        assertEquals("http://example.com/c.png", entries.get(1).getUrl());
+    }
+}
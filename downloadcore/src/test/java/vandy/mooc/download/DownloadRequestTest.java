@@ -0,0 +1,150 @@
+package vandy.mooc.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests that a DownloadRequest reports the outcome of an attempt
+ * whose engine throws rather than calling back, and of a request
+ * cancelled while it waits to be retried.
+ */
+public class DownloadRequestTest {
+    /**
+     * An engine that throws instead of downloading.
+     */
+    private static class ThrowingEngine implements DownloadEngine {
+        @Override
+        public void download(String url,
+                             String directoryPathname,
+                             OutputFormat outputFormat,
+                             long maxImageBytes,
+                             DownloadAttempt attempt,
+                             Callback callback) {
+            throw new IllegalStateException("broken engine");
+        }
+
+        @Override
+        public int[] getConcurrencyBounds() {
+            return new int[] { 1, 4, 2 };
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+    /**
+     * An engine whose downloads fail in a way that may succeed if
+     * they're retried, and which counts them.
+     */
+    private static class RetryableFailureEngine extends ThrowingEngine {
+        int mDownloads;
+
+        @Override
+        public void download(String url,
+                             String directoryPathname,
+                             OutputFormat outputFormat,
+                             long maxImageBytes,
+                             DownloadAttempt attempt,
+                             Callback callback) {
+            ++mDownloads;
+            callback.onComplete(DownloadManifest.Entry.failed(url, true));
+        }
+    }
+
+    /**
+     * Runs the Jobs in the Thread that starts them.
+     */
+    private static final Executor DIRECT = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        };
+
+    private final ScheduledExecutorService mTimer =
+        Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void shutdownTimer() {
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void engineThatThrowsFailsTheRequest() {
+        DownloadScheduler scheduler =
+            new DownloadScheduler(DIRECT, new AdaptiveLimiter(1, 4, 2));
+        final List<DownloadManifest.Entry> entries =
+            new ArrayList<DownloadManifest.Entry>();
+
+        new DownloadRequest("http://example.com/a.png",
+                            "/tmp",
+                            OutputFormat.DEFAULT,
+                            0,
+                            new RetryPolicy(1, 0, 0, false),
+                            new ThrowingEngine(),
+                            scheduler,
+                            mTimer,
+                            new LatencyTracker(),
+                            new DownloadRequest.Callback() {
+                                @Override
+                                public void onComplete(DownloadManifest.Entry entry) {
+                                    entries.add(entry);
+                                }
+                            }).start();
+
+        assertEquals(1, entries.size());
+        assertFalse(entries.get(0).succeeded());
+        assertEquals("http://example.com/a.png", entries.get(0).getUrl());
+        assertEquals(0, scheduler.getInFlight());
+    }
+
+    @Test
+    public void cancelFailsARequestWaitingToBeRetried() {
+        DownloadScheduler scheduler =
+            new DownloadScheduler(DIRECT, new AdaptiveLimiter(1, 4, 2));
+        final List<DownloadManifest.Entry> entries =
+            new ArrayList<DownloadManifest.Entry>();
+        RetryableFailureEngine engine = new RetryableFailureEngine();
+
+        // The retry is an hour away, so the request is still waiting
+        // for it when it's cancelled.
+        DownloadRequest request =
+            new DownloadRequest("http://example.com/a.png",
+                                "/tmp",
+                                OutputFormat.DEFAULT,
+                                0,
+                                new RetryPolicy(3, 3600000, 3600000, false),
+                                engine,
+                                scheduler,
+                                mTimer,
+                                new LatencyTracker(),
+                                new DownloadRequest.Callback() {
+                                    @Override
+                                    public void onComplete(DownloadManifest.Entry entry) {
+                                        entries.add(entry);
+                                    }
+                                });
+        request.start();
+        assertEquals(1, engine.mDownloads);
+        assertEquals(0, entries.size());
+
+        request.cancel();
+        assertEquals(1, entries.size());
+        assertFalse(entries.get(0).succeeded());
+
+        // Cancelling it again doesn't complete it twice.
+        request.cancel();
+        assertEquals(1, entries.size());
+        assertEquals(1, engine.mDownloads);
+    }
+}
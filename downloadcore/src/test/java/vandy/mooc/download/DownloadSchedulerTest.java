@@ -0,0 +1,202 @@
+package vandy.mooc.download;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the order in which a DownloadScheduler starts its queued
+ * Jobs.  The limit is one Job at a time and the Jobs start in the
+ * thread that submits or completes them, so each test decides when
+ * the next Job may start.
+ */
+public class DownloadSchedulerTest {
+    /**
+     * Runs the Jobs in the Thread that starts them.
+     */
+    private static final Executor DIRECT = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        };
+
+    /**
+     * The names of the Jobs in the order they started.
+     */
+    private final List<String> mStarted = new ArrayList<String>();
+
+    /**
+     * The names of the Jobs that were cancelled.
+     */
+    private final List<String> mCancelled = new ArrayList<String>();
+
+    /**
+     * The Completions of the Jobs that started but haven't completed.
+     */
+    private final ArrayDeque<DownloadScheduler.Completion> mRunning =
+        new ArrayDeque<DownloadScheduler.Completion>();
+
+    private DownloadScheduler mScheduler;
+
+    /**
+     * A Job that records when it's started or cancelled.
+     */
+    private class RecordingJob implements DownloadScheduler.Job {
+        private final String mName;
+
+        RecordingJob(String name) {
+            mName = name;
+        }
+
+        @Override
+        public void start(DownloadScheduler.Completion completion) {
+            mStarted.add(mName);
+            mRunning.add(completion);
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled.add(mName);
+        }
+    }
+
+    @Before
+    public void makeScheduler() {
+        mScheduler =
+            new DownloadScheduler(DIRECT, new AdaptiveLimiter(1, 1, 1));
+    }
+
+    /**
+     * Submit a Job that holds the only slot until the others are
+     * queued, and return its Completion.
+     */
+    private DownloadScheduler.Completion block() {
+        mScheduler.submit(new Object(), new RecordingJob("blocker"));
+        mStarted.clear();
+        return mRunning.poll();
+    }
+
+    /**
+     * Complete the @a blocker and then each Job as it starts, and
+     * return the names of the Jobs in the order they started.
+     */
+    private List<String> drain(DownloadScheduler.Completion blocker) {
+        blocker.complete(DownloadManifest.Entry.failed("blocker"));
+        while (!mRunning.isEmpty())
+            mRunning.poll().complete(DownloadManifest.Entry.failed("job"));
+        return mStarted;
+    }
+
+    @Test
+    public void clientsTakeTurnsByWeight() {
+        Object a = new Object();
+        Object b = new Object();
+
+        DownloadScheduler.Completion blocker = block();
+        for (int i = 1; i <= 4; ++i)
+            mScheduler.submit(a, 2, null, DownloadScheduler.PRIORITY_NORMAL,
+                              DownloadScheduler.UNKNOWN_SIZE,
+                              new RecordingJob("a" + i));
+        for (int i = 1; i <= 3; ++i)
+            mScheduler.submit(b, new RecordingJob("b" + i));
+
+        assertEquals(Arrays.asList("a1", "a2", "b1", "a3", "a4", "b2", "b3"),
+                     drain(blocker));
+    }
+
+    @Test
+    public void higherPrioritiesStartFirst() {
+        Object client = new Object();
+
+        DownloadScheduler.Completion blocker = block();
+        mScheduler.submit(client, null, DownloadScheduler.PRIORITY_NORMAL,
+                          new RecordingJob("normal1"));
+        mScheduler.submit(client, null, DownloadScheduler.PRIORITY_LOW,
+                          new RecordingJob("low"));
+        mScheduler.submit(client, null, DownloadScheduler.PRIORITY_HIGH,
+                          new RecordingJob("high1"));
+        mScheduler.submit(client, null, DownloadScheduler.PRIORITY_NORMAL,
+                          new RecordingJob("normal2"));
+        mScheduler.submit(client, null, DownloadScheduler.PRIORITY_HIGH,
+                          new RecordingJob("high2"));
+
+        assertEquals(Arrays.asList("high1", "high2", "normal1", "normal2", "low"),
+                     drain(blocker));
+    }
+
+    @Test
+    public void changingThePriorityReordersAQueuedJob() {
+        Object client = new Object();
+        Object key = new Object();
+
+        DownloadScheduler.Completion blocker = block();
+        mScheduler.submit(client, null, DownloadScheduler.PRIORITY_NORMAL,
+                          new RecordingJob("normal"));
+        mScheduler.submit(client, key, DownloadScheduler.PRIORITY_LOW,
+                          new RecordingJob("keyed"));
+        mScheduler.setPriority(client, key, DownloadScheduler.PRIORITY_HIGH);
+
+        assertEquals(Arrays.asList("keyed", "normal"),
+                     drain(blocker));
+    }
+
+    @Test
+    public void shutdownCancelsTheQueuedJobs() {
+        DownloadScheduler.Completion blocker = block();
+        mScheduler.submit(new RecordingJob("queued"));
+        mScheduler.shutdown();
+        mScheduler.submit(new RecordingJob("late"));
+
+        assertEquals(Arrays.asList("queued", "late"), mCancelled);
+        assertEquals(0, mScheduler.getQueueDepth());
+
+        // The Job in flight completes as usual.
+        assertEquals(Arrays.<String>asList(), drain(blocker));
+        assertEquals(0, mScheduler.getInFlight());
+    }
+
+    @Test
+    public void forgetsAClientOnceItsJobsComplete() {
+        Object client = new Object();
+
+        DownloadScheduler.Completion blocker = block();
+        mScheduler.submit(client, 3, null, DownloadScheduler.PRIORITY_NORMAL,
+                          DownloadScheduler.UNKNOWN_SIZE,
+                          new RecordingJob("job"));
+        assertEquals(2, mScheduler.getQueueDepths().size());
+
+        drain(blocker);
+        assertEquals(0, mScheduler.getQueueDepths().size());
+        assertEquals("", mScheduler.getClientSummary());
+    }
+
+    @Test
+    public void aJobThatThrowsFreesItsSlot() {
+        DownloadScheduler.Completion blocker = block();
+        mScheduler.submit(new DownloadScheduler.Job() {
+                @Override
+                public void start(DownloadScheduler.Completion completion) {
+                    mStarted.add("thrower");
+                    throw new IllegalStateException("broken job");
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+        mScheduler.submit(new RecordingJob("next"));
+
+        // The exception doesn't escape the Executor's thread, and the
+        // next Job starts in the thrower's slot.
+        assertEquals(Arrays.asList("thrower", "next"), drain(blocker));
+        assertEquals(0, mScheduler.getInFlight());
+    }
+}
@@ -0,0 +1,181 @@
+package vandy.mooc.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that reopening a RequestJournal replays the Requests that
+ * were unfinished or undelivered, including when the journal ends
+ * with a torn record.
+ */
+public class RequestJournalTest {
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final OutputFormat FORMAT =
+        new OutputFormat(OutputFormat.Mode.WEBP, 80);
+
+    private static final RetryPolicy POLICY =
+        new RetryPolicy(3, 100, 2000, true);
+
+    /**
+     * The journal file.
+     */
+    private File mFile;
+
+    @Before
+    public void makeFile() throws IOException {
+        mFile = new File(mFolder.newFolder(), "journal");
+    }
+
+    /**
+     * Journal a Request of the @a url.
+     */
+    private static RequestJournal.Request enqueue(RequestJournal journal,
+                                                  String url) {
+        return journal.enqueue(7,
+                               url,
+                               "/sdcard/DCIM/session",
+                               FORMAT,
+                               1024 * 1024,
+                               POLICY);
+    }
+
+    /**
+     * Returns the URLs of the @a requests.
+     */
+    private static List<String> urls(List<RequestJournal.Request> requests) {
+        String[] urls = new String[requests.size()];
+        for (int i = 0; i < urls.length; ++i)
+            urls[i] = requests.get(i).getUrl();
+        return Arrays.asList(urls);
+    }
+
+    /**
+     * Append the first few bytes of a record to the journal, as if
+     * the process died while writing it.
+     */
+    private void appendTornRecord() throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(7);
+        record.putInt(64);
+        record.put((byte) 0);
+        record.putShort((short) 0);
+        try (FileOutputStream outputStream =
+             new FileOutputStream(mFile, true)) {
+            outputStream.write(record.array());
+        }
+    }
+
+    @Test
+    public void replaysUnfinishedAndUndeliveredRequests() throws IOException {
+        RequestJournal journal = new RequestJournal(mFile);
+        enqueue(journal, "http://example.com/unfinished");
+        RequestJournal.Request undelivered =
+            enqueue(journal, "http://example.com/undelivered");
+        journal.complete(undelivered,
+                         DownloadManifest.Entry.failed(undelivered.getUrl()));
+        RequestJournal.Request delivered =
+            enqueue(journal, "http://example.com/delivered");
+        journal.complete(delivered,
+                         DownloadManifest.Entry.failed(delivered.getUrl()));
+        journal.deliver(delivered);
+        journal.close();
+
+        journal = new RequestJournal(mFile);
+        assertEquals(Arrays.asList("http://example.com/unfinished"),
+                     urls(journal.getUnfinished()));
+        assertEquals(Arrays.asList("http://example.com/undelivered"),
+                     urls(journal.getUndelivered()));
+
+        // The Requests keep everything they were enqueued with.
+        RequestJournal.Request request = journal.getUnfinished().get(0);
+        assertEquals(7, request.getRequestCode());
+        assertEquals("/sdcard/DCIM/session", request.getDirectoryPathname());
+        assertEquals(OutputFormat.Mode.WEBP,
+                     request.getOutputFormat().getMode());
+        assertEquals(80, request.getOutputFormat().getQuality());
+        assertEquals(1024 * 1024, request.getMaxImageBytes());
+        assertEquals(3, request.getRetryPolicy().getMaxAttempts());
+        assertEquals(100, request.getRetryPolicy().getBaseDelayMs());
+        assertEquals(2000, request.getRetryPolicy().getMaxDelayMs());
+        assertTrue(request.getRetryPolicy().isHedged());
+
+        // New Requests don't reuse the ids of the replayed ones.
+        RequestJournal.Request next = enqueue(journal, "http://example.com/next");
+        assertNotEquals(request.getId(), next.getId());
+        assertNotEquals(journal.getUndelivered().get(0).getId(), next.getId());
+        journal.close();
+    }
+
+    @Test
+    public void ignoresATornFinalRecord() throws IOException {
+        RequestJournal journal = new RequestJournal(mFile);
+        enqueue(journal, "http://example.com/a");
+        journal.close();
+        appendTornRecord();
+
+        journal = new RequestJournal(mFile);
+        assertEquals(Arrays.asList("http://example.com/a"),
+                     urls(journal.getUnfinished()));
+
+        // Reopening compacts the torn record away, so the records
+        // appended after it are replayed too.
+        enqueue(journal, "http://example.com/b");
+        journal.close();
+
+        journal = new RequestJournal(mFile);
+        assertEquals(Arrays.asList("http://example.com/a",
+                                   "http://example.com/b"),
+                     urls(journal.getUnfinished()));
+        journal.close();
+    }
+
+    @Test
+    public void doesntJournalAUrlTooLongForItsRecord() throws IOException {
+        char[] path = new char[DownloadManifest.MAX_STRING_BYTES];
+        Arrays.fill(path, 'a');
+
+        RequestJournal journal = new RequestJournal(mFile);
+        enqueue(journal, "http://example.com/" + new String(path));
+        enqueue(journal, "http://example.com/short");
+        journal.close();
+
+        journal = new RequestJournal(mFile);
+        assertEquals(Arrays.asList("http://example.com/short"),
+                     urls(journal.getUnfinished()));
+        journal.close();
+    }
+
+    @Test
+    public void dropsRecordsAppendedAfterClose() throws IOException {
+        RequestJournal journal = new RequestJournal(mFile);
+        RequestJournal.Request request =
+            enqueue(journal, "http://example.com/a");
+        journal.close();
+
+        // A download that was still running when the journal was
+        // closed completes and delivers without throwing.
+        journal.complete(request,
+                         DownloadManifest.Entry.failed(request.getUrl()));
+        journal.deliver(request);
+
+        journal = new RequestJournal(mFile);
+        assertEquals(Arrays.asList("http://example.com/a"),
+                     urls(journal.getUnfinished()));
+        assertTrue(journal.getUndelivered().isEmpty());
+        journal.close();
+    }
+}
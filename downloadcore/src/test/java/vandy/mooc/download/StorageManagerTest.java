@@ -0,0 +1,132 @@
+package vandy.mooc.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests which downloads a StorageManager admits and which sessions
+ * it evicts to stay within its quota.  The scans run in the thread
+ * that schedules them, so the one the constructor schedules is done
+ * when it returns.
+ */
+public class StorageManagerTest {
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    /**
+     * Runs the scans and evictions in the Thread that schedules them.
+     */
+    private static final Executor DIRECT = new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                runnable.run();
+            }
+        };
+
+    /**
+     * The directories whose images were removed from the index.
+     */
+    private final List<File> mRemoved = new ArrayList<File>();
+
+    /**
+     * Records the directories removed from the index.
+     */
+    private final MediaIndex mMediaIndex = new MediaIndex() {
+            @Override
+            public void add(File file,
+                            String title) {
+            }
+
+            @Override
+            public void removeDirectory(File directory) {
+                mRemoved.add(directory);
+            }
+        };
+
+    /**
+     * Make a directory named @a name under the root that holds a
+     * file of @a byteCount bytes in a shard, and a manifest if it's a
+     * @a session, last modified at @a modifiedMs.
+     */
+    private File makeDirectory(String name,
+                               int byteCount,
+                               boolean session,
+                               long modifiedMs) throws IOException {
+        File directory = new File(mFolder.getRoot(), name);
+        File shard = new File(directory, "0a");
+        assertTrue(shard.mkdirs());
+        try (FileOutputStream outputStream =
+             new FileOutputStream(new File(shard, "image.png"))) {
+            outputStream.write(new byte[byteCount]);
+        }
+        if (session)
+            assertTrue(DownloadManifest.getFile(directory.getPath())
+                       .createNewFile());
+        assertTrue(directory.setLastModified(modifiedMs));
+        return directory;
+    }
+
+    @Test
+    public void evictsTheOldestSessionsOverTheQuota() throws IOException {
+        File oldest = makeDirectory("oldest", 400, true, 1000000);
+        File older = makeDirectory("older", 400, true, 2000000);
+        File newest = makeDirectory("newest", 400, true, 3000000);
+
+        StorageManager storageManager =
+            new StorageManager(mFolder.getRoot(), 1000, mMediaIndex, DIRECT);
+
+        // Evicting the oldest brings the total under the 900 byte
+        // low watermark.
+        assertFalse(oldest.exists());
+        assertTrue(older.exists());
+        assertTrue(newest.exists());
+        assertEquals(Arrays.asList(oldest), mRemoved);
+        assertEquals(800, storageManager.getUsedBytes());
+        assertEquals(1, storageManager.getEvictions());
+    }
+
+    @Test
+    public void neverEvictsADirectoryWithoutAManifest() throws IOException {
+        File other = makeDirectory("other", 2000, false, 1000000);
+        File session = makeDirectory("session", 400, true, 2000000);
+
+        StorageManager storageManager =
+            new StorageManager(mFolder.getRoot(), 1000, mMediaIndex, DIRECT);
+
+        assertTrue(other.exists());
+        assertTrue(session.exists());
+        assertEquals(400, storageManager.getUsedBytes());
+        assertEquals(0, storageManager.getEvictions());
+    }
+
+    @Test
+    public void admitsUntilOnlyTheSessionItselfFillsTheQuota() {
+        StorageManager storageManager =
+            new StorageManager(mFolder.getRoot(), 1000, mMediaIndex, DIRECT);
+        String full = new File(mFolder.getRoot(), "full").getPath();
+        String other = new File(mFolder.getRoot(), "other").getPath();
+
+        assertTrue(storageManager.admit(full));
+        storageManager.recordStored(full, 1000);
+        assertEquals(1000, storageManager.getUsedBytes());
+
+        // Evicting the other sessions can't make room for the one
+        // that fills the quota, but evicting it could make room for
+        // another.
+        assertFalse(storageManager.admit(full));
+        assertTrue(storageManager.admit(other));
+    }
+}